@@ -109,6 +109,15 @@
 		}
 	}
 	
+	<!-- camera responses are pushed from the server as they arrive -->
+	if (window.EventSource)
+	{
+		var cameraEvents = new EventSource("ptzevents");
+		cameraEvents.onmessage = function(event) {
+			$('#cameraStatus').text(event.data);
+		};
+	}
+	
 </script>
 
 <!-- Bootstrap core CSS -->
@@ -251,6 +260,7 @@
 	<br/>
 	<p style="box-shadow: 5px 5px 5px #888888;">JSON Commands</p>
 	<p id="result"></p>
+	<p id="cameraStatus"></p>
 	
 	<!-- /container -->
 
@@ -140,6 +140,15 @@
 		}
 	}
 	
+	<!-- camera responses are pushed from the server as they arrive -->
+	if (window.EventSource)
+	{
+		var cameraEvents = new EventSource("ptzevents");
+		cameraEvents.onmessage = function(event) {
+			$('#cameraStatus').text(event.data);
+		};
+	}
+	
 </script>
 
 <!-- Bootstrap core CSS -->
@@ -282,6 +291,7 @@
 	<br/>
 	<p style="box-shadow: 5px 5px 5px #888888;">JSON Commands</p>
 	<p id="result"></p>
+	<p id="cameraStatus"></p>
 	
 	<!-- /container -->
 
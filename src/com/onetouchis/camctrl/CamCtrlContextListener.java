@@ -0,0 +1,56 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl;
+
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.onetouchis.camctrl.util.Utils;
+
+/**
+ * Starts connecting to the cameras when the web application is deployed, so
+ * the first request does not have to wait for it, and closes the cameras, the
+ * event loops serving them, the event stream writers and the presets watcher
+ * when the application is undeployed.
+ */
+public class CamCtrlContextListener implements ServletContextListener {
+
+    private static Logger logger = Logger.getLogger(CamCtrlContextListener.class
+            .getName());
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        logger.info("Starting cameras");
+        CameraRegistry.start(event.getServletContext());
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        CameraRegistry registry = (CameraRegistry) event.getServletContext()
+                .getAttribute(CameraRegistry.CONTEXT_ATTRIBUTE);
+        if (registry != null) {
+            logger.info("Shutting down sockets");
+            registry.close();
+        }
+        RS232EventLoop.shutdownAll();
+        CamEventBroadcaster.getInstance().shutdown();
+        Utils.shutdown();
+    }
+}
@@ -20,8 +20,17 @@ package com.onetouchis.camctrl;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -30,9 +39,11 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.log4j.Logger;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.onetouchis.camctrl.CommandDispatcher.Action;
+import com.onetouchis.camctrl.CommandDispatcher.Command;
+import com.onetouchis.camctrl.CommandDispatcher.Entry;
 import com.onetouchis.camctrl.util.Utils;
 
 /**
@@ -49,65 +60,48 @@ public class CamCtrlServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
 
-    private static final int MAX_PRESETS = 9;
+    /** Too Many Requests, which HttpServletResponse has no constant for */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
 
-    /** default ip address when using a network based processor */
-    private static final String DEFAULT_RS232_HOST = "192.168.1.148";
+    /** runs preset tours on the cameras */
+    private static TourEngine tours;
 
-    /** default port when using a network based processor */
-    private static final int DEFAULT_CAM_PORT = 3002;
-
-    /** default port name when using COMM based processor */
-    private static final String DEFAULT_COMM_PORT = "/dev/ttyS0";
-
-    /** default RS232 processing class to instanciate */
-    private static final String DEFAULT_PROCESSOR_CLASS = "com.onetouchis.camctrl.RS232NetProcessor";
-    /** internal thread for scanning preset positions */
-    private static ScanRunner scanThread;
-
-    /** handles the processing of the camera commands */
-    private static IProcessor processor;
+    /** handles the processing of the camera commands, one per camera */
+    private static CameraRegistry cameras;
 
     /** user wants to change a preset; next cmd will have the new preset info */
     private static boolean setPreset = false;
 
-    private static boolean initialized = false;
+    /** response to the PRESETS command, rebuilt when the presets change */
+    private static volatile PresetsResponse presetsResponse;
 
-    /** when scanning presets, this is how long to stay at each position */
-    private static long presetScanInterval = 5000;
+    /** how long an async request waits for the camera to answer a command */
+    private static long asyncTimeout = 5000;
 
     private Gson gson = new Gson();
 
-    private JsonParser parser = new JsonParser();
-
     /**
-     * Creates the processor that will handle camera commands.
+     * Looks up the processors that handle camera commands, one for each
+     * configured camera. They are normally started when the application is
+     * deployed, see <code>CamCtrlContextListener</code>; this never waits for
+     * a camera to connect.
      */
-    public void setupProcessor() {
-        try {
-            presetScanInterval = Long.getLong("wcc.preset.interval",
-                    presetScanInterval);
-            String rs232Host = System.getProperty("wcc.rs232.net.host",
-                    DEFAULT_RS232_HOST);
-            int rs232IpPort = Integer.getInteger("wcc.rs232.net.port",
-                    DEFAULT_CAM_PORT);
-            String processorClass = System.getProperty("wcc.rs232.processor",
-                    DEFAULT_PROCESSOR_CLASS);
-            logger.info("Creating IProcessor class: " + processorClass);
-            Class<?> procClass = Class.forName(processorClass);
-            processor = (IProcessor) procClass.newInstance();
-            String rs232CommPort = System.getProperty("wcc.rs232.comm.port",
-                    DEFAULT_COMM_PORT);
-            processor.setContext(getServletContext());
-            processor.initialize(rs232Host, rs232IpPort, rs232CommPort);
-            initialized = true;
-        } catch (Exception e) {
-            logger.error("Unable to create RS232NetProcessor. ", e);
-        }
+    @Override
+    public void init() throws ServletException {
+        tours = new TourEngine();
+        asyncTimeout = Long.getLong("wcc.async.timeout", asyncTimeout);
+        cameras = CameraRegistry.start(getServletContext());
     }
 
     /**
-     * Handle Json formatted Camera Commands here.
+     * Handle Json formatted Camera Commands here. When the request has an
+     * "async" parameter set to true, commands that go to the camera are
+     * handed to the processor and the request thread is released right away;
+     * the response is written once the camera has answered the command.
+     * A json array of commands is treated as a batch, see
+     * <code>processBatch</code>. The optional "camera" field selects the
+     * camera; without it the default camera is used. The STATUS command
+     * reports whether each camera is ready without waiting for any of them.
      * 
      * @param request
      *            Http request from client
@@ -117,99 +111,151 @@ public class CamCtrlServlet extends HttpServlet {
     public void processRequest(HttpServletRequest request,
             HttpServletResponse response) {
 
-        PrintWriter out;
         response.setContentType("text/json");
         
         String userAgent = request.getHeader("User-Agent");
         logger.debug("Received a command with user agent in header: " + userAgent);
 
         try {
-            if (!initialized) {
-                setupProcessor();
-            }
-
-            out = response.getWriter();
+            boolean async = request.isAsyncSupported()
+                    && Boolean.parseBoolean(request.getParameter("async"));
             String json = request.getParameter("json");
 
-            JsonElement element = parser.parse(json);
-            logger.debug("JSON object is a " + element.getClass().getName());
-            String cmd = "unknown";
-            String args = "";
+            List<Command> commands = CommandDispatcher.readCommands(json);
+            if (CommandDispatcher.isBatch(json)) {
+                processBatch(commands, request, response, async);
+                return;
+            }
+            Command command = commands.get(0);
+            String cmd = command.getName();
+            String args = command.getArgs();
             JsonObject result = new JsonObject();
-            if (element instanceof JsonObject) {
-                JsonObject obj = (JsonObject) element;
-                cmd = obj.get("command").getAsString();
-                if (cmd.contains("::")) {
-                    String tempCmd[] = cmd.split("::");
-                    cmd = tempCmd[0];
-                    args = tempCmd[1];
+            RS232CmdRequest cmdRequest = null;
+            if (CommandDispatcher.STATUS.equals(cmd)) {
+                writeStatus(result, response);
+                return;
+            }
+            if (cmd != null) {
+                String cameraId = command.getCamera();
+                IProcessor processor = cameras.getProcessor(cameraId);
+                if (processor == null && cameras.isConfigured(cameraId)) {
+                    // still connecting, the client can try again shortly
+                    logger.info("Camera not ready for command: " + cmd);
+                    result.addProperty("message", "JSON command is " + cmd);
+                    result.addProperty("response", "NOT_READY");
+                    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    response.setHeader("Retry-After", "1");
+                    writeResult(response, result);
+                    return;
+                }
+                if (processor == null) {
+                    logger.warn("Command for unknown camera: " + cameraId);
+                    result.addProperty("message", "Unknown camera "
+                            + cameraId);
+                    writeResult(response, result);
+                    return;
                 }
                 logger.info("Command: " + cmd);
-                if ("PRESETS".equals(cmd)) {
+                Entry entry = cameras.getDispatcher(cameraId).lookup(cmd);
+                switch (entry.getAction()) {
+                case PRESETS:
                     // client is asking for all of the preset information
-                    String presetsFile = System.getProperty("jboss.home.dir")
-                            + File.separator + "bin" + File.separator
-                            + "presets.json";
-                    logger.info("Loading presets from: " + presetsFile);
-                    String jsonStr = Utils.loadFile(presetsFile);
-                    logger.debug("Returning json string: " + jsonStr);
-                    result.addProperty("PRESET_DATA", jsonStr);
-                } else if (!setPreset && cmd.matches("[0-9]+")) {
-                    // client wants to move to a particular preset position
-                    byte[] cmdArray = cmd.getBytes();
-                    cmdArray[0] = (byte) (cmdArray[0] - (byte) 48);
-                    logger.info("Sending preset move: " + cmd);
-                    processor.sendDataCommand("PRESET_MOVE", cmdArray);
-                } else if (setPreset && cmd.matches("[0-9]+")) {
-                    // client is updating the position of a preset
-                    // String[] cmdParts = cmd.split("::");
-                    byte[] cmdArray = cmd.getBytes();
-                    cmdArray[0] = (byte) (cmdArray[0] - (byte) 48);
-                    String jsonStr = updatePresetData(cmdArray[0], args);
-                    result.addProperty("PRESET_DATA", jsonStr);
-                    setPreset = false;
-                    logger.info("Setting preset: " + cmdArray);
-                    processor.sendDataCommand("PRESET_STORE", cmdArray);
-                } else if ("PRESET_STORE".equals(cmd)) {
+                    writePresets(request, response);
+                    return;
+                case PRESET:
+                    if (!setPreset) {
+                        // client wants to move to a particular preset position
+                        logger.info("Sending preset move: " + cmd);
+                        cmdRequest = entry.createRequest();
+                    } else {
+                        // client is updating the position of a preset
+                        int presetNumber = entry.getPresetNumber();
+                        String jsonStr = updatePresetData(
+                                (byte) presetNumber, args);
+                        result.addProperty("PRESET_DATA", jsonStr);
+                        setPreset = false;
+                        logger.info("Setting preset: " + presetNumber);
+                        cmdRequest = entry.createStoreRequest();
+                    }
+                    break;
+                case PRESET_STORE:
                     // client is about to update a preset's position
                     setPreset = true;
-                } else if ("SCAN_PRESETS".equals(cmd)) {
-                    try {
-                        if ("ON".equals(args)) {
-                            logger.info("starting scanning");
-                            if (scanThread != null)
-                            {
-                                scanThread.destroy();
-                            }
-                            scanThread = new ScanRunner();
-                            Thread t = new Thread(scanThread);
-                            t.start();
-                        } else if ("OFF".equals(args)) {
-                            logger.info("stopping the scan thread");
-                            if (scanThread != null) {
-                                scanThread.destroy();
-                                scanThread = null;
-                            }
-                        } else {
-                            logger.warn("Received scan cmd with no args: "
-                                    + cmd);
-                        }
-                    } catch (Exception e) {
-                        logger.warn("Unable to process scan command: " + cmd, e);
+                    break;
+                case SCAN_PRESETS:
+                    String scanKey = cameraId != null ? cameraId : cameras
+                            .getDefaultCamera();
+                    if ("ON".equals(args)) {
+                        tours.start(scanKey, processor,
+                                TourEngine.DEFAULT_TOUR);
+                    } else if ("OFF".equals(args)) {
+                        tours.stop(scanKey);
+                    } else {
+                        logger.warn("Received scan cmd with no args: " + cmd);
+                    }
+                    break;
+                case TOUR_START:
+                    String tourName = args.length() > 0 ? args
+                            : TourEngine.DEFAULT_TOUR;
+                    if (!tours.start(cameraId != null ? cameraId : cameras
+                            .getDefaultCamera(), processor, tourName)) {
+                        logger.warn("Unknown tour: " + tourName);
+                        result.addProperty("message", "Unknown tour "
+                                + tourName);
+                        writeResult(response, result);
+                        return;
                     }
-                } else {
+                    break;
+                case TOUR_STOP:
+                    tours.stop(cameraId != null ? cameraId : cameras
+                            .getDefaultCamera());
+                    break;
+                case INVALID:
+                    logger.warn("Invalid command: " + cmd);
+                    result.addProperty("message", "Invalid command " + cmd);
+                    writeResult(response, result);
+                    return;
+                default:
                     // all other commands are sent directly to the processor
                     logger.info("Sending cmd: " + cmd);
-                    processor.sendDataCommand(cmd);
+                    cmdRequest = entry.createRequest();
+                }
+
+                result.addProperty("message", "JSON command is " + cmd);
+
+                if (cmdRequest != null && async) {
+                    // the responder answers the client once the camera responds
+                    AsyncContext asyncContext = request.startAsync(request,
+                            response);
+                    asyncContext.setTimeout(asyncTimeout);
+                    AsyncResponder responder = new AsyncResponder(
+                            asyncContext, result);
+                    asyncContext.addListener(responder);
+                    cmdRequest.setListener(responder);
+                    try {
+                        processor.sendDataCommand(cmdRequest);
+                    } catch (QueueFullException e) {
+                        setRejected((HttpServletResponse) asyncContext
+                                .getResponse(), processor, e);
+                        responder.complete(RS232CmdData.RESPONSE_REJECTED);
+                    }
+                    return;
                 }
-            }
 
-            result.addProperty("message", "JSON command is " + cmd);
+                if (cmdRequest != null) {
+                    try {
+                        processor.sendDataCommand(cmdRequest);
+                    } catch (QueueFullException e) {
+                        setRejected(response, processor, e);
+                        result.addProperty("response",
+                                RS232CmdData.RESPONSE_REJECTED);
+                    }
+                }
+            } else {
+                result.addProperty("message", "JSON command is unknown");
+            }
 
-            String jsonResult = gson.toJson(result);
-            out.println(jsonResult);
-            out.flush();
-            out.close();
+            writeResult(response, result);
 
         } catch (Exception e) {
             logger.warn("Exception processing http request ", e);
@@ -264,13 +310,224 @@ public class CamCtrlServlet extends HttpServlet {
 
     @Override
     public void destroy() {
-        if (scanThread != null) {
-            logger.info("Stopping preset scanner: " + scanThread);
-            scanThread.destroy();
-            scanThread = null;
+        if (tours != null) {
+            logger.info("Stopping preset tours");
+            tours.close();
+        }
+    }
+
+    /**
+     * Sends an ordered list of camera commands to the processor in a single
+     * step so that commands from other clients cannot be interleaved with
+     * them. Each command may name its camera; commands for different cameras
+     * are sent to each camera's processor separately, keeping their order.
+     * The result has one entry per command in the same order. Without
+     * async the entries report whether each command was queued; with async
+     * the response is written once the camera has answered every command.
+     * 
+     * @param commands
+     *            commands read from the json array
+     * @param request
+     *            Http request from client
+     * @param response
+     *            Http response to client
+     * @param async
+     *            true to wait for the camera's responses
+     * @throws IOException
+     */
+    private void processBatch(List<Command> commands, HttpServletRequest request,
+            HttpServletResponse response, boolean async) throws IOException {
+        JsonObject result = new JsonObject();
+        JsonArray results = new JsonArray();
+        result.add("results", results);
+        BatchResponder responder = new BatchResponder(result);
+        Map<IProcessor, List<RS232CmdRequest>> cmdRequests = new LinkedHashMap<IProcessor, List<RS232CmdRequest>>();
+        int count = 0;
+
+        for (Command command : commands) {
+            String cmd = command.getCommand();
+            String cameraId = command.getCamera();
+            JsonObject cmdResult = new JsonObject();
+            cmdResult.addProperty("command", cmd);
+            if (cameraId != null) {
+                cmdResult.addProperty("camera", cameraId);
+            }
+            results.add(cmdResult);
+
+            IProcessor processor = cameras.getProcessor(cameraId);
+            RS232CmdRequest cmdRequest = null;
+            if (processor != null) {
+                cmdRequest = createBatchRequest(command,
+                        cameras.getDispatcher(cameraId));
+            }
+            if (processor == null && cameras.isConfigured(cameraId)) {
+                cmdResult.addProperty("response", "NOT_READY");
+            } else if (processor == null) {
+                cmdResult.addProperty("response", "UNKNOWN_CAMERA");
+            } else if (cmdRequest == null) {
+                cmdResult.addProperty("response", "UNSUPPORTED");
+            } else {
+                cmdResult.addProperty("response", "QUEUED");
+                responder.add(cmdRequest, cmdResult);
+                List<RS232CmdRequest> cameraRequests = cmdRequests
+                        .get(processor);
+                if (cameraRequests == null) {
+                    cameraRequests = new ArrayList<RS232CmdRequest>();
+                    cmdRequests.put(processor, cameraRequests);
+                }
+                cameraRequests.add(cmdRequest);
+                count++;
+            }
+        }
+        logger.info("Sending batch of " + count + " commands");
+
+        if (async && count > 0) {
+            AsyncContext asyncContext = request.startAsync(request, response);
+            asyncContext.setTimeout(asyncTimeout * count);
+            asyncContext.addListener(responder);
+            responder.setAsyncContext(asyncContext);
+        }
+
+        for (Map.Entry<IProcessor, List<RS232CmdRequest>> entry : cmdRequests
+                .entrySet()) {
+            try {
+                entry.getKey().sendDataCommands(entry.getValue());
+            } catch (QueueFullException e) {
+                setRejected(response, entry.getKey(), e);
+                responder.rejected(entry.getValue());
+            }
+        }
+        if (async && count > 0) {
+            return;
+        }
+        synchronized (responder) {
+            writeResult(response, result);
+        }
+    }
+
+    /**
+     * Sets the status of a response to commands the camera's queue refused:
+     * 503 while the camera is not answering, otherwise 429, either way with
+     * the queue's estimated drain time as the Retry-After.
+     * 
+     * @param response
+     *            Http response to client
+     * @param processor
+     *            processor that refused the commands
+     * @param e
+     *            the refusal
+     */
+    private void setRejected(HttpServletResponse response,
+            IProcessor processor, QueueFullException e) {
+        logger.warn(e.getMessage());
+        response.setStatus(processor.isReady() ? SC_TOO_MANY_REQUESTS
+                : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After",
+                String.valueOf(Math.max(1, (e.getDrainTime() + 999) / 1000)));
+    }
+
+    /**
+     * Creates the request for a single command of a batch. Only commands
+     * that go straight to the camera, and preset moves, can be batched.
+     * 
+     * @param command
+     *            command from the batch
+     * @param dispatcher
+     *            dispatch table of the command's camera
+     * @return the request or null if the command can't be batched
+     */
+    private RS232CmdRequest createBatchRequest(Command command,
+            CommandDispatcher dispatcher) {
+        // only the servlet's own commands take an argument, e.g.
+        // SCAN_PRESETS::ON, and those can't be batched
+        if (command.getName() == null || command.hasArgs()) {
+            return null;
+        }
+        Entry entry = dispatcher.lookup(command.getName());
+        if (entry.getAction() == Action.PRESET
+                || entry.getAction() == Action.SEND) {
+            return entry.createRequest();
+        }
+        return null;
+    }
+
+    /**
+     * Answers the PRESETS command from the cached presets. The response
+     * carries an ETag so a client that already has the current presets gets
+     * a 304 with no body.
+     * 
+     * @param request
+     *            Http request from client
+     * @param response
+     *            Http response to client
+     * @throws Exception
+     */
+    private void writePresets(HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        String presetsFile = System.getProperty("jboss.home.dir")
+                + File.separator + "bin" + File.separator + "presets.json";
+        String jsonStr = Utils.loadFile(presetsFile);
+
+        PresetsResponse cached = presetsResponse;
+        // the same string instance is returned until the presets change
+        if (cached == null || cached.presetsJson != jsonStr) {
+            logger.debug("Returning json string: " + jsonStr);
+            JsonObject result = new JsonObject();
+            result.addProperty("PRESET_DATA", jsonStr);
+            result.addProperty("message", "JSON command is PRESETS");
+            cached = new PresetsResponse(jsonStr, gson.toJson(result));
+            presetsResponse = cached;
+        }
+
+        response.setHeader("ETag", cached.eTag);
+        response.setHeader("Cache-Control", "no-cache");
+        if (cached.eTag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(cached.body.length);
+        response.getOutputStream().write(cached.body);
+    }
+
+    /**
+     * Answers the STATUS command with the state of every configured camera,
+     * see <code>CameraRegistry.getStatus</code>.
+     * 
+     * @param result
+     *            json object to add the states to
+     * @param response
+     *            Http response to client
+     * @throws IOException
+     */
+    private void writeStatus(JsonObject result, HttpServletResponse response)
+            throws IOException {
+        JsonObject status = new JsonObject();
+        for (Map.Entry<String, String> entry : cameras.getStatus().entrySet()) {
+            status.addProperty(entry.getKey(), entry.getValue());
         }
-        logger.info("Shutting down socket");
-        processor.close();
+        result.addProperty("message", "JSON command is "
+                + CommandDispatcher.STATUS);
+        result.add("cameras", status);
+        writeResult(response, result);
+    }
+
+    /**
+     * Writes the json result to the client and closes the response.
+     * 
+     * @param response
+     *            Http response to client
+     * @param result
+     *            json object to send
+     * @throws IOException
+     */
+    private void writeResult(HttpServletResponse response, JsonObject result)
+            throws IOException {
+        PrintWriter out = response.getWriter();
+        String jsonResult = gson.toJson(result);
+        out.println(jsonResult);
+        out.flush();
+        out.close();
     }
 
     private String updatePresetData(byte presetNum, String text)
@@ -280,56 +537,190 @@ public class CamCtrlServlet extends HttpServlet {
         return Utils.updatePresetFile(number, text);
     }
 
-    class ThreadPerTaskExecutor implements Executor {
-        public void execute(Runnable r) {
-            new Thread(r).start();
+    /**
+     * Completes an asynchronous request when the camera answers the command,
+     * or when the request times out first. Only the first of the two writes
+     * the response.
+     */
+    class AsyncResponder implements RS232ResponseListener, AsyncListener {
+
+        private AsyncContext asyncContext;
+
+        private JsonObject result;
+
+        private AtomicBoolean completed = new AtomicBoolean(false);
+
+        AsyncResponder(AsyncContext asyncContext, JsonObject result) {
+            this.asyncContext = asyncContext;
+            this.result = result;
+        }
+
+        @Override
+        public void handleResponse(RS232CmdRequest request,
+                RS232CmdData response) {
+            complete(response.getName());
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            logger.warn("Timed out waiting for camera response");
+            complete("TIMEOUT");
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            logger.warn("Async request failed", event.getThrowable());
+            complete("ERROR");
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+
+        private void complete(String status) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                result.addProperty("response", status);
+                writeResult(
+                        (HttpServletResponse) asyncContext.getResponse(),
+                        result);
+            } catch (Exception e) {
+                logger.warn("Unable to write async response ", e);
+            } finally {
+                asyncContext.complete();
+            }
         }
     }
 
     /**
-     * This internal thread class is used to periodically move from preset to
-     * preset automatically when "scanning presets" is active.
-     * 
-     * @author bradnorris
-     * 
+     * Records the camera's response to each command of a batch. When the
+     * batch is async, the response is written once every command has been
+     * answered, or when the request times out first.
      */
-    static class ScanRunner implements Runnable {
+    class BatchResponder implements RS232ResponseListener, AsyncListener {
 
-        private boolean scanning = true;
+        private JsonObject result;
 
-        private static final Object lock = new Object();
+        private Map<RS232CmdRequest, JsonObject> cmdResults = new IdentityHashMap<RS232CmdRequest, JsonObject>();
 
-        @Override
-        public void run() {
-            while (scanning) {
-                // continuously loop through all presets
-                try {
-                    synchronized (lock) {
-                        for (int i = 0; i <= MAX_PRESETS && scanning; i++) {
-                            byte[] cmdArray = new byte[1];
-                            cmdArray[0] = (byte) i;
-                            logger.info("Sending preset move: " + i
-                                    + " in thread: " + this);
-                            processor.sendDataCommand("PRESET_MOVE", cmdArray);
-                            logger.info("sleeping");
-                            lock.wait(presetScanInterval);
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    logger.warn("Exiting scanning function " + e.getMessage());
+        private int remaining = 0;
+
+        private AsyncContext asyncContext;
+
+        private boolean completed = false;
+
+        BatchResponder(JsonObject result) {
+            this.result = result;
+        }
+
+        synchronized void add(RS232CmdRequest cmdRequest, JsonObject cmdResult) {
+            cmdResults.put(cmdRequest, cmdResult);
+            cmdRequest.setListener(this);
+            remaining++;
+        }
+
+        synchronized void setAsyncContext(AsyncContext asyncContext) {
+            this.asyncContext = asyncContext;
+        }
+
+        /**
+         * Records commands the camera's queue refused; they will never be
+         * answered.
+         */
+        synchronized void rejected(List<RS232CmdRequest> cmdRequests) {
+            for (RS232CmdRequest cmdRequest : cmdRequests) {
+                JsonObject cmdResult = cmdResults.remove(cmdRequest);
+                if (cmdResult != null) {
+                    cmdResult.addProperty("response",
+                            RS232CmdData.RESPONSE_REJECTED);
+                    remaining--;
                 }
             }
-            logger.info("Exiting scan thread: " + this);
+            if (remaining == 0 && asyncContext != null) {
+                complete();
+            }
+        }
+
+        @Override
+        public synchronized void handleResponse(RS232CmdRequest request,
+                RS232CmdData response) {
+            JsonObject cmdResult = cmdResults.get(request);
+            if (cmdResult != null) {
+                cmdResult.addProperty("response", response.getName());
+                remaining--;
+            }
+            if (remaining == 0 && asyncContext != null) {
+                complete();
+            }
+        }
+
+        @Override
+        public synchronized void onTimeout(AsyncEvent event)
+                throws IOException {
+            logger.warn("Timed out waiting for batch responses, " + remaining
+                    + " outstanding");
+            complete();
+        }
+
+        @Override
+        public synchronized void onError(AsyncEvent event) throws IOException {
+            logger.warn("Async batch request failed", event.getThrowable());
+            complete();
         }
 
-        public void destroy() {
-            scanning = false;
-            synchronized (lock) {
-                logger.info("Notifying scan thread to stop");
-                lock.notifyAll();
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+
+        private void complete() {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            try {
+                writeResult(
+                        (HttpServletResponse) asyncContext.getResponse(),
+                        result);
+            } catch (Exception e) {
+                logger.warn("Unable to write batch response ", e);
+            } finally {
+                asyncContext.complete();
             }
         }
+    }
+
+    /**
+     * Serialized response to the PRESETS command and its ETag.
+     */
+    static class PresetsResponse {
 
+        private String presetsJson;
+
+        private byte[] body;
+
+        private String eTag;
+
+        PresetsResponse(String presetsJson, String body) throws IOException {
+            this.presetsJson = presetsJson;
+            this.body = (body + "\n").getBytes("UTF-8");
+            this.eTag = "\"" + Utils.digest(presetsJson) + "\"";
+        }
+    }
+
+    class ThreadPerTaskExecutor implements Executor {
+        public void execute(Runnable r) {
+            new Thread(r).start();
+        }
     }
 
 }
@@ -0,0 +1,302 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+import com.google.gson.JsonObject;
+import com.onetouchis.camctrl.util.Utils;
+
+/**
+ * Fans camera responses and link status changes out to every connected event
+ * stream client. Each client has its own bounded buffer; when a client cannot
+ * keep up its oldest events are dropped, so the thread reading from the camera
+ * never waits on a slow client. Buffers are written to the clients by a small
+ * pool of writer threads.
+ */
+public class CamEventBroadcaster implements RS232ResponseListener {
+
+    private static Logger logger = Logger.getLogger(CamEventBroadcaster.class
+            .getName());
+
+    /** default number of events buffered per client */
+    private static final int DEFAULT_BUFFER_SIZE = 64;
+
+    /** default number of threads writing to clients */
+    private static final int DEFAULT_WRITER_THREADS = 2;
+
+    /** interval between keep alive comments sent to every client */
+    private static final long KEEP_ALIVE_INTERVAL = 15000;
+
+    private static final String KEEP_ALIVE = ": keep-alive\n\n";
+
+    private static final CamEventBroadcaster instance = new CamEventBroadcaster();
+
+    private List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    private int bufferSize = Integer.getInteger("wcc.events.buffer",
+            DEFAULT_BUFFER_SIZE);
+
+    /** writes buffered events to the clients and sends keep alives */
+    private ScheduledExecutorService writers;
+
+    private CamEventBroadcaster() {
+        writers = Executors.newScheduledThreadPool(Integer.getInteger(
+                "wcc.events.writers", DEFAULT_WRITER_THREADS),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "CamEventWriter");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        writers.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                publish(KEEP_ALIVE);
+            }
+        }, KEEP_ALIVE_INTERVAL, KEEP_ALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public static CamEventBroadcaster getInstance() {
+        return instance;
+    }
+
+    /**
+     * Adds a client to the broadcast. The client stays subscribed until its
+     * async context completes, times out or fails to be written.
+     *
+     * @param asyncContext
+     *            started async context of the client's event stream request
+     */
+    public void subscribe(AsyncContext asyncContext) {
+        Subscriber subscriber = new Subscriber(asyncContext);
+        asyncContext.addListener(subscriber);
+        subscribers.add(subscriber);
+        logger.info("Event stream client connected, " + subscribers.size()
+                + " clients");
+    }
+
+    /**
+     * Formats the response as an event and queues it for every client.
+     */
+    @Override
+    public void handleResponse(RS232CmdRequest request, RS232CmdData response) {
+        publishResponse(null, request, response);
+    }
+
+    /**
+     * Returns a listener that tags the events it publishes with a camera id.
+     *
+     * @param cameraId
+     *            id of the camera the listener will be registered with
+     * @return listener for the camera's responses
+     */
+    public RS232ResponseListener forCamera(final String cameraId) {
+        return new RS232ResponseListener() {
+            @Override
+            public void handleResponse(RS232CmdRequest request,
+                    RS232CmdData response) {
+                publishResponse(cameraId, request, response);
+            }
+        };
+    }
+
+    private void publishResponse(String cameraId, RS232CmdRequest request,
+            RS232CmdData response) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        JsonObject event = new JsonObject();
+        event.addProperty("type", getEventType(response.getName()));
+        if (cameraId != null) {
+            event.addProperty("camera", cameraId);
+        }
+        if (request != null) {
+            event.addProperty("command", request.getName());
+        }
+        if (response.getName().startsWith("RESPONSE")) {
+            byte[] code = new byte[] { response.getCode() };
+            event.addProperty("code", Utils.byteArrayToHexString(code));
+        }
+        event.addProperty("status", response.getName());
+        publish("data: " + Utils.gson.toJson(event) + "\n\n");
+    }
+
+    /**
+     * Completes every client's event stream.
+     */
+    public void close() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    /**
+     * Completes every client's event stream and stops the writer threads,
+     * which would otherwise outlive an undeployed application and keep its
+     * classes loaded.
+     */
+    public void shutdown() {
+        close();
+        writers.shutdownNow();
+    }
+
+    private void publish(String event) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(event);
+        }
+    }
+
+    private String getEventType(String name) {
+        if (RS232CmdData.RESPONSE_ACK.equals(name)) {
+            return "ack";
+        } else if (RS232CmdData.RESPONSE_SUCESS.equals(name)) {
+            return "complete";
+        } else if (RS232CmdData.RESPONSE_FAIL.equals(name)) {
+            return "nack";
+        } else if (RS232CmdData.RESPONSE_CANCELLED.equals(name)) {
+            return "cancelled";
+        } else if (RS232CmdData.RESPONSE_TIMEOUT.equals(name)) {
+            return "timeout";
+        } else if (RS232CmdData.RESPONSE_REJECTED.equals(name)) {
+            return "rejected";
+        }
+        return "status";
+    }
+
+    /**
+     * A single event stream client with its bounded buffer of events not yet
+     * written.
+     */
+    class Subscriber implements Runnable, AsyncListener {
+
+        private AsyncContext asyncContext;
+
+        private ArrayBlockingQueue<String> buffer = new ArrayBlockingQueue<String>(
+                bufferSize);
+
+        /** true while a writer thread owns this client */
+        private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private AtomicBoolean closed = new AtomicBoolean(false);
+
+        private AtomicLong dropped = new AtomicLong();
+
+        Subscriber(AsyncContext asyncContext) {
+            this.asyncContext = asyncContext;
+        }
+
+        /**
+         * Buffers the event, dropping the oldest when full, and makes sure a
+         * writer thread will pick it up. Never blocks.
+         */
+        void offer(String event) {
+            if (closed.get()) {
+                return;
+            }
+            while (!buffer.offer(event)) {
+                buffer.poll();
+                dropped.incrementAndGet();
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                writers.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                PrintWriter out = asyncContext.getResponse().getWriter();
+                String event;
+                while ((event = buffer.poll()) != null) {
+                    out.write(event);
+                }
+                out.flush();
+                if (out.checkError()) {
+                    logger.info("Event stream client went away");
+                    close();
+                }
+            } catch (Exception e) {
+                logger.log(Level.FINE, "Unable to write event stream", e);
+                close();
+            } finally {
+                scheduled.set(false);
+                if (!buffer.isEmpty() && !closed.get()) {
+                    schedule();
+                }
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                subscribers.remove(this);
+                if (dropped.get() > 0) {
+                    logger.info("Event stream client dropped " + dropped
+                            + " events");
+                }
+                try {
+                    asyncContext.complete();
+                } catch (IllegalStateException e) {
+                    // already completed by the container
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            closed.set(true);
+            subscribers.remove(this);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+    }
+}
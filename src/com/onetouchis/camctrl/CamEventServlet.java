@@ -0,0 +1,78 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This servlet streams camera responses to browsers as server sent events.
+ * The request is held open and handed to the <code>CamEventBroadcaster</code>,
+ * which pushes ACK, NACK, completion and link status events to it as they
+ * happen.
+ */
+public class CamEventServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Handles the HTTP <code>GET</code> method by starting an event stream.
+     *
+     * @param request
+     *            servlet request
+     * @param response
+     *            servlet response
+     * @throws ServletException
+     *             if a servlet-specific error occurs
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request,
+            HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.flushBuffer();
+
+        AsyncContext asyncContext = request.startAsync();
+        // the stream stays open until the client goes away
+        asyncContext.setTimeout(0);
+        CamEventBroadcaster.getInstance().subscribe(asyncContext);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Web Camera Event Stream";
+    }
+
+    @Override
+    public void destroy() {
+        CamEventBroadcaster.getInstance().close();
+    }
+}
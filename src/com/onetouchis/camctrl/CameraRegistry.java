@@ -0,0 +1,311 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Holds one camera command processor per camera, keyed by camera id. Each
+ * processor has its own socket and queue, so the cameras run independently
+ * of each other; an RS232NioProcessor serves its socket from an event loop
+ * shared with the other cameras instead of threads of its own, and an
+ * RS232SerialProcessor drives the local serial port named by its comm port
+ * rather than a socket.
+ *
+ * Cameras are listed by id in the "wcc.cameras" system property, e.g.
+ * "lobby,stage". Each camera is configured with "wcc.camera.&lt;id&gt;.host",
+ * ".port", ".comm.port" and ".processor", falling back to the global
+ * "wcc.rs232.*" properties. Without "wcc.cameras" a single camera named
+ * "default" is configured from the global properties. For an
+ * RS232NetProcessor the host may list redundant ser2net endpoints as
+ * "host[:port],host[:port]", in order of preference.
+ *
+ * The registry is created once per web application, when it is deployed,
+ * and kept as a servlet context attribute; see <code>start</code>.
+ */
+public class CameraRegistry {
+
+    private static Logger logger = Logger.getLogger(CameraRegistry.class
+            .getName());
+
+    /** servlet context attribute holding the registry */
+    public static final String CONTEXT_ATTRIBUTE = CameraRegistry.class
+            .getName();
+
+    /** id of the camera when only the global properties are used */
+    public static final String DEFAULT_CAMERA = "default";
+
+    /** default ip address when using a network based processor */
+    private static final String DEFAULT_RS232_HOST = "192.168.1.148";
+
+    /** default port when using a network based processor */
+    private static final int DEFAULT_CAM_PORT = 3002;
+
+    /** default port name when using COMM based processor */
+    private static final String DEFAULT_COMM_PORT = "/dev/ttyS0";
+
+    /** default RS232 processing class to instanciate */
+    private static final String DEFAULT_PROCESSOR_CLASS = "com.onetouchis.camctrl.RS232NetProcessor";
+
+    /** processors by camera id, in configuration order */
+    private Map<String, IProcessor> processors = Collections
+            .synchronizedMap(new LinkedHashMap<String, IProcessor>());
+
+    /** dispatch tables built from each camera's command catalog */
+    private Map<String, CommandDispatcher> dispatchers = Collections
+            .synchronizedMap(new HashMap<String, CommandDispatcher>());
+
+    /** every configured camera id, including cameras still starting */
+    private List<String> cameraIds = new ArrayList<String>();
+
+    /** cameras whose processor could not be created */
+    private Set<String> failed = Collections
+            .synchronizedSet(new HashSet<String>());
+
+    /** camera used when a command does not name one */
+    private String defaultCamera;
+
+    private boolean closed = false;
+
+    /**
+     * Returns the web application's registry, creating and initializing it
+     * the first time. Safe to call from any number of threads; the cameras
+     * are only set up once.
+     *
+     * @param context
+     *            context of the web application
+     * @return the registry
+     */
+    public static CameraRegistry start(ServletContext context) {
+        synchronized (context) {
+            CameraRegistry registry = (CameraRegistry) context
+                    .getAttribute(CONTEXT_ATTRIBUTE);
+            if (registry == null) {
+                registry = new CameraRegistry();
+                registry.initialize(context);
+                context.setAttribute(CONTEXT_ATTRIBUTE, registry);
+            }
+            return registry;
+        }
+    }
+
+    /**
+     * Starts creating the processor for every configured camera and returns
+     * without waiting for them. The cameras are initialized in parallel so a
+     * slow camera does not hold up the others. A processor is added whether
+     * or not its camera can be reached yet; it keeps connecting on its own.
+     * Until its processor is created a camera is reported as starting, and a
+     * camera whose processor cannot be created at all, such as one naming a
+     * processor class that does not exist, as failed.
+     *
+     * @param context
+     *            context of the servlet, passed on to the processors
+     */
+    public void initialize(final ServletContext context) {
+        String cameras = System.getProperty("wcc.cameras");
+        if (cameras == null || cameras.trim().length() == 0) {
+            cameraIds.add(DEFAULT_CAMERA);
+        } else {
+            for (String id : cameras.split(",")) {
+                if (id.trim().length() > 0) {
+                    cameraIds.add(id.trim());
+                }
+            }
+        }
+        defaultCamera = System.getProperty("wcc.camera.default",
+                cameraIds.get(0));
+
+        ExecutorService executor = Executors.newFixedThreadPool(cameraIds
+                .size());
+        for (final String id : cameraIds) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        add(id, createProcessor(id, context));
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE,
+                                "Unable to create processor for camera " + id,
+                                e);
+                        failed.add(id);
+                    }
+                }
+            });
+        }
+        // the threads exit once every camera has been created
+        executor.shutdown();
+    }
+
+    /**
+     * Makes a created processor available, unless the registry was closed
+     * while the processor was being created.
+     */
+    private void add(String id, IProcessor processor) {
+        synchronized (processors) {
+            if (closed) {
+                processor.close();
+                return;
+            }
+            dispatchers.put(id, new CommandDispatcher(processor.getCommands()));
+            processors.put(id, processor);
+        }
+    }
+
+    /**
+     * Creates the processor for a single camera from its properties.
+     *
+     * @param id
+     *            camera id
+     * @param context
+     *            context of the servlet
+     * @return initialized processor
+     * @throws Exception
+     */
+    private IProcessor createProcessor(String id, ServletContext context)
+            throws Exception {
+        String rs232Host = getProperty(id, "host", System.getProperty(
+                "wcc.rs232.net.host", DEFAULT_RS232_HOST));
+        int rs232IpPort = Integer.parseInt(getProperty(id, "port",
+                String.valueOf(Integer.getInteger("wcc.rs232.net.port",
+                        DEFAULT_CAM_PORT))));
+        String rs232CommPort = getProperty(id, "comm.port", System.getProperty(
+                "wcc.rs232.comm.port", DEFAULT_COMM_PORT));
+        String processorClass = getProperty(id, "processor", System
+                .getProperty("wcc.rs232.processor", DEFAULT_PROCESSOR_CLASS));
+
+        logger.info("Creating IProcessor class: " + processorClass
+                + " for camera " + id);
+        Class<?> procClass = Class.forName(processorClass);
+        IProcessor processor = (IProcessor) procClass.newInstance();
+        processor.setContext(context);
+        processor.addResponseListener(CamEventBroadcaster.getInstance()
+                .forCamera(id));
+        processor.initialize(rs232Host, rs232IpPort, rs232CommPort);
+        return processor;
+    }
+
+    private String getProperty(String id, String name, String defaultValue) {
+        return System.getProperty("wcc.camera." + id + "." + name,
+                defaultValue);
+    }
+
+    /**
+     * Returns the processor for a camera.
+     *
+     * @param cameraId
+     *            camera id, or null for the default camera
+     * @return the processor or null if there is no such camera
+     */
+    public IProcessor getProcessor(String cameraId) {
+        if (cameraId == null) {
+            cameraId = defaultCamera;
+        }
+        return processors.get(cameraId);
+    }
+
+    /**
+     * Returns the dispatch table for a camera's commands.
+     *
+     * @param cameraId
+     *            camera id, or null for the default camera
+     * @return the dispatch table or null if there is no such camera
+     */
+    public CommandDispatcher getDispatcher(String cameraId) {
+        if (cameraId == null) {
+            cameraId = defaultCamera;
+        }
+        return dispatchers.get(cameraId);
+    }
+
+    /**
+     * @param cameraId
+     *            camera id, or null for the default camera
+     * @return true if the camera is configured, even if it is still
+     *         starting, unless its processor could not be created
+     */
+    public boolean isConfigured(String cameraId) {
+        if (cameraId == null) {
+            cameraId = defaultCamera;
+        }
+        return cameraIds.contains(cameraId) && !failed.contains(cameraId);
+    }
+
+    /**
+     * Reports every configured camera as READY once it has answered, and
+     * otherwise by the state of its link: CONNECTED before the camera has
+     * answered, CONNECTING before the link has ever been up, DISCONNECTED
+     * while reconnecting and UNAVAILABLE while commands are refused. A
+     * camera is STARTING until its processor has been created and FAILED if
+     * it could not be. Never blocks on the cameras.
+     *
+     * @return state of each camera by id, in configuration order
+     */
+    public Map<String, String> getStatus() {
+        Map<String, String> status = new LinkedHashMap<String, String>();
+        for (String id : cameraIds) {
+            IProcessor processor = processors.get(id);
+            if (processor == null) {
+                status.put(id, failed.contains(id) ? "FAILED" : "STARTING");
+            } else {
+                status.put(id, processor.isReady() ? "READY" : processor
+                        .getLinkState().name());
+            }
+        }
+        return status;
+    }
+
+    /**
+     * @return ids of the cameras that were initialized
+     */
+    public Set<String> getCameraIds() {
+        synchronized (processors) {
+            return new LinkedHashSet<String>(processors.keySet());
+        }
+    }
+
+    public String getDefaultCamera() {
+        return defaultCamera;
+    }
+
+    /**
+     * Closes every camera's processor.
+     */
+    public void close() {
+        synchronized (processors) {
+            closed = true;
+            for (Map.Entry<String, IProcessor> entry : processors.entrySet()) {
+                logger.info("Closing camera " + entry.getKey());
+                entry.getValue().close();
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Maps the command strings sent by clients to what the servlet should do with
+ * them. The table is built once from a camera's command catalog, so handling
+ * a request is a single map lookup: preset numbers already have their
+ * argument bytes, and camera commands already have their command data.
+ */
+public class CommandDispatcher {
+
+    /** highest preset number the camera supports */
+    public static final int MAX_PRESETS = 9;
+
+    /** asks for the state of the cameras; answered without a camera */
+    public static final String STATUS = "STATUS";
+
+    /** separates a command from its argument, e.g. "SCAN_PRESETS::ON" */
+    private static final String ARG_SEPARATOR = "::";
+
+    /**
+     * What the servlet does with a command.
+     */
+    public enum Action {
+        /** return the preset names */
+        PRESETS,
+        /** move to, or store, a preset position */
+        PRESET,
+        /** the next preset command stores the position */
+        PRESET_STORE,
+        /** start or stop the default preset tour */
+        SCAN_PRESETS,
+        /** start the preset tour named by the argument */
+        TOUR_START,
+        /** stop the preset tour */
+        TOUR_STOP,
+        /** send the command to the camera */
+        SEND,
+        /** reject the command, e.g. a preset number the camera doesn't have */
+        INVALID
+    }
+
+    private Map<String, Entry> table = new HashMap<String, Entry>();
+
+    /**
+     * Builds the dispatch table.
+     *
+     * @param commands
+     *            command catalog of the camera's processor
+     */
+    public CommandDispatcher(Collection<RS232CmdData> commands) {
+        Map<String, RS232CmdData> catalog = new HashMap<String, RS232CmdData>();
+        for (RS232CmdData cmdData : commands) {
+            catalog.put(cmdData.getName(), cmdData);
+            table.put(cmdData.getName(), new Entry(cmdData.getName(),
+                    Action.SEND, cmdData, null));
+        }
+        for (int i = 0; i <= MAX_PRESETS; i++) {
+            Entry entry = new Entry(RS232CmdData.PRESET_MOVE, Action.PRESET,
+                    catalog.get(RS232CmdData.PRESET_MOVE),
+                    new byte[] { (byte) i });
+            entry.storeCmdData = catalog.get(RS232CmdData.PRESET_STORE);
+            table.put(String.valueOf(i), entry);
+        }
+        table.put("PRESETS", new Entry("PRESETS", Action.PRESETS, null, null));
+        table.put(RS232CmdData.PRESET_STORE, new Entry(
+                RS232CmdData.PRESET_STORE, Action.PRESET_STORE, null, null));
+        table.put("SCAN_PRESETS", new Entry("SCAN_PRESETS",
+                Action.SCAN_PRESETS, null, null));
+        table.put("TOUR_START", new Entry("TOUR_START", Action.TOUR_START,
+                null, null));
+        table.put("TOUR_STOP", new Entry("TOUR_STOP", Action.TOUR_STOP,
+                null, null));
+    }
+
+    /**
+     * Looks up a command. Any number is taken as a preset, so "05" moves to
+     * preset 5, and a number above MAX_PRESETS is rejected. Other commands
+     * that aren't in the table are still sent to the camera so that the
+     * processor can report them as unknown.
+     *
+     * @param name
+     *            command name without its argument
+     * @return the table entry
+     */
+    public Entry lookup(String name) {
+        Entry entry = table.get(name);
+        if (entry == null && isNumber(name)) {
+            int start = 0;
+            while (start < name.length() - 1 && name.charAt(start) == '0') {
+                start++;
+            }
+            entry = table.get(name.substring(start));
+            if (entry == null) {
+                entry = new Entry(name, Action.INVALID, null, null);
+            }
+        }
+        if (entry == null) {
+            entry = new Entry(name, Action.SEND, null, null);
+        }
+        return entry;
+    }
+
+    private static boolean isNumber(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return name.length() > 0;
+    }
+
+    /**
+     * Reads a single command object or an array of command objects.
+     *
+     * @param json
+     *            json from the request
+     * @return the commands in order; one for a single command object
+     * @throws IOException
+     *             if the json is not valid
+     */
+    public static List<Command> readCommands(String json) throws IOException {
+        List<Command> commands = new ArrayList<Command>(1);
+        JsonReader reader = new JsonReader(new StringReader(json));
+        try {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    commands.add(readCommand(reader));
+                }
+                reader.endArray();
+            } else {
+                commands.add(readCommand(reader));
+            }
+        } finally {
+            reader.close();
+        }
+        return commands;
+    }
+
+    /**
+     * @param json
+     *            json from the request
+     * @return true if the json is an array of commands
+     */
+    public static boolean isBatch(String json) {
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '[';
+            }
+        }
+        return false;
+    }
+
+    private static Command readCommand(JsonReader reader) throws IOException {
+        Command command = new Command();
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return command;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if ("command".equals(field)) {
+                command.setCommand(reader.nextString());
+            } else if ("camera".equals(field)) {
+                command.camera = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return command;
+    }
+
+    /**
+     * A command as sent by a client.
+     */
+    public static class Command {
+
+        /** command as sent, including any argument */
+        private String command;
+
+        /** command without its argument */
+        private String name;
+
+        /** text after the "::" separator, empty if there is none */
+        private String args = "";
+
+        /** camera to send the command to, null for the default camera */
+        private String camera;
+
+        private void setCommand(String command) {
+            this.command = command;
+            int separator = command.indexOf(ARG_SEPARATOR);
+            if (separator >= 0) {
+                name = command.substring(0, separator);
+                args = command.substring(separator + ARG_SEPARATOR.length());
+            } else {
+                name = command;
+            }
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getArgs() {
+            return args;
+        }
+
+        /**
+         * @return true if the command carried an argument after the "::"
+         *         separator, even an empty one
+         */
+        public boolean hasArgs() {
+            return command != null && command.contains(ARG_SEPARATOR);
+        }
+
+        public String getCamera() {
+            return camera;
+        }
+    }
+
+    /**
+     * An entry of the dispatch table. Entries are shared between requests and
+     * never modified.
+     */
+    public static class Entry {
+
+        /** name of the camera command to send */
+        private String cmdName;
+
+        private Action action;
+
+        /** command data from the catalog, null if not a catalog command */
+        private RS232CmdData cmdData;
+
+        /** prebuilt arguments, e.g. the preset number */
+        private byte[] arguments;
+
+        /** command data used to store a preset position */
+        private RS232CmdData storeCmdData;
+
+        Entry(String cmdName, Action action, RS232CmdData cmdData,
+                byte[] arguments) {
+            this.cmdName = cmdName;
+            this.action = action;
+            this.cmdData = cmdData;
+            this.arguments = arguments;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * @return preset number of a PRESET entry
+         */
+        public int getPresetNumber() {
+            return arguments[0];
+        }
+
+        /**
+         * Creates a request for the camera command of this entry. The command
+         * data is already resolved when the command is in the catalog.
+         *
+         * @return new request
+         */
+        public RS232CmdRequest createRequest() {
+            RS232CmdRequest cmdRequest = new RS232CmdRequest(cmdName, arguments);
+            cmdRequest.setCmdData(cmdData);
+            return cmdRequest;
+        }
+
+        /**
+         * @return a request to store the current position as this entry's
+         *         preset
+         */
+        public RS232CmdRequest createStoreRequest() {
+            RS232CmdRequest cmdRequest = new RS232CmdRequest(
+                    RS232CmdData.PRESET_STORE, arguments);
+            cmdRequest.setCmdData(storeCmdData);
+            return cmdRequest;
+        }
+    }
+}
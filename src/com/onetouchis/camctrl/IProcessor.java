@@ -17,6 +17,9 @@
  */
 package com.onetouchis.camctrl;
 
+import java.util.Collection;
+import java.util.List;
+
 import javax.servlet.ServletContext;
 
 /**
@@ -56,6 +59,8 @@ public interface IProcessor {
      * 
      * @param cmdStr
      *            a single camera command as defined by the commands.cvs file.
+     * @throws QueueFullException
+     *             if the processor's queue is full
      */
     public void sendDataCommand(String cmdStr);
 
@@ -68,9 +73,78 @@ public interface IProcessor {
      *            file.
      * @param arguments
      *            arguments associated with the camera command
+     * @throws QueueFullException
+     *             if the processor's queue is full
      */
     public void sendDataCommand(String cmdStr, byte[] arguments);
 
+    /**
+     * Used to send a command request to the camera command processor. The
+     * request's listener, if any, is notified from the processor's own thread
+     * once the camera has answered, so the caller does not need to wait.
+     * 
+     * @param cmdRequest
+     *            command name, arguments and optional response listener
+     * @throws QueueFullException
+     *             if the processor's queue is full; the request's listener
+     *             is not notified
+     */
+    public void sendDataCommand(RS232CmdRequest cmdRequest);
+
+    /**
+     * Used to send an ordered list of command requests to the camera command
+     * processor in one step. Commands from other callers are never
+     * interleaved with the list.
+     * 
+     * @param cmdRequests
+     *            requests to send, in order
+     * @throws QueueFullException
+     *             if the processor's queue has no room for all of the
+     *             requests; none of them are sent or notified
+     */
+    public void sendDataCommands(List<RS232CmdRequest> cmdRequests);
+
+    /**
+     * Returns the command catalog loaded by the processor, used to build the
+     * servlet's dispatch table. The command data must not be modified.
+     * 
+     * @return every command the processor can send
+     */
+    public Collection<RS232CmdData> getCommands();
+
+    /**
+     * Registers a listener that is notified of every response from the
+     * camera, including responses to requests made by other clients, and of
+     * changes to the state of the link to the camera.
+     * 
+     * @param listener
+     *            listener to add
+     */
+    public void addResponseListener(RS232ResponseListener listener);
+
+    /**
+     * Tells whether the camera has answered the processor since it connected.
+     * Must not block; commands sent before the processor is ready are queued.
+     * 
+     * @return true once the camera has answered the identifier command
+     */
+    public boolean isReady();
+
+    /**
+     * Tells the state of the link to the camera. Must not block.
+     * 
+     * @return state of the link
+     */
+    public LinkState getLinkState();
+
+    /**
+     * Returns the command latency histograms and link counters kept by the
+     * processor, exposed by the <code>MetricsServlet</code>.
+     * 
+     * @return metrics or null if the processor keeps none
+     */
+    public RS232Metrics getMetrics();
+
     /**
      * Used to pass the servlet context from the servlet to the camera command
      * processor allowing the processor access to resources.
@@ -84,4 +158,18 @@ public interface IProcessor {
      * Used to stop all running threads, such as a socket listener.
      */
     public void close();
+
+    /**
+     * State of a processor's link to its camera.
+     */
+    public enum LinkState {
+        /** not connected yet since the processor started */
+        CONNECTING,
+        /** connected, the camera may not have answered yet */
+        CONNECTED,
+        /** the link was up and has been lost, reconnecting */
+        DISCONNECTED,
+        /** reconnecting has failed too often and commands are refused */
+        UNAVAILABLE
+    }
 }
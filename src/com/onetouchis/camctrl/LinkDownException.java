@@ -0,0 +1,40 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+/**
+ * Thrown by a processor that refuses a command because the link to its
+ * camera is down and has failed to reconnect often enough to open the
+ * circuit breaker. It is a kind of <code>QueueFullException</code> so
+ * callers back off from a dead link the same way they back off from a full
+ * queue; the drain time is the time until the next attempt to reconnect.
+ */
+public class LinkDownException extends QueueFullException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message
+     *            description of the refused command
+     * @param retryAfter
+     *            time until the next attempt to reconnect, in milliseconds
+     */
+    public LinkDownException(String message, long retryAfter) {
+        super(message, retryAfter);
+    }
+}
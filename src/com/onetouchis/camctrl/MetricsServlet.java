@@ -0,0 +1,208 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.onetouchis.camctrl.RS232Endpoints.Endpoint;
+import com.onetouchis.camctrl.RS232Metrics.Histogram;
+
+/**
+ * This servlet writes every camera's command latencies and link counters in
+ * the Prometheus text format, so they can be scraped or simply read in a
+ * browser. Commands that have never been sent are left out.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private CameraRegistry cameras;
+
+    @Override
+    public void init() throws ServletException {
+        cameras = CameraRegistry.start(getServletContext());
+    }
+
+    /**
+     * Handles the HTTP <code>GET</code> method by writing the metrics.
+     *
+     * @param request
+     *            servlet request
+     * @param response
+     *            servlet response
+     * @throws ServletException
+     *             if a servlet-specific error occurs
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request,
+            HttpServletResponse response) throws ServletException, IOException {
+        Map<String, RS232Metrics> metrics = new LinkedHashMap<String, RS232Metrics>();
+        for (String id : cameras.getCameraIds()) {
+            IProcessor processor = cameras.getProcessor(id);
+            if (processor != null && processor.getMetrics() != null) {
+                metrics.put(id, processor.getMetrics());
+            }
+        }
+
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+
+        out.println("# HELP wcc_command_latency_seconds Time camera commands spend in each phase.");
+        out.println("# TYPE wcc_command_latency_seconds histogram");
+        for (Map.Entry<String, RS232Metrics> entry : metrics.entrySet()) {
+            for (Map.Entry<String, Histogram[]> command : entry.getValue()
+                    .getHistograms().entrySet()) {
+                Histogram[] phases = command.getValue();
+                for (int phase = 0; phase < phases.length; phase++) {
+                    writeHistogram(out, "camera=\"" + entry.getKey()
+                            + "\",command=\"" + command.getKey()
+                            + "\",phase=\"" + RS232Metrics.PHASES[phase]
+                            + "\"", phases[phase]);
+                }
+            }
+        }
+
+        out.println("# HELP wcc_queue_depth Commands waiting to be sent.");
+        out.println("# TYPE wcc_queue_depth gauge");
+        for (Map.Entry<String, RS232Metrics> entry : metrics.entrySet()) {
+            out.println("wcc_queue_depth{camera=\"" + entry.getKey() + "\"} "
+                    + entry.getValue().getQueueDepth());
+        }
+
+        out.println("# HELP wcc_link_utilization Fraction of the last second the serial line was busy.");
+        out.println("# TYPE wcc_link_utilization gauge");
+        for (Map.Entry<String, RS232Metrics> entry : metrics.entrySet()) {
+            out.println("wcc_link_utilization{camera=\"" + entry.getKey()
+                    + "\",direction=\"tx\"} "
+                    + entry.getValue().getTxUtilization());
+            out.println("wcc_link_utilization{camera=\"" + entry.getKey()
+                    + "\",direction=\"rx\"} "
+                    + entry.getValue().getRxUtilization());
+        }
+
+        out.println("# HELP wcc_endpoint_up Whether a ser2net endpoint accepted its last connection or check.");
+        out.println("# TYPE wcc_endpoint_up gauge");
+        for (Map.Entry<String, RS232Metrics> entry : metrics.entrySet()) {
+            RS232Endpoints endpoints = entry.getValue().getEndpoints();
+            if (endpoints == null) {
+                continue;
+            }
+            for (Endpoint endpoint : endpoints.getEndpoints()) {
+                out.println("wcc_endpoint_up{camera=\"" + entry.getKey()
+                        + "\",endpoint=\"" + endpoint + "\"} "
+                        + (endpoint.isUp() ? 1 : 0));
+            }
+        }
+
+        out.println("# HELP wcc_endpoint_active Whether a ser2net endpoint is the one in use.");
+        out.println("# TYPE wcc_endpoint_active gauge");
+        for (Map.Entry<String, RS232Metrics> entry : metrics.entrySet()) {
+            RS232Endpoints endpoints = entry.getValue().getEndpoints();
+            if (endpoints == null) {
+                continue;
+            }
+            Endpoint active = endpoints.getActive();
+            for (Endpoint endpoint : endpoints.getEndpoints()) {
+                out.println("wcc_endpoint_active{camera=\"" + entry.getKey()
+                        + "\",endpoint=\"" + endpoint + "\"} "
+                        + (endpoint == active ? 1 : 0));
+            }
+        }
+
+        out.println("# HELP wcc_nacks_total Commands rejected by the camera.");
+        out.println("# TYPE wcc_nacks_total counter");
+        for (Map.Entry<String, RS232Metrics> entry : metrics.entrySet()) {
+            out.println("wcc_nacks_total{camera=\"" + entry.getKey() + "\"} "
+                    + entry.getValue().getNacks());
+        }
+
+        out.println("# HELP wcc_reconnects_total Times the camera socket was reconnected.");
+        out.println("# TYPE wcc_reconnects_total counter");
+        for (Map.Entry<String, RS232Metrics> entry : metrics.entrySet()) {
+            out.println("wcc_reconnects_total{camera=\"" + entry.getKey()
+                    + "\"} " + entry.getValue().getReconnects());
+        }
+
+        out.println("# HELP wcc_rejected_commands_total Commands refused or shed because the queue was full.");
+        out.println("# TYPE wcc_rejected_commands_total counter");
+        for (Map.Entry<String, RS232Metrics> entry : metrics.entrySet()) {
+            out.println("wcc_rejected_commands_total{camera=\"" + entry.getKey()
+                    + "\"} " + entry.getValue().getRejects());
+        }
+
+        out.println("# HELP wcc_pacing_wait_seconds_total Time the queue held commands back to pace the camera.");
+        out.println("# TYPE wcc_pacing_wait_seconds_total counter");
+        for (Map.Entry<String, RS232Metrics> entry : metrics.entrySet()) {
+            out.println("wcc_pacing_wait_seconds_total{camera=\""
+                    + entry.getKey() + "\"} "
+                    + entry.getValue().getPacingWaitNanos() / NANOS_PER_SECOND);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the cumulative buckets, sum and count of a histogram, unless it
+     * is empty.
+     */
+    private void writeHistogram(PrintWriter out, String labels,
+            Histogram histogram) {
+        long[] counts = histogram.getCounts();
+        long count = 0;
+        for (long bucket : counts) {
+            count += bucket;
+        }
+        if (count == 0) {
+            return;
+        }
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            out.println("wcc_command_latency_seconds_bucket{" + labels
+                    + ",le=\"" + RS232Metrics.BUCKET_BOUNDS[i] + "\"} "
+                    + cumulative);
+        }
+        out.println("wcc_command_latency_seconds_sum{" + labels + "} "
+                + histogram.getSumNanos() / NANOS_PER_SECOND);
+        out.println("wcc_command_latency_seconds_count{" + labels + "} "
+                + count);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Web Camera Metrics";
+    }
+}
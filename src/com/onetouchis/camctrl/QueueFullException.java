@@ -0,0 +1,46 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+/**
+ * Thrown by a processor that refuses a command because its queue is full.
+ * Carries the processor's estimate of how long the queue will take to drain
+ * so the caller can tell its client when to try again.
+ */
+public class QueueFullException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** estimated time until the queue has drained, in milliseconds */
+    private long drainTime;
+
+    /**
+     * @param message
+     *            description of the refused command
+     * @param drainTime
+     *            estimated time until the queue has drained, in milliseconds
+     */
+    public QueueFullException(String message, long drainTime) {
+        super(message);
+        this.drainTime = drainTime;
+    }
+
+    public long getDrainTime() {
+        return drainTime;
+    }
+}
@@ -19,46 +19,241 @@
 package com.onetouchis.camctrl;
 
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.TimerTask;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * This class wraps a linked blocking queue to send subsequent commands after a
- * response has been received from a previous command. An extra delay is also
- * included after the response is received. This class listens for responses to
- * commands to determine if it's ok to send the next.
+ * This class wraps a queue to send subsequent commands after a
+ * response has been received from a previous command. Each command is only
+ * released once the camera has answered the previous one, its ACK or its
+ * completion code, and the gap after that answer has passed. Nothing polls;
+ * the thread sending commands wakes up when a command is offered, a response
+ * arrives or a deadline passes, and the reader thread never sleeps.
+ * 
+ * Commands wait in lanes by priority, so stops go out ahead of everything
+ * else. Commands answered by an ACK alone may be pipelined, and commands the
+ * camera rejects or does not answer are sent again a few times before their
+ * listeners are told they failed. Redundant commands are removed by a
+ * <code>RS232QueueOptimizer</code>, and a full queue refuses or sheds
+ * commands. The queue outlives the connection it sends on: see
+ * <code>disconnected</code> and <code>connected</code>.
  * 
  * @author bradnorris
  * 
  */
 public class RS232BlockingQ implements RS232ReaderListener {
 
-    /** time after response from previous command and next command can be sent */
-    private static int WAIT_TIME_AFTER_RESPONSE = -50;
+    /** response code sent by the camera when it rejects a command */
+    private static final byte NACK = (byte) 0xB4;
+
+    /** returned by getReadyDelay when there is nothing to send */
+    public static final long IDLE = Long.MAX_VALUE;
+
+    /** default gap after an answer, for commands without their own delay */
+    private static final long DEFAULT_RESPONSE_GAP = 50;
+
+    /** default time to wait for a command's ACK */
+    private static final long DEFAULT_RESPONSE_TIMEOUT = 1000;
+
+    /** default time to wait for a completion code after the ACK */
+    private static final long DEFAULT_COMPLETION_TIMEOUT = 5000;
+
+    /** default time the camera is left alone after a NACK */
+    private static final long DEFAULT_NACK_BACKOFF = 250;
+
+    /** default number of interactive commands sent per background command */
+    private static final int DEFAULT_INTERACTIVE_WEIGHT = 4;
+
+    /** default number of ACK only commands that may be in flight at once */
+    private static final int DEFAULT_WINDOW = 1;
+
+    /** default number of times a failed command is sent again */
+    private static final int DEFAULT_RETRIES = 2;
+
+    /** most times the retry backoff is doubled */
+    private static final int MAX_BACKOFF_DOUBLINGS = 4;
+
+    /** default number of interactive and background commands queued */
+    private static final int DEFAULT_CAPACITY = 64;
+
+    /** assumed time to send a command until one has been measured */
+    private static final long DEFAULT_SERVICE_TIME = 200;
+
+    /** default wait strategy of the sending thread when the ring is used */
+    private static final String DEFAULT_WAIT_STRATEGY = "BLOCKING";
+
+    /**
+     * What to do with a command offered to a full queue.
+     */
+    public enum OverflowPolicy {
+        /** refuse the new command */
+        REJECT,
+        /** shed the command that has been queued the longest */
+        DROP_OLDEST,
+        /** shed the oldest command of the lowest priority */
+        DROP_LOWEST
+    }
 
     private Logger logger = Logger.getLogger(RS232BlockingQ.class.getName());
 
-    /** main queue this class wraps */
-    private LinkedBlockingQueue<RS232CmdData> queue = new LinkedBlockingQueue<RS232CmdData>();
+    /**
+     * queued commands indexed by priority, guarded by lock. Stops are
+     * emergencies and released before anything else, so how long a stop
+     * waits does not depend on how many commands are queued. Interactive
+     * commands come next, with background commands (tours, polling) let
+     * through now and then so they are never starved.
+     */
+    private List<Deque<RS232CmdRequest>> lanes = new ArrayList<Deque<RS232CmdRequest>>();
+
+    /** false to queue every command in the interactive lane, in order */
+    private boolean prioritize = Boolean.parseBoolean(System.getProperty(
+            "wcc.queue.lanes", "true"));
+
+    private int interactiveWeight = Integer.getInteger(
+            "wcc.queue.interactive.weight", DEFAULT_INTERACTIVE_WEIGHT);
+
+    /** interactive commands released since the last background command */
+    private int interactiveRun = 0;
+
+    /**
+     * removes redundant commands from the queue, null if
+     * "wcc.queue.optimize" is false
+     */
+    private RS232QueueOptimizer optimizer;
+
+    /** commands the optimizer has just cancelled, guarded by lock */
+    private List<RS232CmdRequest> cancelled = new ArrayList<RS232CmdRequest>();
+
+    /**
+     * commands given up on while the queue was locked, answered once it has
+     * been unlocked so a slow listener never holds up the queue, and with a
+     * listener executor every other response too, waiting for the executor
+     * to pass them on
+     */
+    private Answers answers = new Answers();
+
+    /** the response for each outcome a command is given up on with */
+    private Map<String, RS232CmdData> outcomes = new HashMap<String, RS232CmdData>();
+
+    /** true while the listener executor has been given the answers to pass on */
+    private AtomicBoolean delivering = new AtomicBoolean();
+
+    /**
+     * passes every waiting answer on to the listeners; handed to the listener
+     * executor, only when it is not already running or waiting to run, so
+     * the answers are passed on in order and without a task for each
+     */
+    private final Runnable delivery = new Runnable() {
+        @Override
+        public void run() {
+            do {
+                while (true) {
+                    try {
+                        if (!deliverNext()) {
+                            break;
+                        }
+                    } catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "Exception in listener: ", e);
+                    }
+                }
+                delivering.set(false);
+                // an answer added after the last one was taken but before
+                // the flag was cleared would otherwise wait for the next one
+            } while (!answers.isEmpty() && delivering.compareAndSet(false, true));
+        }
+    };
 
-    /** response from camera to a command */
-    private RS232CmdData cmdResponse;
+    /** requests sent and waiting for a response, oldest first */
+    private Deque<RS232CmdRequest> inFlight = new ArrayDeque<RS232CmdRequest>();
+
+    /**
+     * most commands answered by an ACK alone that are sent without waiting
+     * for the answers to the ones before; their answers are matched to them
+     * in the order they were sent. Any other command is only sent with
+     * nothing else in flight.
+     */
+    private int window = Math.max(1, Integer.getInteger("wcc.queue.window",
+            DEFAULT_WINDOW));
+
+    /**
+     * true while commands in flight were sent without waiting for the ones
+     * before them; their ACKs are all the same byte, so a lost one cannot be
+     * told apart from a late one
+     */
+    private boolean windowShared = false;
 
     /** listens for responses from a socket */
     private RS232Reader reader;
 
-    /** minimum time between commands */
-    private int delay = 200;
+    /** minimum time between commands, in nanoseconds */
+    private long delay = 0;
+
+    /** nanoTime before which the next command must not be sent */
+    private long releaseTime = System.nanoTime();
+
+    /** nanoTime at which the oldest command in flight is given up on */
+    private long responseDeadline;
+
+    private long responseGap = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "wcc.queue.response.gap", DEFAULT_RESPONSE_GAP));
+
+    private long responseTimeout = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "wcc.queue.response.timeout", DEFAULT_RESPONSE_TIMEOUT));
+
+    private long completionTimeout = TimeUnit.MILLISECONDS.toNanos(Long
+            .getLong("wcc.queue.completion.timeout",
+                    DEFAULT_COMPLETION_TIMEOUT));
+
+    private long nackBackoff = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "wcc.queue.nack.backoff", DEFAULT_NACK_BACKOFF));
+
+    /** times a command is sent again, unless the request has its own */
+    private int retries = Integer.getInteger("wcc.queue.retries",
+            DEFAULT_RETRIES);
+
+    /** most interactive and background commands queued; stops always fit */
+    private int capacity = Integer.getInteger("wcc.queue.capacity",
+            DEFAULT_CAPACITY);
+
+    /**
+     * what happens to a command offered to a full queue; shed commands are
+     * answered with RESPONSE_REJECTED
+     */
+    private OverflowPolicy overflowPolicy = getOverflowPolicy();
+
+    /** averaged time between releases while commands are waiting, in ns */
+    private long serviceTime = TimeUnit.MILLISECONDS
+            .toNanos(DEFAULT_SERVICE_TIME);
+
+    /** nanoTime the last command was released */
+    private long lastRelease;
 
-    /** minimum time after reponse from previous commands has been received */
-    private int waitAfterResponse = 0;
+    /** true if commands were still waiting when the last one was released */
+    private boolean backlogged = false;
 
-    /** last time a command was release from the queue (and sent to the camera) */
-    private long lastTakeTime = 0;
+    /**
+     * commands offered without the lock, moved into the lanes by the thread
+     * sending commands; null unless wcc.queue.ring.size is set. A command
+     * offered to a full ring is refused; one that finds the lanes full once
+     * it is moved is answered with RESPONSE_REJECTED.
+     */
+    private RS232RingBuffer<RS232CmdRequest> ingress;
 
-    private boolean okToSend = true;
+    /** wakes the thread sending commands when the ring is used */
+    private RS232WaitStrategy waitStrategy;
 
     /** response indicated a successful command was processed; basic command */
     private boolean receivedCmdAck = false;
@@ -69,11 +264,64 @@ public class RS232BlockingQ implements RS232ReaderListener {
      */
     private boolean receivedCompletionCode = false;
 
-    private Object lock = new Object();
+    /**
+     * guards the queue and the state of the command in flight; keeps
+     * commands offered together next to each other and lets the optimizer
+     * see the queue as the consumer sees it
+     */
+    private ReentrantLock lock = new ReentrantLock();
+
+    /** signalled whenever a command may have become ready to send */
+    private Condition changed = lock.newCondition();
+
+    private boolean stopped = false;
+
+    /** false while the link is down; nothing is released until it is back */
+    private boolean connected = true;
 
     /** command responses are forwarded to this listener */
     private RS232ResponseListener responseListener;
 
+    /**
+     * runs the listeners, in order; null to run them on the thread that
+     * answered or gave up on the command
+     */
+    private volatile Executor listenerExecutor;
+
+    /** records command latencies and queue statistics */
+    private RS232Metrics metrics;
+
+    /**
+     * learns the gap after each command when "wcc.pacing.adaptive" is set,
+     * null to use each command's delay from the commands file
+     */
+    private RS232Pacer pacer;
+
+    /**
+     * the serial line frames are scheduled on; the next command is not
+     * released before the previous frame has left the line, so commands do
+     * not pile up in ser2net's buffer
+     */
+    private RS232Link link = RS232Link.create();
+
+    /** command answered last, whose gap comes before the next command */
+    private RS232CmdRequest lastAnswered;
+
+    /**
+     * command whose gap came before the oldest command in flight, null if
+     * that command was pipelined
+     */
+    private RS232CmdRequest gapOwner;
+
+    /** nanoTime the oldest command in flight was acknowledged, 0 if not yet */
+    private long ackTime;
+
+    /**
+     * responses to single byte messages, indexed by outcome (success, ACK,
+     * failure) and byte; filled in as they are first needed
+     */
+    private RS232CmdData[][] responses = new RS232CmdData[3][256];
+
     /**
      * This constructor sets the internal socket listener, then creates the
      * socket reader with the socket that is passed in.
@@ -84,167 +332,1266 @@ public class RS232BlockingQ implements RS232ReaderListener {
      *            listener that will received responses
      */
     public RS232BlockingQ(Socket socket, RS232ResponseListener responseListener) {
+        this(socket, responseListener, new RS232Metrics());
+    }
+
+    /**
+     * Creates the queue and its socket reader, recording command latencies
+     * in the given metrics.
+     * 
+     * @param socket
+     *            network to be used for socket commands
+     * @param responseListener
+     *            listener that will received responses
+     * @param metrics
+     *            metrics of the processor that owns the queue
+     */
+    public RS232BlockingQ(Socket socket, RS232ResponseListener responseListener,
+            RS232Metrics metrics) {
+        this(socket, responseListener, metrics, new RS232FrameDecoder());
+    }
+
+    /**
+     * Creates the queue and its socket reader, splitting what the socket
+     * reader receives into responses with the given decoder.
+     * 
+     * @param socket
+     *            network to be used for socket commands
+     * @param responseListener
+     *            listener that will received responses
+     * @param metrics
+     *            metrics of the processor that owns the queue
+     * @param decoder
+     *            splits the bytes received into responses
+     */
+    public RS232BlockingQ(Socket socket, RS232ResponseListener responseListener,
+            RS232Metrics metrics, RS232FrameDecoder decoder) {
+        this(responseListener, metrics);
+        reader = new RS232Reader(socket, this, decoder);
+    }
+
+    /**
+     * Creates the queue without a socket reader, for a processor that reads
+     * the responses itself and passes each one to <code>handleEvent</code>.
+     * 
+     * @param responseListener
+     *            listener that will received responses
+     * @param metrics
+     *            metrics of the processor that owns the queue
+     */
+    public RS232BlockingQ(RS232ResponseListener responseListener,
+            RS232Metrics metrics) {
         this.responseListener = responseListener;
-        reader = new RS232Reader(socket, this);
+        this.metrics = metrics;
+        for (int i = 0; i <= RS232CmdRequest.PRIORITY_BACKGROUND; i++) {
+            lanes.add(new ArrayDeque<RS232CmdRequest>());
+        }
+        if (Boolean.parseBoolean(System.getProperty("wcc.queue.optimize",
+                "true"))) {
+            optimizer = new RS232QueueOptimizer();
+        }
+        int ringSize = Integer.getInteger("wcc.queue.ring.size", 0);
+        if (ringSize > 0) {
+            ingress = new RS232RingBuffer<RS232CmdRequest>(ringSize);
+            waitStrategy = RS232WaitStrategy.create(System.getProperty(
+                    "wcc.queue.wait.strategy", DEFAULT_WAIT_STRATEGY));
+        }
     }
 
+    /**
+     * @param delay
+     *            minimum time in milliseconds between sending two commands,
+     *            whatever their answers
+     */
     public void setDelay(int delay) {
-        this.delay = delay;
+        lock.lock();
+        try {
+            this.delay = TimeUnit.MILLISECONDS.toNanos(delay);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param pacer
+     *            learns the gap after each command; null to use the gaps
+     *            from the commands file
+     */
+    public void setPacer(RS232Pacer pacer) {
+        lock.lock();
+        try {
+            this.pacer = pacer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param link
+     *            the serial line between ser2net and the camera
+     */
+    public void setLink(RS232Link link) {
+        lock.lock();
+        try {
+            this.link = link;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param listenerExecutor
+     *            runs the listeners told about responses and failures, in
+     *            the order they are handed to it, so they cannot hold up the
+     *            thread reading the responses; null to run them on that
+     *            thread
+     */
+    public void setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
     }
 
     /**
      * All commands should be enqueued using this method.
      * 
-     * @param cmdData
+     * @param cmdRequest
      *            a command to enqueue and eventually send to the camera
+     * @return false if the queue is full and the command was refused
+     */
+    public boolean offer(RS232CmdRequest cmdRequest) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Adding to queue: " + cmdRequest);
+        }
+        cmdRequest.setQueuedTime(System.nanoTime());
+        if (ingress != null) {
+            if (!ingress.offer(cmdRequest)) {
+                logger.warning("Ring full, refused " + cmdRequest.getName());
+                metrics.reject();
+                return false;
+            }
+            waitStrategy.signal();
+            return true;
+        }
+        lock.lock();
+        try {
+            if (!enqueue(cmdRequest, true)) {
+                return false;
+            }
+            signalConsumer();
+            return true;
+        } finally {
+            lock.unlock();
+            notifyAnswered();
+        }
+    }
+
+    /**
+     * Enqueues a list of commands in one step. Commands offered by other
+     * threads are never interleaved with the list. Either every command is
+     * accepted or, if there is no room for all of them, none are.
+     * 
+     * @param cmdRequests
+     *            commands to enqueue, in the order they should be sent
+     * @return false if the queue is full and the commands were refused
      */
-    public void offer(RS232CmdData cmdData) {
-        logger.fine("Adding to queue: " + cmdData);
-        queue.offer(cmdData);
+    public boolean offerAll(List<RS232CmdRequest> cmdRequests) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Adding " + cmdRequests.size() + " commands to queue");
+        }
+        lock.lock();
+        try {
+            // commands offered through the ring before the list go first
+            drainIngress();
+            int needed = 0;
+            int priority = RS232CmdRequest.PRIORITY_EMERGENCY;
+            for (RS232CmdRequest cmdRequest : cmdRequests) {
+                int cmdPriority = getPriority(cmdRequest);
+                if (cmdPriority != RS232CmdRequest.PRIORITY_EMERGENCY) {
+                    needed++;
+                    priority = Math.max(priority, cmdPriority);
+                }
+            }
+            if (!makeRoom(needed, priority)) {
+                return false;
+            }
+            long now = System.nanoTime();
+            for (RS232CmdRequest cmdRequest : cmdRequests) {
+                cmdRequest.setQueuedTime(now);
+                enqueue(cmdRequest, false);
+            }
+            signalConsumer();
+            return true;
+        } finally {
+            lock.unlock();
+            notifyAnswered();
+        }
     }
 
     /**
-     * This implementation releases commands from the queue by checking two
-     * conditions, first the response from a previous command must have been
-     * received. Second, the minimum time since the previous command's response
-     * was received must be exceeded.
+     * Adds a command to the end of its lane unless the optimizer finds it is
+     * not needed. Called with the queue locked.
      * 
-     * @return
+     * @param checkRoom
+     *            false if room has already been made for the command
+     * @return false if there was no room for the command
+     */
+    private boolean enqueue(RS232CmdRequest cmdRequest, boolean checkRoom) {
+        int priority = getPriority(cmdRequest);
+        Deque<RS232CmdRequest> lane = lanes.get(priority);
+        if (priority == RS232CmdRequest.PRIORITY_EMERGENCY) {
+            preempt(cmdRequest);
+        }
+        // the optimizer only removes commands, so once it has run the
+        // command either needs no room or the queue is as full as before
+        boolean needed = optimizer == null
+                || optimizer.optimize(cmdRequest, lane, cancelled);
+        for (RS232CmdRequest cancel : cancelled) {
+            answer(cancel, RS232CmdData.RESPONSE_CANCELLED);
+        }
+        cancelled.clear();
+        if (needed) {
+            if (checkRoom && priority != RS232CmdRequest.PRIORITY_EMERGENCY
+                    && !makeRoom(1, priority)) {
+                logger.warning("Queue full, refused " + cmdRequest.getName());
+                metrics.reject();
+                return false;
+            }
+            lane.offerLast(cmdRequest);
+        }
+        return true;
+    }
+
+    private static OverflowPolicy getOverflowPolicy() {
+        String policy = System.getProperty("wcc.queue.overflow",
+                OverflowPolicy.REJECT.name());
+        try {
+            return OverflowPolicy.valueOf(policy.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Logger.getLogger(RS232BlockingQ.class.getName()).warning(
+                    "Unknown wcc.queue.overflow " + policy + ", using REJECT");
+            return OverflowPolicy.REJECT;
+        }
+    }
+
+    /**
+     * Makes sure there is room for more interactive or background commands,
+     * shedding queued commands if the overflow policy allows it. Called with
+     * the queue locked.
+     * 
+     * @param needed
+     *            number of commands to make room for
+     * @param priority
+     *            least urgent priority of the new commands; DROP_LOWEST
+     *            never sheds a command more urgent than this
+     * @return true if there is room
+     */
+    private boolean makeRoom(int needed, int priority) {
+        if (needed == 0) {
+            return true;
+        }
+        if (needed > capacity) {
+            return false;
+        }
+        while (getBacklog() + needed > capacity) {
+            RS232CmdRequest shed = shed(priority);
+            if (shed == null) {
+                return false;
+            }
+            logger.warning("Queue full, shed " + shed.getName());
+            metrics.reject();
+            rejected(shed);
+        }
+        return true;
+    }
+
+    /**
+     * Answers a queued command that will not be sent because the queue was
+     * full. Called with the queue locked.
+     */
+    private void rejected(RS232CmdRequest cmdRequest) {
+        answer(cmdRequest, RS232CmdData.RESPONSE_REJECTED);
+    }
+
+    /**
+     * Keeps the answer to a command given up on until the queue is
+     * unlocked. Called with the queue locked.
+     */
+    private void answer(RS232CmdRequest cmdRequest, String outcome) {
+        RS232CmdData response = outcomes.get(outcome);
+        if (response == null) {
+            response = new RS232CmdData();
+            response.setName(outcome);
+            outcomes.put(outcome, response);
+        }
+        answers.add(cmdRequest, response, true);
+        // handing them to the executor never runs a listener here
+        deliverLater();
+    }
+
+    /**
+     * Tells the listeners about the commands given up on while the queue was
+     * locked. Called after unlocking it; does nothing if the queue is still
+     * locked by this thread, or if the listener executor passes the answers
+     * on.
+     */
+    private void notifyAnswered() {
+        if (lock.isHeldByCurrentThread()) {
+            return;
+        }
+        if (listenerExecutor != null) {
+            deliverLater();
+            return;
+        }
+        while (deliverNext()) {
+            // until none are left
+        }
+    }
+
+    /**
+     * Tells the response listener about a response, and the request's own
+     * listener too if the command is finished with, on the listener
+     * executor if there is one. Called without the queue locked.
+     */
+    private void respond(RS232CmdRequest request, RS232CmdData response,
+            boolean finished) {
+        if (listenerExecutor == null) {
+            notifyListeners(request, response, finished);
+            return;
+        }
+        answers.add(request, response, finished);
+        deliverLater();
+    }
+
+    /**
+     * Hands the waiting answers to the listener executor, unless it already
+     * has them.
+     */
+    private void deliverLater() {
+        Executor executor = listenerExecutor;
+        if (executor != null && !answers.isEmpty()
+                && delivering.compareAndSet(false, true)) {
+            executor.execute(delivery);
+        }
+    }
+
+    /**
+     * Passes the oldest waiting answer on to the listeners.
+     * 
+     * @return false if there were none
+     */
+    private boolean deliverNext() {
+        RS232CmdRequest request;
+        RS232CmdData response;
+        boolean finished;
+        synchronized (answers) {
+            if (answers.count == 0) {
+                return false;
+            }
+            int head = answers.head;
+            request = answers.requests[head];
+            response = answers.responses[head];
+            finished = answers.finished[head];
+            answers.requests[head] = null;
+            answers.responses[head] = null;
+            answers.head = (head + 1) % answers.requests.length;
+            answers.count--;
+        }
+        notifyListeners(request, response, finished);
+        return true;
+    }
+
+    private void notifyListeners(RS232CmdRequest request,
+            RS232CmdData response, boolean finished) {
+        responseListener.handleResponse(request, response);
+        if (finished && request != null) {
+            request.notifyListener(response);
+        }
+    }
+
+    /**
+     * Moves the commands offered through the ring into their lanes. Called
+     * with the queue locked, which makes whoever holds it the ring's only
+     * consumer.
+     */
+    private void drainIngress() {
+        if (ingress == null) {
+            return;
+        }
+        RS232CmdRequest cmdRequest;
+        while ((cmdRequest = ingress.poll()) != null) {
+            if (!enqueue(cmdRequest, true)) {
+                rejected(cmdRequest);
+            }
+        }
+    }
+
+    /**
+     * Wakes the thread waiting to send the next command. Called with the
+     * queue locked.
+     */
+    private void signalConsumer() {
+        changed.signalAll();
+        if (waitStrategy != null) {
+            waitStrategy.signal();
+        }
+    }
+
+    /**
+     * Removes the command the overflow policy gives up first.
+     * 
+     * @return the removed command or null if none may be shed
+     */
+    private RS232CmdRequest shed(int priority) {
+        Deque<RS232CmdRequest> interactive = lanes
+                .get(RS232CmdRequest.PRIORITY_INTERACTIVE);
+        Deque<RS232CmdRequest> background = lanes
+                .get(RS232CmdRequest.PRIORITY_BACKGROUND);
+        switch (overflowPolicy) {
+        case DROP_OLDEST:
+            if (interactive.isEmpty()) {
+                return background.pollFirst();
+            } else if (background.isEmpty()
+                    || interactive.peekFirst().getQueuedTime()
+                            - background.peekFirst().getQueuedTime() <= 0) {
+                return interactive.pollFirst();
+            }
+            return background.pollFirst();
+        case DROP_LOWEST:
+            for (int i = RS232CmdRequest.PRIORITY_BACKGROUND; i >= priority
+                    && i > RS232CmdRequest.PRIORITY_EMERGENCY; i--) {
+                if (!lanes.get(i).isEmpty()) {
+                    return lanes.get(i).pollFirst();
+                }
+            }
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return number of interactive and background commands queued
+     */
+    private int getBacklog() {
+        return lanes.get(RS232CmdRequest.PRIORITY_INTERACTIVE).size()
+                + lanes.get(RS232CmdRequest.PRIORITY_BACKGROUND).size();
+    }
+
+    /**
+     * Estimates how long it will take to send everything that is queued or
+     * in flight, from the time commands have recently taken to send.
+     * 
+     * @return estimated time in milliseconds
+     */
+    public long getDrainTime() {
+        lock.lock();
+        try {
+            int backlog = inFlight.size();
+            if (ingress != null) {
+                backlog += ingress.size();
+            }
+            for (Deque<RS232CmdRequest> lane : lanes) {
+                backlog += lane.size();
+            }
+            return TimeUnit.NANOSECONDS.toMillis(backlog * serviceTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lane a command is queued in: the request's own priority,
+     * or emergency for stops and interactive for everything else.
+     */
+    private int getPriority(RS232CmdRequest cmdRequest) {
+        if (!prioritize) {
+            return RS232CmdRequest.PRIORITY_INTERACTIVE;
+        }
+        int priority = cmdRequest.getPriority();
+        if (priority == RS232CmdRequest.PRIORITY_DEFAULT) {
+            if (RS232QueueOptimizer.isStop(cmdRequest.getName())) {
+                return RS232CmdRequest.PRIORITY_EMERGENCY;
+            }
+            return RS232CmdRequest.PRIORITY_INTERACTIVE;
+        }
+        if (priority < 0 || priority >= lanes.size()) {
+            return RS232CmdRequest.PRIORITY_INTERACTIVE;
+        }
+        return priority;
+    }
+
+    /**
+     * Cancels the commands in the lower lanes that would undo a stop which
+     * is about to be sent ahead of them. Called with the queue locked.
+     */
+    private void preempt(RS232CmdRequest stop) {
+        for (int i = RS232CmdRequest.PRIORITY_INTERACTIVE; i < lanes.size(); i++) {
+            Iterator<RS232CmdRequest> pending = lanes.get(i).iterator();
+            while (pending.hasNext()) {
+                RS232CmdRequest cmdRequest = pending.next();
+                if (RS232QueueOptimizer.isOverriddenBy(stop, cmdRequest)) {
+                    logger.fine("Cancelled queued " + cmdRequest.getName()
+                            + " behind " + stop.getName());
+                    pending.remove();
+                    answer(cmdRequest, RS232CmdData.RESPONSE_CANCELLED);
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the lane the next command is released from: emergencies first,
+     * then interactive commands, except that a background command goes after
+     * every interactiveWeight interactive ones. Called with the queue locked.
+     * 
+     * @return the lane's priority, or -1 if nothing is queued
+     */
+    private int nextLane() {
+        if (!lanes.get(RS232CmdRequest.PRIORITY_EMERGENCY).isEmpty()) {
+            return RS232CmdRequest.PRIORITY_EMERGENCY;
+        }
+        boolean interactive = !lanes.get(
+                RS232CmdRequest.PRIORITY_INTERACTIVE).isEmpty();
+        boolean background = !lanes
+                .get(RS232CmdRequest.PRIORITY_BACKGROUND).isEmpty();
+        if (interactive && (!background || interactiveRun < interactiveWeight)) {
+            return RS232CmdRequest.PRIORITY_INTERACTIVE;
+        }
+        return background ? RS232CmdRequest.PRIORITY_BACKGROUND : -1;
+    }
+
+    /**
+     * Waits until the next command can be sent and releases it, giving up on
+     * commands in flight that have not been answered in time while it
+     * waits. See <code>getReadyDelay</code> for when a command can be sent.
+     * 
+     * @return the next command, or null once the queue has been stopped or
+     *         disconnected
      * @throws InterruptedException
      */
-    public RS232CmdData take() throws InterruptedException {
-        RS232CmdData cmdData = null;
-
-        long readyTime = getNextSendTime();
-        logger.finest("Time before next cmd:  " + readyTime);
-        while (!okToSend || readyTime < 0) {
-            try {
-                synchronized (lock) {
-                    if (readyTime < 0) {
-                        logger.finest("waiting for " + readyTime + " ms");
-                        lock.wait(-readyTime);
-                    } else if (!okToSend) {
-                        logger.finest("Waiting for ok");
-                        lock.wait(1000);
-                        okToSend = true;
-                        logger.finest("It's ok now");
+    public RS232CmdRequest take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            long pacedSince = 0;
+            while (!stopped && connected) {
+                long now = System.nanoTime();
+                drainIngress();
+                expire(now);
+                long wait = readyDelay(now);
+                if (wait == 0) {
+                    if (pacedSince != 0) {
+                        metrics.addPacingWait(now - pacedSince);
                     }
+                    return release(now);
+                }
+                if (pacedSince == 0 && nextLane() >= 0) {
+                    pacedSince = now;
                 }
+                if (listenerExecutor == null && !answers.isEmpty()) {
+                    // answer what was given up on before waiting
+                    lock.unlock();
+                    try {
+                        notifyAnswered();
+                    } finally {
+                        lock.lock();
+                    }
+                    continue;
+                }
+                if (waitStrategy != null) {
+                    // producers using the ring never take the lock, so wait
+                    // for them without it
+                    lock.unlock();
+                    try {
+                        waitStrategy.await(wait);
+                    } finally {
+                        lock.lock();
+                    }
+                } else if (wait == IDLE) {
+                    changed.await();
+                } else {
+                    logger.finest("waiting for " + wait + " ns");
+                    changed.awaitNanos(wait);
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+            notifyAnswered();
+        }
+    }
 
-            } catch (InterruptedException e) {
-                logger.warning("Queue interrupted");
+    /**
+     * Releases the next command if it can be sent now; never waits. Commands
+     * in flight that have not been answered in time are given up on first.
+     * 
+     * @param now
+     *            current System.nanoTime()
+     * @return the next command or null if none can be sent yet
+     */
+    public RS232CmdRequest poll(long now) {
+        lock.lock();
+        try {
+            if (stopped) {
+                return null;
+            }
+            drainIngress();
+            expire(now);
+            if (readyDelay(now) != 0) {
+                return null;
             }
-            readyTime = getNextSendTime();
+            return release(now);
+        } finally {
+            lock.unlock();
+            notifyAnswered();
         }
+    }
 
-        cmdData = queue.take();
-        lastTakeTime = System.currentTimeMillis();
-        logger.fine("Queue returning: " + cmdData);
+    /**
+     * Tells how long until the next command can be sent. A command can be sent
+     * once the previous command has been answered or has timed out, the gap
+     * after that answer has passed, and the minimum delay since the previous
+     * command has passed. An ACK only command need not wait for the answers
+     * to the ACK only commands before it while the window has room.
+     * 
+     * Only tells; a processor calls <code>poll</code> once the delay has
+     * passed to release the command or give up on the one in flight.
+     * 
+     * @param now
+     *            current System.nanoTime()
+     * @return 0 if a command can be sent now or one in flight has not been
+     *         answered in time, the time to wait in nanoseconds, or IDLE if
+     *         there is nothing to send and nothing to wait for, or the queue
+     *         is disconnected
+     */
+    public long getReadyDelay(long now) {
+        lock.lock();
+        try {
+            return readyDelay(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives up on the commands in flight whose answers are overdue, sending
+     * them again if they have retries left. Called with the queue locked.
+     */
+    private void expire(long now) {
+        while (!inFlight.isEmpty() && now - responseDeadline >= 0) {
+            RS232CmdRequest expired = inFlight.pollFirst();
+            lastAnswered = null;
+            if (windowShared) {
+                logger.warning("No answer to pipelined " + expired.getName()
+                        + ", giving up on the window");
+                failWindow(expired, RS232CmdData.RESPONSE_TIMEOUT, now);
+                continue;
+            }
+            nextInFlight();
+            if (isOverridden(expired)) {
+                logger.warning("No answer to " + expired.getName()
+                        + ", cancelled by a stop");
+                answer(expired, RS232CmdData.RESPONSE_CANCELLED);
+            } else if (retry(expired, now)) {
+                logger.warning("No answer to " + expired.getName()
+                        + ", sending it again");
+            } else {
+                logger.warning("No answer to " + expired.getName()
+                        + ", giving up");
+                timedOut(expired);
+            }
+        }
+    }
 
-        okToSend = false;
+    /**
+     * Works out the delay reported by <code>getReadyDelay</code>. Called
+     * with the queue locked.
+     */
+    private long readyDelay(long now) {
+        if (!connected) {
+            return IDLE;
+        }
+        if (ingress != null && ingress.size() > 0) {
+            // offered through the ring and not in a lane yet
+            return 0;
+        }
+        int lane = nextLane();
+        if (!inFlight.isEmpty()) {
+            if (lane < 0 || !canPipeline(lanes.get(lane).peekFirst())) {
+                return Math.max(0, responseDeadline - now);
+            }
+            return Math.max(0, Math.min(releaseTime, responseDeadline) - now);
+        }
+        if (lane < 0) {
+            return IDLE;
+        }
+        return Math.max(0, releaseTime - now);
+    }
+
+    /**
+     * Returns true if a command may be sent while the commands in flight are
+     * still waiting for their answers. Only commands answered by an ACK alone
+     * are pipelined, so when the oldest command in flight is one of them,
+     * all of them are.
+     */
+    private boolean canPipeline(RS232CmdRequest cmdRequest) {
+        return inFlight.size() < window && isAckOnly(cmdRequest)
+                && isAckOnly(inFlight.peekFirst());
+    }
+
+    private boolean isAckOnly(RS232CmdRequest cmdRequest) {
+        RS232CmdData cmdData = cmdRequest.getCmdData();
+        return cmdData.getCompletionCode() == 0
+                && cmdData.getResponse() != null;
+    }
+
+    /**
+     * Starts waiting for the answer to the next command in flight once the
+     * oldest has been answered or given up on. Called with the queue locked.
+     */
+    private void nextInFlight() {
         receivedCmdAck = false;
         receivedCompletionCode = false;
-        cmdResponse = cmdData;
-        return cmdData;
+        gapOwner = null;
+        ackTime = 0;
+        RS232CmdRequest next = inFlight.peekFirst();
+        if (next != null) {
+            responseDeadline = next.getTakenTime() + getTimeout(next);
+        } else {
+            windowShared = false;
+        }
     }
 
     /**
-     * The next send time is computed by taking the current system time and
-     * subtracting the sum of the time of the last command and the delay between
-     * commands time. If it's less than zero, we need to wait. last send time =
-     * 10 delay = 2 if current time is 11, 11 - (10+2) = -1, can't send yet if
-     * current time is 13, 13 - (10+2) = 1, ok to send
-     * 
-     * If the wait after response time is non zero, we have received a response
-     * and must wait the minimum amount of time before sending another cmd.
+     * Gives up on a pipelined command and every command in flight behind
+     * it, in the order they were sent, without sending any of them again.
+     * Once an answer has gone missing in a window the remaining answers may
+     * have been credited to the wrong commands, so sending one again could
+     * repeat a step the camera has already made. Nothing more is released
+     * until the answers the window may still get are due. Called with the
+     * queue locked and the failed command already taken out of flight.
+     */
+    private void failWindow(RS232CmdRequest failed, String outcome, long now) {
+        long quiet = now;
+        answer(failed, outcome);
+        RS232CmdRequest cmdRequest;
+        while ((cmdRequest = inFlight.pollFirst()) != null) {
+            long deadline = cmdRequest.getTakenTime() + getTimeout(cmdRequest);
+            if (deadline - quiet > 0) {
+                quiet = deadline;
+            }
+            answer(cmdRequest, outcome);
+        }
+        if (quiet - releaseTime > 0) {
+            releaseTime = quiet;
+        }
+        nextInFlight();
+    }
+
+    private long getTimeout(RS232CmdRequest cmdRequest) {
+        if (cmdRequest.getTimeout() > 0) {
+            return TimeUnit.MILLISECONDS.toNanos(cmdRequest.getTimeout());
+        }
+        return responseTimeout;
+    }
+
+    /**
+     * Returns true if a stop waiting in the emergency lane, or sent after a
+     * command, overrides it. Preempting only reaches queued commands, so a
+     * movement that was in flight when the stop was offered must not be
+     * sent again: the stop would go out first and the movement would undo
+     * it. Called with the queue locked and the command out of flight.
+     */
+    private boolean isOverridden(RS232CmdRequest cmdRequest) {
+        for (RS232CmdRequest stop : lanes
+                .get(RS232CmdRequest.PRIORITY_EMERGENCY)) {
+            if (RS232QueueOptimizer.isOverriddenBy(stop, cmdRequest)) {
+                return true;
+            }
+        }
+        for (RS232CmdRequest stop : inFlight) {
+            if (RS232QueueOptimizer.isOverriddenBy(stop, cmdRequest)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Puts a command that was rejected or not answered back at the front of
+     * its lane, unless it has used up its retries. It is sent again after a
+     * backoff that doubles with each attempt; the sending thread waits for
+     * it, so the reader thread never sleeps. Called with the queue locked.
      * 
-     * @return
+     * @return true if the command will be sent again
+     */
+    private boolean retry(RS232CmdRequest cmdRequest, long now) {
+        int allowed = cmdRequest.getRetries() < 0 ? retries : cmdRequest
+                .getRetries();
+        if (stopped || cmdRequest.getAttempts() > allowed) {
+            return false;
+        }
+        long backoff = nackBackoff << Math.min(cmdRequest.getAttempts() - 1,
+                MAX_BACKOFF_DOUBLINGS);
+        releaseTime = Math.max(releaseTime, now + backoff);
+        lanes.get(getPriority(cmdRequest)).offerFirst(cmdRequest);
+        logger.info("Sending " + cmdRequest.getName() + " again in "
+                + TimeUnit.NANOSECONDS.toMillis(backoff) + " ms");
+        return true;
+    }
+
+    /**
+     * Answers a command the camera never answered. Called with the queue
+     * locked.
      */
-    private long getNextSendTime() {
-        long readyTime = 0;
-        if (waitAfterResponse < 0) {
-            readyTime = waitAfterResponse;
-            waitAfterResponse = 0;
+    private void timedOut(RS232CmdRequest cmdRequest) {
+        answer(cmdRequest, RS232CmdData.RESPONSE_TIMEOUT);
+    }
+
+    /**
+     * Takes the next command off the queue and adds it to the commands in
+     * flight. Called with the queue locked once the command may be sent.
+     */
+    private RS232CmdRequest release(long now) {
+        int lane = nextLane();
+        RS232CmdRequest cmdData = lanes.get(lane).pollFirst();
+        if (lane == RS232CmdRequest.PRIORITY_BACKGROUND) {
+            interactiveRun = 0;
+        } else if (lane == RS232CmdRequest.PRIORITY_INTERACTIVE) {
+            interactiveRun++;
+        }
+        if (optimizer != null) {
+            optimizer.sent(cmdData);
+        }
+        if (backlogged) {
+            serviceTime += (now - lastRelease - serviceTime) / 8;
+        }
+        lastRelease = now;
+        backlogged = nextLane() >= 0;
+        cmdData.setTakenTime(now);
+        cmdData.setAttempts(cmdData.getAttempts() + 1);
+        metrics.record(cmdData.getName(), RS232Metrics.QUEUE,
+                now - cmdData.getQueuedTime());
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Queue returning: " + cmdData);
+        }
+
+        if (!inFlight.isEmpty()) {
+            windowShared = true;
         } else {
-            readyTime = System.currentTimeMillis() - (lastTakeTime + delay);
+            receivedCmdAck = false;
+            receivedCompletionCode = false;
+            gapOwner = lastAnswered;
+            ackTime = 0;
+            responseDeadline = now + getTimeout(cmdData);
+        }
+        inFlight.offerLast(cmdData);
+        long sent = link.transmit(now, getFrameLength(cmdData));
+        releaseTime = Math.max(now + delay, sent);
+        return cmdData;
+    }
+
+    private int getFrameLength(RS232CmdRequest cmdRequest) {
+        if (cmdRequest.getFrame() != null) {
+            return cmdRequest.getFrame().getLength();
+        }
+        byte[] arguments = cmdRequest.getArguments();
+        return 1 + (arguments != null ? arguments.length : 0);
+    }
+
+    /**
+     * @return number of commands waiting to be sent
+     */
+    public int size() {
+        lock.lock();
+        try {
+            int size = ingress != null ? ingress.size() : 0;
+            for (Deque<RS232CmdRequest> lane : lanes) {
+                size += lane.size();
+            }
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of commands sent and not yet answered
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if nothing is waiting to be sent or waiting for an answer
+     */
+    public boolean isIdle() {
+        lock.lock();
+        try {
+            return inFlight.isEmpty() && size() == 0;
+        } finally {
+            lock.unlock();
         }
-        return readyTime;
     }
 
     public void stopService() {
+        lock.lock();
+        try {
+            stopped = true;
+            signalConsumer();
+        } finally {
+            lock.unlock();
+        }
         if (reader != null) {
             reader.stopService();
-            synchronized (lock) {
-                lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops releasing commands because the link to the camera was lost.
+     * The commands in flight will never be answered, so each one is put back
+     * at the front of its lane to be sent again on the next connection,
+     * unless it has used up its retries and is answered with
+     * RESPONSE_TIMEOUT. Stops go back to the emergency lane and are sent
+     * first, so a movement a stop sent or queued after it overrides is
+     * cancelled rather than sent again after the stop. The wait for the
+     * thread taking commands ends with null.
+     * 
+     * @param now
+     *            current System.nanoTime()
+     */
+    public void disconnected(long now) {
+        lock.lock();
+        try {
+            if (!connected) {
+                return;
+            }
+            connected = false;
+            List<RS232CmdRequest> resend = new ArrayList<RS232CmdRequest>();
+            RS232CmdRequest cmdRequest;
+            while ((cmdRequest = inFlight.pollFirst()) != null) {
+                int allowed = cmdRequest.getRetries() < 0 ? retries
+                        : cmdRequest.getRetries();
+                if (isOverridden(cmdRequest)) {
+                    answer(cmdRequest, RS232CmdData.RESPONSE_CANCELLED);
+                } else if (!stopped && cmdRequest.getAttempts() <= allowed) {
+                    resend.add(cmdRequest);
+                } else {
+                    timedOut(cmdRequest);
+                }
+            }
+            // newest first, so the oldest ends up at the front again
+            for (int i = resend.size() - 1; i >= 0; i--) {
+                cmdRequest = resend.get(i);
+                lanes.get(getPriority(cmdRequest)).offerFirst(cmdRequest);
             }
+            lastAnswered = null;
+            nextInFlight();
+            signalConsumer();
+        } finally {
+            lock.unlock();
+            notifyAnswered();
         }
+    }
+
+    /**
+     * Starts releasing commands again on a new connection, right away.
+     * 
+     * @param now
+     *            current System.nanoTime()
+     */
+    public void connected(long now) {
+        lock.lock();
+        try {
+            connected = true;
+            releaseTime = now;
+            signalConsumer();
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    /**
+     * Answers every queued command with RESPONSE_REJECTED, for a link that
+     * is not coming back soon.
+     * 
+     * @return number of commands answered
+     */
+    public int rejectAll() {
+        lock.lock();
+        try {
+            drainIngress();
+            int count = 0;
+            for (Deque<RS232CmdRequest> lane : lanes) {
+                RS232CmdRequest cmdRequest;
+                while ((cmdRequest = lane.pollFirst()) != null) {
+                    metrics.reject();
+                    rejected(cmdRequest);
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            lock.unlock();
+            notifyAnswered();
+        }
+    }
+
+    /**
+     * Callback method when the socket reader has lost the socket.
+     */
+    @Override
+    public void handleClosed() {
+        disconnected(System.nanoTime());
     }
 
     /**
      * Callback method when a response is received by the RS232 reader
      * 
      * @param message
-     *            the raw response
+     *            one complete response, not to be modified
      */
     @Override
     public void handleEvent(byte[] message) {
 
+        String outcome = null;
+        RS232CmdRequest request;
+        boolean ackReceived = false;
+        boolean answered = false;
+        boolean retried = false;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            link.received(now, message.length);
+            byte[] expectedResp;
+            byte completionCode;
+            request = inFlight.peekFirst();
+            if (request != null) {
+                expectedResp = request.getCmdData().getResponse();
+                completionCode = request.getCmdData().getCompletionCode();
+                if (expectedResp == null) {
+                    // commands without an expected response are answered by
+                    // whatever the camera sends back
+                    expectedResp = message;
+                }
+            } else {
+                expectedResp = message;
+                completionCode = (byte) 0xBB;
+            }
+
+            if (Arrays.equals(expectedResp, message)) {
+                logger.fine("Received ACK from last Command");
+                receivedCmdAck = true;
+                ackReceived = true;
+                if (request != null) {
+                    ackTime = now;
+                    metrics.record(request.getName(), RS232Metrics.ACK, now
+                            - request.getSentTime());
+                }
+            }
+
+            // some commands use the NACK code as their completion code, so
+            // it is only treated as a NACK if the command has not been
+            // acknowledged
+            if (message[0] == NACK && !receivedCmdAck) {
+                logger.warning("Received NACK from last Command");
+                metrics.nack();
+                if (pacer != null && request != null) {
+                    pacer.answered(getGapOwnerName(), getDefaultGap(gapOwner),
+                            request.getName(), 0, 0, true);
+                }
+                lastAnswered = null;
+                inFlight.pollFirst();
+                releaseTime = Math.max(releaseTime, now + nackBackoff);
+                if (request != null && windowShared) {
+                    // the NACK may be for a later command in the window
+                    failWindow(request, RS232CmdData.RESPONSE_FAIL, now);
+                    signalConsumer();
+                } else {
+                    nextInFlight();
+                    if (request != null && isOverridden(request)) {
+                        logger.info("Not sending " + request.getName()
+                                + " again, cancelled by a stop");
+                        answer(request, RS232CmdData.RESPONSE_CANCELLED);
+                        signalConsumer();
+                    } else if (request != null && retry(request, now)) {
+                        retried = true;
+                    } else {
+                        outcome = RS232CmdData.RESPONSE_FAIL;
+                        answered = true;
+                    }
+                }
+            } else {
+                if ((message.length == 1 && message[0] == completionCode)
+                        || (completionCode == 0)) {
+                    receivedCompletionCode = true;
+                }
+
+                if (receivedCmdAck && receivedCompletionCode) {
+                    if (request != null) {
+                        metrics.record(request.getName(),
+                                RS232Metrics.COMPLETE,
+                                now - request.getSentTime());
+                        if (pacer != null) {
+                            pacer.answered(getGapOwnerName(),
+                                    getDefaultGap(gapOwner), request.getName(),
+                                    ackTime - request.getSentTime(),
+                                    completionCode != 0 ? now
+                                            - request.getSentTime() : 0,
+                                    false);
+                        }
+                        releaseTime = Math.max(releaseTime, now
+                                + getResponseGap(request));
+                        lastAnswered = request;
+                        inFlight.pollFirst();
+                    }
+                    nextInFlight();
+                    outcome = RS232CmdData.RESPONSE_SUCESS;
+                    answered = true;
+                    logger.fine("Received response and completion code for last cmd");
+                } else if (ackReceived && request != null) {
+                    // give a slow command time to finish moving
+                    responseDeadline = now + completionTimeout;
+                    outcome = RS232CmdData.RESPONSE_ACK;
+                }
+            }
+            if (answered || retried) {
+                signalConsumer();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        notifyAnswered();
+        RS232CmdData response = outcome != null ? getResponse(outcome,
+                message) : null;
+        if (answered) {
+            respond(request, response, true);
+        } else if (ackReceived && request != null) {
+            // still waiting on the completion code, let listeners know
+            // the camera has accepted the command
+            respond(request, response, false);
+        }
+    }
+
+    /**
+     * Returns the response passed to the listeners for a message from the
+     * camera. The camera answers in single bytes, so a response is kept for
+     * each outcome and byte and handed out again every time, and answering a
+     * command allocates nothing once the link is busy. Only called from the
+     * thread reading the responses.
+     */
+    private RS232CmdData getResponse(String outcome, byte[] message) {
+        if (message.length != 1) {
+            return newResponse(outcome, message);
+        }
+        int index = RS232CmdData.RESPONSE_SUCESS.equals(outcome) ? 0
+                : RS232CmdData.RESPONSE_ACK.equals(outcome) ? 1 : 2;
+        RS232CmdData response = responses[index][message[0] & 0xFF];
+        if (response == null) {
+            response = newResponse(outcome, message);
+            responses[index][message[0] & 0xFF] = response;
+        }
+        return response;
+    }
+
+    private RS232CmdData newResponse(String outcome, byte[] message) {
         RS232CmdData response = new RS232CmdData();
+        response.setName(outcome);
         if (message.length >= 1) {
             response.setCode(message[0]);
         }
-
         if (message.length > 1) {
-            byte[] args = new byte[message.length - 1];
-            System.arraycopy(message, 1, args, 0, message.length - 1);
-            response.setArgument(args);
+            response.setArgument(Arrays.copyOfRange(message, 1,
+                    message.length));
         }
+        return response;
+    }
 
-        byte[] expectedResp = new byte[1];
-        byte completionCode;
-        if (cmdResponse != null) {
-            expectedResp = cmdResponse.getResponse();
-            completionCode = cmdResponse.getCompletionCode();
-        } else {
-            expectedResp = message;
-            completionCode = (byte) 0xBB;
+    /**
+     * Returns the gap to leave after a command has been answered: the
+     * learned gap when pacing is adaptive, otherwise its own delay from the
+     * commands file, or the default response gap.
+     */
+    private long getResponseGap(RS232CmdRequest request) {
+        long gap = getDefaultGap(request);
+        if (pacer != null) {
+            gap = pacer.getGap(request.getName(), gap);
         }
+        return gap;
+    }
 
-        if (Arrays.equals(expectedResp, message)) {
-            logger.fine("Received ACK from last Command");
-            receivedCmdAck = true;
+    /**
+     * Returns a command's gap from the commands file, or the default
+     * response gap if it has none.
+     */
+    private long getDefaultGap(RS232CmdRequest request) {
+        if (request == null) {
+            return responseGap;
         }
-
-        if ((message.length == 1 && message[0] == completionCode)
-                || (completionCode == 0)) {
-            receivedCompletionCode = true;
+        int nextCmdDelay = request.getCmdData().getNextCmdDelay();
+        if (nextCmdDelay != 0) {
+            // delays are stored as negative times
+            return TimeUnit.MILLISECONDS.toNanos(Math.abs(nextCmdDelay));
         }
+        return responseGap;
+    }
 
-        if (receivedCmdAck && receivedCompletionCode) {
-            cmdResponse = null;
-            waitAfterResponse = WAIT_TIME_AFTER_RESPONSE;
-            response.setName(RS232CmdData.RESPONSE_SUCESS);
-            okToSend = true;
-            logger.fine("Received response and completion code for last cmd");
-        }
+    private String getGapOwnerName() {
+        return gapOwner != null ? gapOwner.getName() : null;
+    }
+
+    /**
+     * Answers waiting to be passed on to the listeners, oldest first. They
+     * are kept in arrays used over and over, which only grow when more are
+     * waiting than ever before, so passing an answer on allocates nothing.
+     */
+    private static class Answers {
+
+        private RS232CmdRequest[] requests = new RS232CmdRequest[16];
 
-        if (message[0] == 0xB4) {
-            logger.warning("Received NACK from last Command");
-            try {
-                Thread.sleep(250);
-            } catch (InterruptedException e) {
-                logger.finest("Interrupted from NACK wait");
+        private RS232CmdData[] responses = new RS232CmdData[16];
+
+        private boolean[] finished = new boolean[16];
+
+        private int head;
+
+        private int count;
+
+        synchronized void add(RS232CmdRequest request, RS232CmdData response,
+                boolean done) {
+            if (count == requests.length) {
+                grow();
             }
-            response.setName(RS232CmdData.RESPONSE_FAIL);
-            okToSend = true;
+            int tail = (head + count) % requests.length;
+            requests[tail] = request;
+            responses[tail] = response;
+            finished[tail] = done;
+            count++;
+        }
+
+        synchronized boolean isEmpty() {
+            return count == 0;
         }
 
-        if (okToSend) {
-            responseListener.handleResponse(response);
-            synchronized (lock) {
-                lock.notifyAll();
+        private void grow() {
+            int length = requests.length * 2;
+            RS232CmdRequest[] newRequests = new RS232CmdRequest[length];
+            RS232CmdData[] newResponses = new RS232CmdData[length];
+            boolean[] newFinished = new boolean[length];
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % requests.length;
+                newRequests[i] = requests[index];
+                newResponses[i] = responses[index];
+                newFinished[i] = finished[index];
             }
+            requests = newRequests;
+            responses = newResponses;
+            finished = newFinished;
+            head = 0;
         }
     }
 
@@ -135,6 +135,13 @@ public class RS232CmdData {
     public static final String SET_PRESET_10 = "SET_PRESET_10";
     public static final String RESPONSE_SUCESS = "RESPONSE_SUCESS";
     public static final String RESPONSE_FAIL = "RESPONSE_FAIL";
+    public static final String RESPONSE_ACK = "RESPONSE_ACK";
+    public static final String RESPONSE_CANCELLED = "RESPONSE_CANCELLED";
+    public static final String RESPONSE_TIMEOUT = "RESPONSE_TIMEOUT";
+    public static final String RESPONSE_REJECTED = "RESPONSE_REJECTED";
+    public static final String STATUS_CONNECTED = "STATUS_CONNECTED";
+    public static final String STATUS_DISCONNECTED = "STATUS_DISCONNECTED";
+    public static final String STATUS_READY = "STATUS_READY";
     public static final String TV_INIT = "TV_INIT";
     public static final String TV_INPUT_1 = "TV_INPUT_1";
     public static final String TV_POWER_ON = "TV_POWER_ON";
@@ -242,7 +249,11 @@ public class RS232CmdData {
             buffer.append("; no arguments");
         }
 
-        if (!RESPONSE_SUCESS.equals(name) && !RESPONSE_FAIL.equals(name)) {
+        if (!RESPONSE_SUCESS.equals(name) && !RESPONSE_FAIL.equals(name)
+                && !RESPONSE_ACK.equals(name)
+                && !RESPONSE_CANCELLED.equals(name)
+                && !RESPONSE_TIMEOUT.equals(name)
+                && !RESPONSE_REJECTED.equals(name)) {
             if (response != null) {
                 buffer.append("; response: "
                         + Utils.byteArrayToHexString(response));
@@ -153,22 +153,23 @@ public class RS232CmdFileScanner {
     }
 
     /**
-     * Converts a hex string into the associated byte array
+     * Converts a hex string into the associated byte array, two digits to a
+     * byte, so multi byte responses such as 40530d keep their order. An odd
+     * number of digits is read as if it had a leading zero.
      * 
      * @param str
      *            hex formatted string
      * @return actual hex values represented by the string
      */
     private byte[] getHexBytes(String str) {
-        byte[] hexBytes = null;
-        int arg = Integer.parseInt(str, 16);
-        if (arg > 255) {
-            hexBytes = new byte[2];
-            hexBytes[0] = (byte) (arg % 255);
-            hexBytes[1] = (byte) (arg / 255);
-        } else {
-            hexBytes = new byte[1];
-            hexBytes[0] = (byte) arg;
+        String digits = str.trim();
+        if (digits.length() % 2 != 0) {
+            digits = "0" + digits;
+        }
+        byte[] hexBytes = new byte[digits.length() / 2];
+        for (int i = 0; i < hexBytes.length; i++) {
+            hexBytes[i] = (byte) Integer.parseInt(
+                    digits.substring(2 * i, 2 * i + 2), 16);
         }
         return hexBytes;
     }
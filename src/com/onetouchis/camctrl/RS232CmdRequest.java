@@ -0,0 +1,243 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single request to send a command to the camera. The request carries its
+ * own arguments so the shared <code>RS232CmdData</code> definition is never
+ * modified, and an optional listener that is notified once the camera has
+ * answered the command.
+ */
+public class RS232CmdRequest {
+
+    /** stop commands, sent before anything else that is queued */
+    public static final int PRIORITY_EMERGENCY = 0;
+
+    /** commands from users, the default for everything but stops */
+    public static final int PRIORITY_INTERACTIVE = 1;
+
+    /** tours and polling, sent when users leave room for them */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    /** priority worked out by the queue from the command */
+    public static final int PRIORITY_DEFAULT = -1;
+
+    /** name of the command as defined by the commands file */
+    private String name;
+
+    /** arguments for this request; null to use the command's default */
+    private byte[] arguments;
+
+    /** command definition, resolved by the processor */
+    private RS232CmdData cmdData;
+
+    /** bytes to send, encoded by the processor when the request is made */
+    private RS232Frame frame;
+
+    /** notified when the camera responds to this request */
+    private RS232ResponseListener listener;
+
+    /** identical requests merged into this one, answered along with it */
+    private List<RS232CmdRequest> merged;
+
+    /** one of the PRIORITY constants */
+    private int priority = PRIORITY_DEFAULT;
+
+    /** time to wait for the camera's answer in ms, 0 for the default */
+    private long timeout = 0;
+
+    /** times to send the request again, -1 for the default */
+    private int retries = -1;
+
+    /** times the request has been sent */
+    private int attempts = 0;
+
+    /** System.nanoTime() when the request was offered to the queue */
+    private long queuedTime;
+
+    /** System.nanoTime() when the request was taken from the queue */
+    private long takenTime;
+
+    /** System.nanoTime() when the request was written to the camera */
+    private long sentTime;
+
+    public RS232CmdRequest(String name) {
+        this(name, null);
+    }
+
+    public RS232CmdRequest(String name, byte[] arguments) {
+        this.name = name;
+        this.arguments = arguments;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the arguments to send with this request. When the request was
+     * created without arguments, the default arguments from the command
+     * definition are used.
+     *
+     * @return arguments or null if the command has none
+     */
+    public byte[] getArguments() {
+        if (arguments == null && cmdData != null) {
+            return cmdData.getArgument();
+        }
+        return arguments;
+    }
+
+    public RS232CmdData getCmdData() {
+        return cmdData;
+    }
+
+    public void setCmdData(RS232CmdData cmdData) {
+        this.cmdData = cmdData;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param priority
+     *            one of the PRIORITY constants; PRIORITY_DEFAULT sends stops
+     *            as emergencies and everything else as interactive
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public RS232Frame getFrame() {
+        return frame;
+    }
+
+    public void setFrame(RS232Frame frame) {
+        this.frame = frame;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout
+     *            time in milliseconds to wait for the camera to answer this
+     *            request; 0 to use the queue's response timeout
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @param retries
+     *            times to send this request again if the camera rejects it
+     *            or does not answer; -1 to use the queue's retries
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public long getQueuedTime() {
+        return queuedTime;
+    }
+
+    public void setQueuedTime(long queuedTime) {
+        this.queuedTime = queuedTime;
+    }
+
+    public long getTakenTime() {
+        return takenTime;
+    }
+
+    public void setTakenTime(long takenTime) {
+        this.takenTime = takenTime;
+    }
+
+    public long getSentTime() {
+        return sentTime;
+    }
+
+    public void setSentTime(long sentTime) {
+        this.sentTime = sentTime;
+    }
+
+    public RS232ResponseListener getListener() {
+        return listener;
+    }
+
+    public void setListener(RS232ResponseListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Merges a request that would have the same effect as this one. The
+     * merged request is not sent; its listener gets this request's response.
+     *
+     * @param cmdRequest
+     *            request to answer along with this one
+     */
+    public synchronized void merge(RS232CmdRequest cmdRequest) {
+        if (merged == null) {
+            merged = new ArrayList<RS232CmdRequest>(2);
+        }
+        merged.add(cmdRequest);
+    }
+
+    /**
+     * Forwards the response for this request to its listener, if it has one,
+     * and to the requests merged into it.
+     *
+     * @param response
+     *            parsed response from the camera
+     */
+    public void notifyListener(RS232CmdData response) {
+        if (listener != null) {
+            listener.handleResponse(this, response);
+        }
+        List<RS232CmdRequest> others;
+        synchronized (this) {
+            others = merged;
+        }
+        if (others != null) {
+            for (RS232CmdRequest other : others) {
+                other.notifyListener(response);
+            }
+        }
+    }
+
+    public String toString() {
+        return "Request:: " + name + " (" + cmdData + ")";
+    }
+}
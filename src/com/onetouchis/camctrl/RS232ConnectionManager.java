@@ -0,0 +1,275 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Decides when a processor tries to reconnect to its camera and whether the
+ * link is worth sending to at all. The processor tells it when the link is
+ * lost, when an attempt fails and when it succeeds; the processor keeps its
+ * queue throughout, so commands offered while it reconnects are sent once
+ * the camera is back.
+ * 
+ * The first attempt is made within "wcc.reconnect.initial" ms (20) of losing
+ * the link, so a ser2net restart costs milliseconds. Each failed attempt
+ * doubles the wait, up to "wcc.reconnect.max" ms (10000), and every wait is
+ * randomized between half and all of it so cameras behind the same server
+ * do not retry in step. After "wcc.reconnect.breaker" failed attempts in a
+ * row (6) the circuit breaker opens: the processor answers what is queued
+ * with RESPONSE_REJECTED and refuses new commands with a
+ * <code>LinkDownException</code> until an attempt succeeds. The first
+ * connection is made the same way, at once, so a camera that cannot be
+ * reached when the application starts is retried like one that was lost.
+ * 
+ * A link that is up but silent is checked with an IDENTIFIER heartbeat once
+ * nothing has been sent or received for "wcc.heartbeat.interval" ms (15000,
+ * 0 turns heartbeats off). A heartbeat the camera does not answer within
+ * "wcc.heartbeat.timeout" ms (2000) means the link is dead, even though the
+ * socket has not noticed yet.
+ */
+public class RS232ConnectionManager {
+
+    private static Logger logger = Logger
+            .getLogger(RS232ConnectionManager.class.getName());
+
+    /** returned when nothing is waiting on a deadline */
+    public static final long IDLE = Long.MAX_VALUE;
+
+    /** default wait before the first attempt to reconnect, in ms */
+    private static final long DEFAULT_INITIAL_BACKOFF = 20;
+
+    /** default longest wait between attempts to reconnect, in ms */
+    private static final long DEFAULT_MAX_BACKOFF = 10000;
+
+    /** default failed attempts in a row that open the circuit breaker */
+    private static final int DEFAULT_BREAKER_FAILURES = 6;
+
+    /** default time without traffic before a heartbeat is sent, in ms */
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 15000;
+
+    /** default time the camera has to answer a heartbeat, in ms */
+    private static final long DEFAULT_HEARTBEAT_TIMEOUT = 2000;
+
+    /** the backoff stops doubling long before it could overflow */
+    private static final int MAX_BACKOFF_DOUBLINGS = 30;
+
+    private long initialBackoff = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "wcc.reconnect.initial", DEFAULT_INITIAL_BACKOFF));
+
+    private long maxBackoff = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "wcc.reconnect.max", DEFAULT_MAX_BACKOFF));
+
+    private int breakerFailures = Integer.getInteger("wcc.reconnect.breaker",
+            DEFAULT_BREAKER_FAILURES);
+
+    private long heartbeatInterval = TimeUnit.MILLISECONDS.toNanos(Long
+            .getLong("wcc.heartbeat.interval", DEFAULT_HEARTBEAT_INTERVAL));
+
+    private long heartbeatTimeout = Long.getLong("wcc.heartbeat.timeout",
+            DEFAULT_HEARTBEAT_TIMEOUT);
+
+    private Random random = new Random();
+
+    private boolean connected = false;
+
+    /** failed attempts since the link was lost */
+    private int failures = 0;
+
+    /** nanoTime of the next attempt to connect; the first is due at once */
+    private long nextAttempt = System.nanoTime();
+
+    /** true while commands are refused */
+    private volatile boolean open = false;
+
+    /** nanoTime something was last sent or received */
+    private volatile long lastActivity = System.nanoTime();
+
+    /** heartbeat waiting for its answer, null if none */
+    private RS232CmdRequest heartbeat;
+
+    /**
+     * Records that the processor is connected, closing the circuit breaker.
+     * 
+     * @param now
+     *            current System.nanoTime()
+     */
+    public synchronized void connected(long now) {
+        if (open) {
+            logger.info("Link is back, accepting commands again");
+        }
+        connected = true;
+        failures = 0;
+        open = false;
+        heartbeat = null;
+        lastActivity = now;
+    }
+
+    /**
+     * Records that the link was lost and schedules the first attempt to
+     * reconnect.
+     * 
+     * @param now
+     *            current System.nanoTime()
+     */
+    public synchronized void disconnected(long now) {
+        connected = false;
+        heartbeat = null;
+        nextAttempt = now + getBackoff(failures);
+    }
+
+    /**
+     * Records a failed attempt to reconnect and schedules the next one.
+     * 
+     * @param now
+     *            current System.nanoTime()
+     * @return true if this failure opened the circuit breaker
+     */
+    public synchronized boolean failed(long now) {
+        failures++;
+        nextAttempt = now + getBackoff(failures);
+        if (!open && failures >= breakerFailures) {
+            logger.warning("Link failed to reconnect " + failures
+                    + " times, refusing commands");
+            open = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the wait before an attempt: the initial backoff doubled for
+     * each failure, capped, and randomized between half and all of it.
+     */
+    private long getBackoff(int failures) {
+        long backoff = Math.min(maxBackoff,
+                initialBackoff << Math.min(failures, MAX_BACKOFF_DOUBLINGS));
+        if (backoff <= 0) {
+            backoff = maxBackoff;
+        }
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+
+    /**
+     * @param now
+     *            current System.nanoTime()
+     * @return time until the next attempt to reconnect in nanoseconds, 0 if
+     *         it is due
+     */
+    public synchronized long getAttemptDelay(long now) {
+        return Math.max(0, nextAttempt - now);
+    }
+
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return true while the circuit breaker is open and commands must be
+     *         refused
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return time without traffic before a heartbeat is sent in
+     *         nanoseconds, 0 if heartbeats are turned off
+     */
+    public long getHeartbeatInterval() {
+        return Math.max(0, heartbeatInterval);
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Records that something was sent to or received from the camera, which
+     * puts off the next heartbeat.
+     * 
+     * @param now
+     *            current System.nanoTime()
+     */
+    public void activity(long now) {
+        lastActivity = now;
+    }
+
+    /**
+     * @param now
+     *            current System.nanoTime()
+     * @return time until a heartbeat is due in nanoseconds, 0 if it is due,
+     *         or IDLE if none will be
+     */
+    public synchronized long getHeartbeatDelay(long now) {
+        if (!connected || heartbeat != null || heartbeatInterval <= 0) {
+            return IDLE;
+        }
+        return Math.max(0, lastActivity + heartbeatInterval - now);
+    }
+
+    /**
+     * Returns a heartbeat to send if the link has been idle long enough and
+     * the last one has been answered.
+     * 
+     * @param now
+     *            current System.nanoTime()
+     * @return an IDENTIFIER request to send, or null if none is due
+     */
+    public synchronized RS232CmdRequest getHeartbeat(long now) {
+        if (getHeartbeatDelay(now) != 0) {
+            return null;
+        }
+        heartbeat = new RS232CmdRequest(RS232CmdData.IDENTIFIER);
+        heartbeat.setPriority(RS232CmdRequest.PRIORITY_BACKGROUND);
+        heartbeat.setTimeout(heartbeatTimeout);
+        heartbeat.setRetries(0);
+        lastActivity = now;
+        return heartbeat;
+    }
+
+    /**
+     * Forgets a heartbeat that could not be queued, so another is sent later.
+     */
+    public synchronized void cancelHeartbeat() {
+        heartbeat = null;
+    }
+
+    /**
+     * Checks a response for the answer to the heartbeat.
+     * 
+     * @param request
+     *            request the response is to
+     * @param response
+     *            the response
+     * @return false if it tells that the heartbeat went unanswered and the
+     *         link is dead
+     */
+    public synchronized boolean isAlive(RS232CmdRequest request,
+            RS232CmdData response) {
+        if (request == null || request != heartbeat
+                || RS232CmdData.RESPONSE_ACK.equals(response.getName())) {
+            return true;
+        }
+        heartbeat = null;
+        return !RS232CmdData.RESPONSE_TIMEOUT.equals(response.getName());
+    }
+}
@@ -0,0 +1,244 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The ser2net endpoints a camera can be reached through, in order of
+ * preference, e.g. two terminal servers on an RS-232 splitter. One of them
+ * is active at a time. The others are checked in the background by
+ * connecting to them and closing the connection again, so when the active
+ * one fails the processor goes straight to one known to be up. An endpoint
+ * that was passed over is failed back to once it has been up for two checks
+ * in a row.
+ * 
+ * Endpoints are listed as "host[:port]" separated by commas wherever a
+ * single host is configured; those without a port use the configured port.
+ */
+public class RS232Endpoints {
+
+    private static Logger logger = Logger.getLogger(RS232Endpoints.class
+            .getName());
+
+    /** checks in a row an endpoint must be up before it is failed back to */
+    private static final int FAILBACK_CHECKS = 2;
+
+    /** the endpoints in order of preference; never modified */
+    private List<Endpoint> endpoints;
+
+    /** the endpoint in use, null while none is */
+    private volatile Endpoint active;
+
+    /**
+     * @param hosts
+     *            comma separated list of host[:port]
+     * @param defaultPort
+     *            port of the hosts listed without one
+     */
+    public RS232Endpoints(String hosts, int defaultPort) {
+        List<Endpoint> list = new ArrayList<Endpoint>();
+        for (String host : hosts.split(",")) {
+            host = host.trim();
+            if (host.length() == 0) {
+                continue;
+            }
+            int separator = host.lastIndexOf(':');
+            if (separator > 0 && host.indexOf(':') == separator) {
+                list.add(new Endpoint(host.substring(0, separator), Integer
+                        .parseInt(host.substring(separator + 1).trim())));
+            } else {
+                list.add(new Endpoint(host, defaultPort));
+            }
+        }
+        if (list.isEmpty()) {
+            throw new IllegalArgumentException("no endpoints in " + hosts);
+        }
+        endpoints = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return the endpoints in order of preference
+     */
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return the endpoint in use, or null while none is
+     */
+    public Endpoint getActive() {
+        return active;
+    }
+
+    /**
+     * Records the endpoint a connection has been made to.
+     * 
+     * @param endpoint
+     *            the endpoint, or null once the connection is lost
+     */
+    public synchronized void setActive(Endpoint endpoint) {
+        if (endpoint != null) {
+            endpoint.up = true;
+            endpoint.checks = 0;
+        }
+        active = endpoint;
+    }
+
+    /**
+     * Records that the connection to an endpoint failed.
+     * 
+     * @param endpoint
+     *            the endpoint
+     */
+    public synchronized void failed(Endpoint endpoint) {
+        endpoint.up = false;
+        endpoint.checks = 0;
+    }
+
+    /**
+     * Returns the endpoints in the order to try them: those that were up
+     * when last checked, by preference, then the others.
+     * 
+     * @return endpoints to try
+     */
+    public synchronized List<Endpoint> getCandidates() {
+        List<Endpoint> candidates = new ArrayList<Endpoint>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.up) {
+                candidates.add(endpoint);
+            }
+        }
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.up) {
+                candidates.add(endpoint);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Checks every endpoint but the active one by connecting to it.
+     * 
+     * @param timeout
+     *            time to wait for each connection, in ms
+     * @return true if an endpoint preferred to the active one has been up
+     *         long enough to fail back to
+     */
+    public boolean check(int timeout) {
+        Endpoint current = active;
+        boolean failback = false;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint == current) {
+                continue;
+            }
+            boolean up = probe(endpoint, timeout);
+            synchronized (this) {
+                if (up != endpoint.up) {
+                    logger.info("Endpoint " + endpoint + " is "
+                            + (up ? "up" : "down"));
+                }
+                endpoint.up = up;
+                endpoint.checks = up ? endpoint.checks + 1 : 0;
+                if (current != null && up
+                        && endpoints.indexOf(endpoint) < endpoints
+                                .indexOf(current)
+                        && endpoint.checks >= FAILBACK_CHECKS) {
+                    failback = true;
+                }
+            }
+        }
+        return failback;
+    }
+
+    private boolean probe(Endpoint endpoint, int timeout) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(endpoint.getAddress(), timeout);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * @return true if more than one endpoint is configured
+     */
+    public boolean isRedundant() {
+        return endpoints.size() > 1;
+    }
+
+    @Override
+    public String toString() {
+        return endpoints.toString();
+    }
+
+    /**
+     * One ser2net host and port, and whether it was up when last tried.
+     */
+    public static class Endpoint {
+
+        private String host;
+
+        private int port;
+
+        /** true if the last connection or check succeeded */
+        private volatile boolean up = true;
+
+        /** checks in a row that found it up */
+        private int checks;
+
+        Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public boolean isUp() {
+            return up;
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(host, port);
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
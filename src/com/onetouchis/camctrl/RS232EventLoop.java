@@ -0,0 +1,368 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One thread serving any number of camera connections through a single
+ * <code>Selector</code>. Each pass gives every handler the chance to do what
+ * is due, then waits until a channel is ready, the earliest deadline a
+ * handler asked for passes, or another thread hands the loop some work.
+ * 
+ * The processors share a small pool of loops, "wcc.nio.loops" of them (1 by
+ * default), handed out in turn, so the number of threads does not grow with
+ * the number of cameras. Listeners, which may block writing to a slow
+ * client, are run off the loops by a listener executor, so one slow client
+ * cannot hold up every camera on a loop.
+ */
+public class RS232EventLoop implements Runnable {
+
+    private static Logger logger = Logger.getLogger(RS232EventLoop.class
+            .getName());
+
+    /** returned by a handler with nothing to do until a channel is ready */
+    public static final long IDLE = Long.MAX_VALUE;
+
+    /** default number of loops */
+    private static final int DEFAULT_LOOPS = 1;
+
+    /** the loops handed out so far */
+    private static List<RS232EventLoop> loops = new ArrayList<RS232EventLoop>();
+
+    /** number of times a loop has been handed out */
+    private static int assigned = 0;
+
+    /** threads running the listeners of every camera, started when needed */
+    private static ExecutorService listenerThreads;
+
+    private Selector selector;
+
+    private Thread thread;
+
+    /** work handed to the loop by other threads */
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /** handlers served by the loop; only used on the loop's thread */
+    private Set<Handler> handlers = new LinkedHashSet<Handler>();
+
+    /** the handlers as an array, so a pass allocates no iterator */
+    private Handler[] serving = new Handler[0];
+
+    private volatile boolean running = true;
+
+    /**
+     * Something served by the loop, normally one camera connection. Its
+     * methods are only called on the loop's thread and must not block.
+     */
+    public interface Handler {
+
+        /**
+         * Does whatever is due, such as sending the next command.
+         * 
+         * @param now
+         *            current System.nanoTime()
+         * @return nanoseconds until the handler next has something to do, or
+         *         IDLE to wait for its channel
+         */
+        long service(long now);
+
+        /**
+         * Called when the handler's channel is ready for the operations it
+         * registered for; the key's attachment is the handler.
+         * 
+         * @param key
+         *            the channel's selection key
+         * @param now
+         *            current System.nanoTime()
+         */
+        void ready(SelectionKey key, long now);
+    }
+
+    private RS232EventLoop(int number) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "CameraLoop-" + number);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the loop a new connection should be served by, starting it if
+     * it has not been yet.
+     * 
+     * @return a running loop
+     * @throws IOException
+     *             if the selector cannot be opened
+     */
+    public static synchronized RS232EventLoop next() throws IOException {
+        int count = Math.max(1,
+                Integer.getInteger("wcc.nio.loops", DEFAULT_LOOPS));
+        int index = assigned++ % count;
+        if (index >= loops.size()) {
+            loops.add(new RS232EventLoop(loops.size()));
+            index = loops.size() - 1;
+        }
+        return loops.get(index);
+    }
+
+    /**
+     * Returns an executor for one camera's listeners. Its tasks run one at a
+     * time in the order they were handed to it, on threads shared with the
+     * other cameras; a camera whose listener blocks only holds up its own
+     * listeners.
+     * 
+     * @return a new executor
+     */
+    public static synchronized Executor newListenerExecutor() {
+        if (listenerThreads == null) {
+            listenerThreads = Executors
+                    .newCachedThreadPool(new ThreadFactory() {
+                        private int count = 0;
+
+                        @Override
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "CameraListener-"
+                                    + count++);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return new OrderedExecutor(listenerThreads);
+    }
+
+    /**
+     * Stops every loop, closing their selectors. Called when the web
+     * application is undeployed, after the processors have been closed.
+     */
+    public static synchronized void shutdownAll() {
+        for (RS232EventLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        loops.clear();
+        assigned = 0;
+        if (listenerThreads != null) {
+            listenerThreads.shutdown();
+            listenerThreads = null;
+        }
+    }
+
+    /**
+     * @return the selector channels served by the loop are registered with;
+     *         only to be used on the loop's thread
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Runs a task on the loop's thread before its next pass.
+     * 
+     * @param task
+     *            work to do
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Starts a new pass, so a handler can act on work another thread has
+     * just given it.
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Starts serving a handler.
+     * 
+     * @param handler
+     *            handler to serve
+     */
+    public void register(final Handler handler) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                handlers.add(handler);
+                serving = handlers.toArray(new Handler[handlers.size()]);
+            }
+        });
+    }
+
+    /**
+     * Stops serving a handler, then runs a task on the loop's thread, such as
+     * closing the handler's channel.
+     * 
+     * @param handler
+     *            handler to stop serving
+     * @param then
+     *            task to run once the handler is no longer served, or null
+     */
+    public void deregister(final Handler handler, final Runnable then) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                handlers.remove(handler);
+                serving = handlers.toArray(new Handler[handlers.size()]);
+                if (then != null) {
+                    then.run();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                long now = System.nanoTime();
+                long wait = IDLE;
+                for (Handler handler : serving) {
+                    try {
+                        wait = Math.min(wait, handler.service(now));
+                    } catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "Exception serving "
+                                + handler, e);
+                    }
+                }
+                if (!tasks.isEmpty()) {
+                    wait = 0;
+                }
+                select(wait);
+
+                now = System.nanoTime();
+                Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        try {
+                            ((Handler) key.attachment()).ready(key, now);
+                        } catch (RuntimeException e) {
+                            logger.log(Level.SEVERE, "Exception serving "
+                                    + key.attachment(), e);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Exception in event loop: ", e);
+            }
+        }
+        // let handlers that were closing finish
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Exception closing selector: ", e);
+        }
+    }
+
+    /**
+     * Runs tasks one at a time, in order, on a shared pool.
+     */
+    private static class OrderedExecutor implements Executor, Runnable {
+
+        private Executor pool;
+
+        private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        /** true while the pool has been given this executor to run */
+        private AtomicBoolean scheduled = new AtomicBoolean();
+
+        OrderedExecutor(Executor pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    pool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // shut down with the web application
+                    tasks.clear();
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Exception in listener: ", e);
+                }
+            }
+            scheduled.set(false);
+            // a task added after the last poll but before the flag was
+            // cleared would otherwise wait for the next one
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    private void select(long wait) throws IOException {
+        if (wait <= 0) {
+            selector.selectNow();
+        } else if (wait == IDLE) {
+            selector.select();
+        } else {
+            // round up so the loop does not wake just before the deadline
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait
+                    + TimeUnit.MILLISECONDS.toNanos(1) - 1)));
+        }
+    }
+}
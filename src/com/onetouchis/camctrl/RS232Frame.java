@@ -0,0 +1,102 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.onetouchis.camctrl.util.Utils;
+
+/**
+ * The bytes sent to the camera for one command: its code followed by its
+ * arguments. A frame is encoded once and never changes, so the same frame can
+ * be written for any number of requests, from any thread, without copying.
+ */
+public final class RS232Frame {
+
+    private final byte[] bytes;
+
+    /** hex form of the bytes for logging */
+    private final String hex;
+
+    private RS232Frame(byte[] bytes) {
+        this.bytes = bytes;
+        this.hex = Utils.byteArrayToHexString(bytes);
+    }
+
+    /**
+     * Encodes a command code and its arguments.
+     * 
+     * @param code
+     *            single byte command code
+     * @param arguments
+     *            arguments sent after the code, null if there are none; the
+     *            array is copied
+     * @return the frame
+     */
+    public static RS232Frame encode(byte code, byte[] arguments) {
+        int length = arguments != null ? arguments.length : 0;
+        byte[] bytes = new byte[length + 1];
+        bytes[0] = code;
+        if (length > 0) {
+            System.arraycopy(arguments, 0, bytes, 1, length);
+        }
+        return new RS232Frame(bytes);
+    }
+
+    /**
+     * Writes the frame in a single write.
+     * 
+     * @param out
+     *            stream to the camera
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * Puts the frame into a buffer, for writing to a channel.
+     * 
+     * @param buffer
+     *            buffer with room for the frame
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(bytes);
+    }
+
+    public int getLength() {
+        return bytes.length;
+    }
+
+    /**
+     * @return a copy of the frame's bytes
+     */
+    public byte[] toByteArray() {
+        return bytes.clone();
+    }
+
+    /**
+     * @return the frame's bytes in hex
+     */
+    @Override
+    public String toString() {
+        return hex;
+    }
+}
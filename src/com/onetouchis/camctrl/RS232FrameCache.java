@@ -0,0 +1,97 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Frames for a processor's command catalog, encoded when the catalog is
+ * loaded. Every command has a frame for its default arguments, and commands
+ * taking a single byte from a range, such as PRESET_MOVE 00..09, have a frame
+ * for every value in the range. Other arguments are encoded when the request
+ * is made, so writing a request never encodes anything.
+ */
+public class RS232FrameCache {
+
+    /** largest argument range that is encoded up front */
+    private static final int MAX_RANGE = 256;
+
+    /** frame for each command's default arguments; never modified */
+    private Map<String, RS232Frame> defaults;
+
+    /**
+     * frames for each value of a ranged command's argument, indexed from the
+     * range's minimum; never modified
+     */
+    private Map<String, RS232Frame[]> ranges;
+
+    /**
+     * @param commands
+     *            command catalog of the processor
+     */
+    public RS232FrameCache(Collection<RS232CmdData> commands) {
+        Map<String, RS232Frame> defaultMap = new HashMap<String, RS232Frame>();
+        Map<String, RS232Frame[]> rangeMap = new HashMap<String, RS232Frame[]>();
+        for (RS232CmdData cmdData : commands) {
+            defaultMap.put(cmdData.getName(), RS232Frame.encode(
+                    cmdData.getCode(), cmdData.getArgument()));
+            int min = cmdData.getArgumentMin();
+            int max = cmdData.getArgumentMax();
+            if (max > min && max - min < MAX_RANGE && min >= 0 && max <= 0xFF) {
+                RS232Frame[] frames = new RS232Frame[max - min + 1];
+                for (int i = 0; i < frames.length; i++) {
+                    frames[i] = RS232Frame.encode(cmdData.getCode(),
+                            new byte[] { (byte) (min + i) });
+                }
+                rangeMap.put(cmdData.getName(), frames);
+            }
+        }
+        defaults = Collections.unmodifiableMap(defaultMap);
+        ranges = Collections.unmodifiableMap(rangeMap);
+    }
+
+    /**
+     * Returns the frame for a request whose command data has been resolved,
+     * from the cache when its arguments are the default or in the command's
+     * range, otherwise newly encoded.
+     * 
+     * @param cmdRequest
+     *            request to encode
+     * @return the frame to write
+     */
+    public RS232Frame getFrame(RS232CmdRequest cmdRequest) {
+        RS232CmdData cmdData = cmdRequest.getCmdData();
+        byte[] arguments = cmdRequest.getArguments();
+        if (arguments == cmdData.getArgument()) {
+            RS232Frame frame = defaults.get(cmdData.getName());
+            if (frame != null) {
+                return frame;
+            }
+        } else if (arguments.length == 1) {
+            RS232Frame[] frames = ranges.get(cmdData.getName());
+            int index = (arguments[0] & 0xFF) - cmdData.getArgumentMin();
+            if (frames != null && index >= 0 && index < frames.length) {
+                return frames[index];
+            }
+        }
+        return RS232Frame.encode(cmdData.getCode(), arguments);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Splits the bytes read from the socket into the device's responses, however
+ * the reads happen to divide them. The responses and completion codes in the
+ * command catalog are the frames the decoder knows: the longest one the
+ * buffered bytes match is returned whole, and bytes that could still become
+ * a longer one wait for the rest to arrive. Catalog responses longer than one
+ * byte also give the terminators of responses the catalog does not list,
+ * such as the TV's carriage return; other unknown bytes are returned one at
+ * a time, as the camera answers in single bytes.
+ * 
+ * Bytes are read straight into the decoder's buffer and known frames are
+ * returned as the catalog's own arrays, so a busy link allocates nothing.
+ * Listeners must not modify the frames they are given.
+ */
+public class RS232FrameDecoder {
+
+    /** default size of the read buffer */
+    private static final int DEFAULT_BUFFER_SIZE = 256;
+
+    /** frames in the catalog, longest first */
+    private byte[][] frames;
+
+    /** last bytes of the catalog's multi byte frames */
+    private byte[] terminators;
+
+    /** bytes read but not yet decoded, kept ready to be read into */
+    private ByteBuffer buffer;
+
+    /**
+     * Creates a decoder that knows no frames and returns every byte as a
+     * frame of its own.
+     */
+    public RS232FrameDecoder() {
+        this(new ArrayList<RS232CmdData>());
+    }
+
+    /**
+     * @param commands
+     *            command catalog of the processor
+     */
+    public RS232FrameDecoder(Collection<RS232CmdData> commands) {
+        List<byte[]> known = new ArrayList<byte[]>();
+        byte[] ends = new byte[0];
+        for (RS232CmdData cmdData : commands) {
+            byte[] response = cmdData.getResponse();
+            if (response != null && response.length > 0) {
+                add(known, response);
+                if (response.length > 1) {
+                    ends = add(ends, response[response.length - 1]);
+                }
+            }
+            if (cmdData.getCompletionCode() != 0) {
+                add(known, new byte[] { cmdData.getCompletionCode() });
+            }
+        }
+        frames = known.toArray(new byte[known.size()][]);
+        Arrays.sort(frames, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return b.length - a.length;
+            }
+        });
+        terminators = ends;
+        buffer = ByteBuffer.allocate(Integer.getInteger(
+                "wcc.reader.buffer.size", DEFAULT_BUFFER_SIZE));
+    }
+
+    private void add(List<byte[]> known, byte[] frame) {
+        for (byte[] other : known) {
+            if (Arrays.equals(other, frame)) {
+                return;
+            }
+        }
+        known.add(frame.clone());
+    }
+
+    private byte[] add(byte[] bytes, byte b) {
+        for (byte other : bytes) {
+            if (other == b) {
+                return bytes;
+            }
+        }
+        byte[] more = Arrays.copyOf(bytes, bytes.length + 1);
+        more[bytes.length] = b;
+        return more;
+    }
+
+    /**
+     * Returns the buffer to read into. Bytes are added from its position up
+     * to its limit and the position moved past them, as a channel read does.
+     * 
+     * @return the read buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the next complete frame in the buffer.
+     * 
+     * @return the frame, or null if more bytes are needed
+     */
+    public byte[] next() {
+        buffer.flip();
+        try {
+            // a full buffer cannot wait for more bytes
+            return decode(buffer.limit() == buffer.capacity());
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Returns what is left in the buffer as a frame, once no more bytes have
+     * arrived to complete it.
+     * 
+     * @return the next frame, or null if the buffer is empty
+     */
+    public byte[] flush() {
+        buffer.flip();
+        try {
+            return decode(true);
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * @return true if bytes are waiting for the rest of their frame
+     */
+    public boolean hasPartial() {
+        return buffer.position() > 0;
+    }
+
+    /**
+     * Takes the next frame off the buffer, which is ready to be read from.
+     * 
+     * @param force
+     *            true to return a frame even if more bytes might complete a
+     *            longer one
+     */
+    private byte[] decode(boolean force) {
+        int available = buffer.remaining();
+        if (available == 0) {
+            return null;
+        }
+        int start = buffer.position();
+        byte[] match = null;
+        for (byte[] frame : frames) {
+            int length = Math.min(frame.length, available);
+            if (!matches(frame, start, length)) {
+                continue;
+            }
+            if (frame.length > available) {
+                if (!force) {
+                    // the rest of a longer frame may still be on its way
+                    return null;
+                }
+            } else if (match == null) {
+                match = frame;
+            }
+        }
+        if (match != null) {
+            buffer.position(start + match.length);
+            return match;
+        }
+
+        int length = 1;
+        if (terminators.length > 0) {
+            length = 0;
+            for (int i = start; i < buffer.limit() && length == 0; i++) {
+                if (isTerminator(buffer.get(i))) {
+                    length = i - start + 1;
+                }
+            }
+            if (length == 0) {
+                if (!force) {
+                    return null;
+                }
+                length = available;
+            }
+        }
+        byte[] frame = new byte[length];
+        buffer.get(frame);
+        return frame;
+    }
+
+    private boolean matches(byte[] frame, int start, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(start + i) != frame[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isTerminator(byte b) {
+        for (byte terminator : terminators) {
+            if (terminator == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
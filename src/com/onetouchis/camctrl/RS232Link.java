@@ -0,0 +1,200 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Models the serial line between ser2net and the camera. From the baud rate
+ * and framing it works out how long each frame occupies the line, keeps
+ * track of when the line towards the camera will be free again, and measures
+ * how busy each direction has been over the last second.
+ * 
+ * The baud rate and framing are read from "wcc.rs232.baud" (9600) and
+ * "wcc.rs232.framing" (8N1: data bits, parity N/E/O/M/S, stop bits 1, 1.5 or
+ * 2) and must match the camera's SERIAL_SPEED setting and ser2net's port
+ * configuration.
+ */
+public class RS232Link {
+
+    private static Logger logger = Logger.getLogger(RS232Link.class.getName());
+
+    public static final int DEFAULT_BAUD = 9600;
+
+    public static final String DEFAULT_FRAMING = "8N1";
+
+    private static final Pattern FRAMING = Pattern
+            .compile("([5-8])([NEOMS])(1|1\\.5|2)");
+
+    /** length of each utilization bucket */
+    private static final long BUCKET_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(100);
+
+    /** number of buckets, covering one second */
+    private static final int BUCKETS = 10;
+
+    private static final int TX = 0;
+    private static final int RX = 1;
+
+    private int baud;
+
+    private String framing;
+
+    /** time one character occupies the line, start and stop bits included */
+    private long characterNanos;
+
+    /** nanoTime the last frame sent will have left the line */
+    private long txFreeAt = System.nanoTime();
+
+    /** busy time of each direction in each bucket */
+    private long[][] busy = new long[2][BUCKETS];
+
+    /** bucket number each slot of busy was last used for */
+    private long[][] bucketIds = new long[2][BUCKETS];
+
+    /**
+     * @param baud
+     *            bits per second
+     * @param framing
+     *            data bits, parity and stop bits, e.g. 8N1
+     */
+    public RS232Link(int baud, String framing) {
+        Matcher matcher = FRAMING.matcher(framing.trim().toUpperCase());
+        if (!matcher.matches()) {
+            logger.warning("Unknown framing " + framing + ", using "
+                    + DEFAULT_FRAMING);
+            matcher = FRAMING.matcher(DEFAULT_FRAMING);
+            matcher.matches();
+        }
+        if (baud <= 0) {
+            logger.warning("Invalid baud rate " + baud + ", using "
+                    + DEFAULT_BAUD);
+            baud = DEFAULT_BAUD;
+        }
+        // counted in half bits for 1.5 stop bits
+        int halfBits = 2 // start bit
+                + 2 * Integer.parseInt(matcher.group(1))
+                + ("N".equals(matcher.group(2)) ? 0 : 2)
+                + (int) (2 * Double.parseDouble(matcher.group(3)));
+        this.baud = baud;
+        this.framing = matcher.group();
+        this.characterNanos = (halfBits * TimeUnit.SECONDS.toNanos(1) + baud)
+                / (2L * baud);
+    }
+
+    /**
+     * @return a link configured by the wcc.rs232 system properties
+     */
+    public static RS232Link create() {
+        return new RS232Link(Integer.getInteger("wcc.rs232.baud",
+                DEFAULT_BAUD), System.getProperty("wcc.rs232.framing",
+                DEFAULT_FRAMING));
+    }
+
+    public int getBaud() {
+        return baud;
+    }
+
+    public String getFraming() {
+        return framing;
+    }
+
+    /**
+     * @param bytes
+     *            frame length
+     * @return time in nanoseconds the frame occupies the line
+     */
+    public long getTransmitTime(int bytes) {
+        return bytes * characterNanos;
+    }
+
+    /**
+     * Records a frame written towards the camera. The frame starts once the
+     * frames before it have left the line.
+     * 
+     * @param now
+     *            current System.nanoTime()
+     * @param bytes
+     *            frame length
+     * @return nanoTime the frame will have left the line
+     */
+    public synchronized long transmit(long now, int bytes) {
+        long start = now - txFreeAt > 0 ? now : txFreeAt;
+        long time = getTransmitTime(bytes);
+        txFreeAt = start + time;
+        addBusy(TX, start, time);
+        return txFreeAt;
+    }
+
+    /**
+     * Records a frame received from the camera.
+     * 
+     * @param now
+     *            current System.nanoTime(), when the frame was read
+     * @param bytes
+     *            frame length
+     */
+    public synchronized void received(long now, int bytes) {
+        long time = getTransmitTime(bytes);
+        addBusy(RX, now - time, time);
+    }
+
+    /**
+     * @param now
+     *            current System.nanoTime()
+     * @return fraction of the last second the line towards the camera was
+     *         busy
+     */
+    public synchronized double getTxUtilization(long now) {
+        return getUtilization(TX, now);
+    }
+
+    /**
+     * @param now
+     *            current System.nanoTime()
+     * @return fraction of the last second the line from the camera was busy
+     */
+    public synchronized double getRxUtilization(long now) {
+        return getUtilization(RX, now);
+    }
+
+    private void addBusy(int direction, long start, long time) {
+        long id = start / BUCKET_NANOS;
+        int slot = (int) (((id % BUCKETS) + BUCKETS) % BUCKETS);
+        if (bucketIds[direction][slot] != id) {
+            bucketIds[direction][slot] = id;
+            busy[direction][slot] = 0;
+        }
+        busy[direction][slot] += time;
+    }
+
+    private double getUtilization(int direction, long now) {
+        long current = now / BUCKET_NANOS;
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long id = bucketIds[direction][i];
+            if (id <= current && current - id < BUCKETS) {
+                total += busy[direction][i];
+            }
+        }
+        return Math.min(1.0, total / (double) (BUCKETS * BUCKET_NANOS));
+    }
+}
@@ -0,0 +1,248 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and counters for one camera's command processor. A
+ * histogram is created for every phase of every command in the catalog when
+ * the processor starts, so recording a time is a map lookup and two atomic
+ * adds; nothing is allocated while commands are being sent.
+ *
+ * The phases of a command are measured from the request's timestamps:
+ * <ul>
+ * <li>queue: from being offered to the queue to being taken from it,
+ * including the pacing wait</li>
+ * <li>wire: from being taken to being written to the socket</li>
+ * <li>ack: from being written to the camera's acknowledgement</li>
+ * <li>complete: from being written to the camera's completion code</li>
+ * </ul>
+ */
+public class RS232Metrics {
+
+    public static final int QUEUE = 0;
+    public static final int WIRE = 1;
+    public static final int ACK = 2;
+    public static final int COMPLETE = 3;
+
+    /** names of the phases, indexed by phase */
+    public static final String[] PHASES = { "queue", "wire", "ack", "complete" };
+
+    /**
+     * number of buckets; bucket i counts times up to 2^i microseconds and the
+     * last bucket counts everything longer
+     */
+    public static final int BUCKETS = 26;
+
+    /** upper bound of each bucket in seconds, as written by the endpoint */
+    public static final String[] BUCKET_BOUNDS = new String[BUCKETS];
+
+    static {
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            BUCKET_BOUNDS[i] = String.valueOf((1L << i) / 1000000.0);
+        }
+        BUCKET_BOUNDS[BUCKETS - 1] = "+Inf";
+    }
+
+    /** histograms by command name, indexed by phase; never modified */
+    private Map<String, Histogram[]> histograms;
+
+    private AtomicLong nacks = new AtomicLong();
+
+    private AtomicLong reconnects = new AtomicLong();
+
+    private AtomicLong rejects = new AtomicLong();
+
+    private AtomicLong pacingWaitNanos = new AtomicLong();
+
+    /** queue whose depth is reported */
+    private volatile RS232BlockingQ queue;
+
+    /** serial line whose utilization is reported */
+    private volatile RS232Link link;
+
+    /** endpoints the camera is reached through, null if not known */
+    private volatile RS232Endpoints endpoints;
+
+    /**
+     * Creates metrics that record nothing.
+     */
+    public RS232Metrics() {
+        this(Collections.<RS232CmdData> emptyList());
+    }
+
+    /**
+     * @param commands
+     *            command catalog of the processor
+     */
+    public RS232Metrics(Collection<RS232CmdData> commands) {
+        Map<String, Histogram[]> map = new HashMap<String, Histogram[]>();
+        for (RS232CmdData cmdData : commands) {
+            Histogram[] phases = new Histogram[PHASES.length];
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram();
+            }
+            map.put(cmdData.getName(), phases);
+        }
+        histograms = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Records the time a command spent in one phase.
+     *
+     * @param name
+     *            command name
+     * @param phase
+     *            QUEUE, WIRE, ACK or COMPLETE
+     * @param nanos
+     *            time in nanoseconds
+     */
+    public void record(String name, int phase, long nanos) {
+        Histogram[] phases = histograms.get(name);
+        if (phases != null) {
+            phases[phase].record(nanos);
+        }
+    }
+
+    public void nack() {
+        nacks.incrementAndGet();
+    }
+
+    public void reconnect() {
+        reconnects.incrementAndGet();
+    }
+
+    /**
+     * Counts a command refused or shed because the queue was full.
+     */
+    public void reject() {
+        rejects.incrementAndGet();
+    }
+
+    public void addPacingWait(long nanos) {
+        pacingWaitNanos.addAndGet(nanos);
+    }
+
+    public void setQueue(RS232BlockingQ queue) {
+        this.queue = queue;
+    }
+
+    public void setLink(RS232Link link) {
+        this.link = link;
+    }
+
+    public void setEndpoints(RS232Endpoints endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * @return endpoints the camera is reached through, null if not known
+     */
+    public RS232Endpoints getEndpoints() {
+        return endpoints;
+    }
+
+    public long getNacks() {
+        return nacks.get();
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    public long getRejects() {
+        return rejects.get();
+    }
+
+    public long getPacingWaitNanos() {
+        return pacingWaitNanos.get();
+    }
+
+    /**
+     * @return number of commands waiting to be sent
+     */
+    public int getQueueDepth() {
+        RS232BlockingQ current = queue;
+        return current != null ? current.size() : 0;
+    }
+
+    /**
+     * @return fraction of the last second the line towards the camera was
+     *         busy
+     */
+    public double getTxUtilization() {
+        RS232Link current = link;
+        return current != null ? current.getTxUtilization(System.nanoTime())
+                : 0;
+    }
+
+    /**
+     * @return fraction of the last second the line from the camera was busy
+     */
+    public double getRxUtilization() {
+        RS232Link current = link;
+        return current != null ? current.getRxUtilization(System.nanoTime())
+                : 0;
+    }
+
+    /**
+     * @return histograms by command name, each indexed by phase
+     */
+    public Map<String, Histogram[]> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * Counts of times falling in each power of two bucket, and their sum.
+     */
+    public static class Histogram {
+
+        private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private AtomicLong sumNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = (nanos + 999) / 1000;
+            int bucket = micros <= 1 ? 0
+                    : 64 - Long.numberOfLeadingZeros(micros - 1);
+            buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            sumNanos.addAndGet(nanos);
+        }
+
+        /**
+         * @return count of each bucket; not cumulative
+         */
+        public long[] getCounts() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+
+        public long getSumNanos() {
+            return sumNanos.get();
+        }
+    }
+}
@@ -17,22 +17,17 @@
  */
 package com.onetouchis.camctrl;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.servlet.ServletContext;
-
-import com.onetouchis.camctrl.util.Utils;
+import com.onetouchis.camctrl.RS232Endpoints.Endpoint;
 
 /**
  * This class forwards commands to a network socket. The command is mapped to
@@ -40,53 +35,99 @@ import com.onetouchis.camctrl.util.Utils;
  * is ready. Intended use is to forward commands to a program such as "ser2net"
  * that will send the command out a serial port.
  * 
+ * A lost socket is noticed by the reader as soon as the other end closes it,
+ * by the sending thread when a write fails, or by a missed heartbeat. The
+ * sending thread then reconnects when the <code>RS232ConnectionManager</code>
+ * says to, waiting at most "wcc.connect.timeout" ms (2000) for each attempt,
+ * and carries on with the same queue.
+ * 
+ * The host may list several ser2net endpoints, e.g. "ts1,ts2:4002", which
+ * reach the same camera. They are kept by <code>RS232Endpoints</code>: when
+ * the active one fails the processor reconnects to the next one that is up,
+ * keeping the queued commands, and the standby endpoints are checked every
+ * "wcc.failover.check.interval" ms (5000), each given
+ * "wcc.failover.check.timeout" ms (1000) to accept a connection. A
+ * preferred endpoint that has come back is connected to while the camera is
+ * idle, and the sending thread moves over to it once nothing is waiting for
+ * an answer, without the link going down. The endpoint in use is reported
+ * in the metrics.
+ * 
  * @author bradnorris
  * 
  */
-public class RS232NetProcessor extends Thread implements IProcessor,
-        RS232ResponseListener {
+public class RS232NetProcessor extends RS232Processor implements Runnable {
 
     private static Logger logger = Logger.getLogger(RS232NetProcessor.class
             .getName());
 
-    private Map<String, RS232CmdData> nameToCmdMap = new HashMap<String, RS232CmdData>();
+    /** default time to wait for a connection, in ms */
+    private static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+
+    /** default time between checks of the standby endpoints, in ms */
+    private static final long DEFAULT_CHECK_INTERVAL = 5000;
+
+    /** default time a standby endpoint has to accept a connection, in ms */
+    private static final int DEFAULT_CHECK_TIMEOUT = 1000;
 
     /**
-     * Host address of the remote socket connected to an RS232 port
-     */
-    private String remoteIpAddress;
-    
-    /**
-     * Port id of the remote socket connected to an RS232 port
+     * the remote sockets connected to the camera's RS232 port, in order of
+     * preference
      */
-    private int remotePortNumber;
+    private RS232Endpoints endpoints;
+
     /**
      * selected socket that is associated with a serial port for
-     * sending/receiving data
+     * sending/receiving data, null while reconnecting
      */
     private Socket serialSocket;
 
     /** stream to RS232 device */
     private OutputStream outputStream;
 
-    private Thread sendThread;
+    /** reads the responses from the socket */
+    private RS232Reader reader;
+
+    /**
+     * socket being dropped; it stays in serialSocket until the queue knows
+     * the link is down, so the sending thread cannot reconnect before then
+     */
+    private Socket dropping;
 
-    private boolean running;
+    private int connectTimeout = Integer.getInteger("wcc.connect.timeout",
+            DEFAULT_CONNECT_TIMEOUT);
 
-    private boolean portFound = false;
+    private long checkInterval = Long.getLong("wcc.failover.check.interval",
+            DEFAULT_CHECK_INTERVAL);
+
+    private int checkTimeout = Integer.getInteger(
+            "wcc.failover.check.timeout", DEFAULT_CHECK_TIMEOUT);
+
+    /**
+     * socket connected to a preferred endpoint for the sending thread to
+     * move over to, null if none is waiting
+     */
+    private volatile Socket standby;
 
-    private ServletContext context;
+    /** the endpoint the standby socket is connected to */
+    private Endpoint standbyEndpoint;
 
-    /** queue for sending commands to the RS232 device */
-    protected RS232BlockingQ queue;
+    /** checks the standby endpoints, null if there are none */
+    private ScheduledExecutorService healthChecks;
+
+    private Thread sendThread;
+
+    private volatile boolean running;
 
     public RS232NetProcessor() throws Exception {
     }
 
     /**
-     * Creates the network socket to send commands, loads up the commands, 
-     * starts the queue for sending commands, then sends an identifier cmd.
-     * @param remoteIpAddress host that will receive the cmds
+     * Loads up the commands and starts the queue and the thread sending
+     * commands, which connects the network socket and sends an identifier
+     * cmd. A camera that cannot be reached yet is retried as the
+     * <code>RS232ConnectionManager</code> decides.
+     * @param remoteIpAddress host that will receive the cmds, or a comma
+     *            separated list of host[:port] to fail over between
      * @param remotePortNumber network port on the host that will receive cmds
      * @param commPort not used.
      */
@@ -94,129 +135,328 @@ public class RS232NetProcessor extends Thread implements IProcessor,
     public void initialize(String remoteIpAddress, int remotePortNumber, String commPort)
             throws Exception {
 
-        // save the remote host and port in case we need to reconnect the socket
-        this.remoteIpAddress = remoteIpAddress;
-        this.remotePortNumber = remotePortNumber;
-        
-        loadCommands();
+        // save the remote hosts and ports in case we need to reconnect the socket
+        endpoints = new RS232Endpoints(remoteIpAddress, remotePortNumber);
+        Endpoint preferred = endpoints.getEndpoints().get(0);
         
-        setupSocket();
+        loadCatalog(preferred.getHost(), preferred.getPort());
+        metrics.setEndpoints(endpoints);
+        setQueue(new RS232BlockingQ(this, metrics));
 
+        running = true;
+        sendThread = new Thread(this);
+        sendThread.start();
+        startHeartbeats();
+        startHealthChecks();
+    }
+
+    /**
+     * Connects to the first endpoint that accepts a connection, trying those
+     * that were up first.
+     * @throws IOException if no endpoint can be reached
+     */
+    private void connect() throws IOException {
+        IOException failure = null;
+        for (Endpoint endpoint : endpoints.getCandidates()) {
+            try {
+                setupSocket(endpoint);
+                return;
+            } catch (IOException e) {
+                if (endpoints.isRedundant()) {
+                    logger.warning("Unable to connect to " + endpoint + ": "
+                            + e.getMessage());
+                }
+                endpoints.failed(endpoint);
+                failure = e;
+            }
+        }
+        throw failure;
     }
   
     /**
-     * Resets the socket connection by closing it if it's open, then connecting
-     * @throws Exception
+     * Connects the socket and makes it the one in use. Nothing reads from it
+     * until <code>startReader</code> is called, so a connection the other
+     * end closes straight away is only noticed once the socket is in use.
+     * @param endpoint where to connect to
+     * @throws IOException if the host cannot be reached
      */
-    private void setupSocket() throws Exception
+    private void setupSocket(Endpoint endpoint) throws IOException
     {
-        logger.info("Attempting to connect to host " + remoteIpAddress + " on port "
-                + remotePortNumber);
-        if (serialSocket != null)
-        {
-            serialSocket.close();
+        logger.info("Attempting to connect to host " + endpoint.getHost() + " on port "
+                + endpoint.getPort());
+        Socket socket = openSocket(endpoint);
+        OutputStream out;
+        try {
+            out = socket.getOutputStream();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
         }
-        serialSocket = new Socket(remoteIpAddress, remotePortNumber);
-        outputStream = serialSocket.getOutputStream();
+        synchronized (this) {
+            serialSocket = socket;
+            outputStream = out;
+        }
+        endpoints.setActive(endpoint);
+    }
 
-        running = true;
-        queue = new RS232BlockingQ(serialSocket, this);
-        sendThread = new Thread(this);
-        sendThread.start();
+    /**
+     * @param endpoint where to connect to
+     * @return a socket connected to the endpoint
+     * @throws IOException if the host cannot be reached
+     */
+    private Socket openSocket(Endpoint endpoint) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(endpoint.getAddress(), connectTimeout);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
 
-        RS232CmdData identifier = nameToCmdMap.get("IDENTIFIER");
-        queue.offer(identifier);
-        Thread.sleep(5000);
+    /**
+     * Starts reading the responses from the socket in use into the queue.
+     * Called once the socket and its endpoint have been made the ones in
+     * use, so that the socket failing straight away is not ignored.
+     */
+    private void startReader(final Socket socket) {
+        RS232Reader socketReader = new RS232Reader(socket,
+                new RS232ReaderListener() {
+                    @Override
+                    public void handleEvent(byte[] message) {
+                        queue.handleEvent(message);
+                    }
 
+                    @Override
+                    public void handleClosed() {
+                        lost(socket);
+                    }
+                }, new RS232FrameDecoder(nameToCmdMap.values()));
+        synchronized (this) {
+            if (socket == serialSocket && reader == null) {
+                reader = socketReader;
+                return;
+            }
+        }
+        // already dropped by the reader itself
+        socketReader.stopService();
     }
 
     /**
-     * Loads commands from a csv file in the resources directory and creates
-     * a map command names to command data.
-     * @throws FileNotFoundException
+     * Drops a socket that has failed and tells the queue the link is down,
+     * unless the socket has already been dropped. The socket is only cleared
+     * once the link is down, so the sending thread never reconnects while
+     * the queue and the connection manager still think it is up.
+     * @param socket the socket that failed
      */
-    public void loadCommands() throws FileNotFoundException {
-        File resourceDir = new File("resources");
-        if (!resourceDir.exists()) {
-            String commandsFile = "/resources/commands.csv";
-            logger.info("Loading commands from: " + commandsFile);
-            InputStream is = context.getResourceAsStream(commandsFile);
-
-            if (is == null) {
-                throw new FileNotFoundException(commandsFile);
+    private void lost(Socket socket) {
+        RS232Reader socketReader;
+        synchronized (this) {
+            if (socket != serialSocket || socket == dropping) {
+                return;
             }
-            logger.info("Reading cmds from inside jar file");
-            RS232CmdFileScanner scanner = new RS232CmdFileScanner();
-            List<RS232CmdData> commands = scanner.readDataFile(is);
-            for (RS232CmdData data : commands) {
-                nameToCmdMap.put(data.getName(), data);
+            dropping = socket;
+            socketReader = reader;
+        }
+        Endpoint endpoint = endpoints.getActive();
+        endpoints.setActive(null);
+        logger.warning("Lost connection to " + endpoint);
+        if (endpoint != null) {
+            endpoints.failed(endpoint);
+        }
+        closeSocket(socket, socketReader);
+        // the reconnect goes to the preferred endpoint anyway
+        closeSocket(takeStandby(), null);
+        linkDown(System.nanoTime());
+        synchronized (this) {
+            serialSocket = null;
+            outputStream = null;
+            reader = null;
+            dropping = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Starts checking the standby endpoints, if there are any, and fails
+     * back to a preferred one that has come back while nothing is queued or
+     * waiting for an answer. The checks wait on connections, so they have a
+     * thread of their own rather than holding up the timer's heartbeats.
+     */
+    private void startHealthChecks() {
+        if (!endpoints.isRedundant()) {
+            return;
+        }
+        healthChecks = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CameraHealthCheck");
+                t.setDaemon(true);
+                return t;
             }
-        } else {
-            File[] files = resourceDir.listFiles();
-
-            for (File file : files) {
-                if (file.getName().endsWith("csv")) {
-                    System.out.println("Reading cmds from: " + file.getName());
-                    RS232CmdFileScanner scanner = new RS232CmdFileScanner();
-                    List<RS232CmdData> commands = scanner.readDataFile(file);
-                    for (RS232CmdData data : commands) {
-                        nameToCmdMap.put(data.getName(), data);
-                    }
+        });
+        healthChecks.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (endpoints.check(checkTimeout) && queue.isIdle()) {
+                    failBack();
                 }
             }
-        }
-
+        }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Returns the command code for a given command
-     * @param commandName the name of the command
-     * @return
+     * Connects to the most preferred endpoint that is up and leaves the
+     * socket for the sending thread to move over to, so the link to the
+     * camera never goes down.
      */
-    public byte getCommand(String commandName) {
-        return nameToCmdMap.get(commandName).getCode();
+    private void failBack() {
+        Endpoint active = endpoints.getActive();
+        Endpoint preferred = null;
+        for (Endpoint endpoint : endpoints.getEndpoints()) {
+            if (endpoint == active) {
+                break;
+            }
+            if (endpoint.isUp()) {
+                preferred = endpoint;
+                break;
+            }
+        }
+        if (active == null || preferred == null || standby != null) {
+            return;
+        }
+        Socket socket;
+        try {
+            socket = openSocket(preferred);
+        } catch (IOException e) {
+            logger.warning("Unable to fail back to " + preferred + ": "
+                    + e.getMessage());
+            endpoints.failed(preferred);
+            return;
+        }
+        synchronized (this) {
+            if (running && serialSocket != null && dropping == null
+                    && standby == null) {
+                logger.info("Failing back from " + active + " to "
+                        + preferred);
+                standbyEndpoint = preferred;
+                standby = socket;
+                // wakes the sending thread if it is waiting for a command
+                sendThread.interrupt();
+                return;
+            }
+        }
+        closeSocket(socket, null);
     }
 
     /**
-     * Adds the command data associated with the cmdStr to
-     * the cms queue.
-     * @param cmdStr name of the command
+     * Moves over to the standby socket, if there is one, unless a command
+     * sent before is still waiting for an answer on the old socket.
+     * @param socket the socket in use
+     * @param sending true if a command has been taken to send
+     * @return the socket to send on
      */
-    @Override
-    public void sendDataCommand(String cmdStr) {
-        RS232CmdData cmdData = nameToCmdMap.get(cmdStr);
-        if (cmdData != null) {
-            queue.offer(cmdData);
-        } else {
-            logger.warning("Could not find command: " + cmdStr);
+    private Socket useStandby(Socket socket, boolean sending) {
+        if (standby == null || queue.getInFlight() > (sending ? 1 : 0)) {
+            return socket;
+        }
+        Socket next;
+        Endpoint endpoint;
+        RS232Reader oldReader;
+        synchronized (this) {
+            if (socket != serialSocket || socket == dropping) {
+                return socket;
+            }
+            endpoint = standbyEndpoint;
+            next = takeStandby();
+            if (next == null) {
+                return socket;
+            }
+            try {
+                outputStream = next.getOutputStream();
+            } catch (IOException e) {
+                logger.warning("Unable to fail back to " + endpoint + ": "
+                        + e.getMessage());
+                closeSocket(next, null);
+                return socket;
+            }
+            oldReader = reader;
+            serialSocket = next;
+            reader = null;
         }
+        endpoints.setActive(endpoint);
+        closeSocket(socket, oldReader);
+        startReader(next);
+        logger.info("Failed back to " + endpoint);
+        return next;
     }
 
     /**
-     * Adds a new command data object from the cmdStr and args to
-     * the cms queue.
-     * @param cmdStr name of the command
+     * @return the standby socket, which is no longer kept, or null if there
+     *         is none
+     */
+    private synchronized Socket takeStandby() {
+        Socket socket = standby;
+        standby = null;
+        standbyEndpoint = null;
+        return socket;
+    }
+
+    /**
+     * Closes the socket; the reader notices and the link is reconnected.
      */
     @Override
-    public void sendDataCommand(String cmdStr, byte[] arguments) {
-        RS232CmdData cmdData = nameToCmdMap.get(cmdStr);
-        if (cmdData != null) {
-            cmdData.setArgument(arguments);
-            queue.offer(cmdData);
-        } else {
-            logger.warning("Could not find command: " + cmdStr);
+    protected void heartbeatMissed() {
+        Socket socket;
+        synchronized (this) {
+            socket = serialSocket;
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Exception closing socket: ", e);
+            }
         }
     }
 
     @Override
     public void close() {
+        running = false;
+        stopTimer();
+        if (healthChecks != null) {
+            healthChecks.shutdownNow();
+        }
+        closeSocket(takeStandby(), null);
+        Socket socket;
+        RS232Reader socketReader;
+        synchronized (this) {
+            socket = serialSocket;
+            socketReader = reader;
+            serialSocket = null;
+            reader = null;
+            notifyAll();
+        }
+        closeSocket(socket, socketReader);
+        queue.stopService();
+        if (sendThread != null) {
+            sendThread.interrupt();
+        }
+        stopPacer();
+    }
+
+    /**
+     * Stops the socket's reader and closes the socket.
+     */
+    private void closeSocket(Socket socket, RS232Reader socketReader) {
+        if (socketReader != null) {
+            socketReader.stopService();
+        }
         try {
-            running = false;
-            if (serialSocket != null) {
-                serialSocket.close();
-            }
-            if (queue != null) {
-                queue.stopService();
+            if (socket != null) {
+                socket.close();
             }
         } catch (IOException e) {
             logger.log(Level.WARNING, "Exception closing socket: ", e);
@@ -225,52 +465,84 @@ public class RS232NetProcessor extends Thread implements IProcessor,
 
     public void run() {
 
-        boolean connectionFailed = false;
         while (running) {
+            Socket socket;
+            OutputStream out;
+            synchronized (this) {
+                socket = serialSocket;
+                out = outputStream;
+            }
             try {
-                RS232CmdData cmdData = null;
-                if (queue == null) {
-                    logger.warning("Waiting for queue to reset");
-                    Thread.sleep(1000);
+                if (socket == null) {
+                    reconnect();
+                    continue;
+                }
+                if (useStandby(socket, false) != socket) {
+                    continue;
                 }
-                cmdData = queue.take();
-                if (cmdData != null) {
-                    byte code = cmdData.getCode();
-                    byte[] arg = cmdData.getArgument();
-                    byte[] cmd = null;
-                    if (arg != null) {
-                        cmd = new byte[arg.length + 1];
-                        cmd[0] = code;
-                        for (int i = 1; i < cmd.length; i++) {
-                            cmd[i] = arg[i - 1];
-                        }
-                    } else {
-                        cmd = new byte[1];
-                        cmd[0] = code;
+                // null once the link is lost
+                RS232CmdRequest cmdData = queue.take();
+                if (cmdData == null) {
+                    awaitDropped(socket);
+                } else {
+                    Socket next = useStandby(socket, true);
+                    if (next != socket) {
+                        socket = next;
+                        out = next.getOutputStream();
                     }
-                    logger.info("Sending: --" + Utils.byteArrayToHexString(cmd)
-                            + "--");
-                    outputStream.write(cmd);
+                    RS232Frame frame = getFrame(cmdData);
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("Sending: --" + frame + "--");
+                    }
+                    frame.writeTo(out);
+                    sent(cmdData);
                 }
             } catch (InterruptedException ie) {
                 // ignore
-            } catch (Exception e) {
+            } catch (IOException e) {
                 logger.log(Level.WARNING, "Exception sending cmd: ", e);
-                logger.log(Level.WARNING, "Caused by: " + e.getCause());
-                connectionFailed = true;
+                lost(socket);
             }
-            
-            if (connectionFailed) {
-                logger.warning("Retrying socket: " + remoteIpAddress + ":" + remotePortNumber);
-                try {
-                    close();
-                    setupSocket();
-                    connectionFailed = false;
-                } catch (Exception e1) {
-                    logger.log(Level.WARNING, "Unable to reconnect socket", e1);
-                }
+        }
+    }
 
+    /**
+     * Waits until a socket the queue has been disconnected from is cleared.
+     */
+    private synchronized void awaitDropped(Socket socket)
+            throws InterruptedException {
+        while (running && serialSocket == socket) {
+            wait();
+        }
+    }
+
+    /**
+     * Waits until the next attempt is due and tries to connect, for the
+     * first time or again.
+     */
+    private void reconnect() throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(connection.getAttemptDelay(System
+                .nanoTime()));
+        if (!running) {
+            return;
+        }
+        if (wasLinked()) {
+            logger.warning("Retrying socket: " + endpoints);
+        }
+        try {
+            connect();
+            logger.info("Connected to " + endpoints.getActive());
+            linkUp(System.nanoTime());
+            // only now, so a connection closed straight away is lost after
+            // the link came up rather than before
+            Socket socket;
+            synchronized (this) {
+                socket = serialSocket;
             }
+            startReader(socket);
+        } catch (IOException e) {
+            logger.warning("Unable to connect socket: " + e.getMessage());
+            reconnectFailed(System.nanoTime());
         }
     }
 
@@ -281,25 +553,4 @@ public class RS232NetProcessor extends Thread implements IProcessor,
         }
     }
 
-    public void setDelay(int delay) {
-        queue.setDelay(delay);
-    }
-
-    @Override
-    public void handleResponse(RS232CmdData response) {
-
-        logger.info("Received response: " + response + "");
-        if (RS232CmdData.RESPONSE_SUCESS.equals(response.getName())
-                && portFound == false) {
-            logger.info("Found a camera!");
-            portFound = true;
-        }
-
-    }
-
-    @Override
-    public void setContext(ServletContext context) {
-        this.context = context;
-    }
-
 }
@@ -0,0 +1,355 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Forwards commands to a network socket like <code>RS232NetProcessor</code>,
+ * but without threads of its own: the socket is a non-blocking channel served
+ * by a shared <code>RS232EventLoop</code>, which sends each command once the
+ * queue releases it and hands the camera's responses to the queue as they
+ * are read. The queue paces and matches answers exactly as it does for the
+ * other processors. Listeners are told about responses on the loop's
+ * listener threads, in order, never on the loop's own thread.
+ * 
+ * A lost connection is retried when the <code>RS232ConnectionManager</code>
+ * says to, without holding up the other cameras on the loop, and commands
+ * queued meanwhile are sent once it is back. Heartbeats are sent from the
+ * loop as well. Selected with
+ * "wcc.rs232.processor" or "wcc.camera.&lt;id&gt;.processor" set to
+ * com.onetouchis.camctrl.RS232NioProcessor.
+ */
+public class RS232NioProcessor extends RS232Processor implements
+        RS232EventLoop.Handler {
+
+    private static Logger logger = Logger.getLogger(RS232NioProcessor.class
+            .getName());
+
+    /** default time to wait for a connection, in ms */
+    private static final long DEFAULT_CONNECT_TIMEOUT = 2000;
+
+    /** default time to wait for the rest of a response, in ms */
+    private static final long DEFAULT_FRAME_TIMEOUT = 50;
+
+    /** longest frame that can be written */
+    private static final int MAX_FRAME = 256;
+
+    private InetSocketAddress address;
+
+    /** loop serving the connection */
+    private RS232EventLoop loop;
+
+    private long connectTimeout = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "wcc.connect.timeout", DEFAULT_CONNECT_TIMEOUT));
+
+    private long frameTimeout = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "wcc.reader.frame.timeout", DEFAULT_FRAME_TIMEOUT));
+
+    // the fields below are only used on the loop's thread
+
+    /** the connection, null while waiting to reconnect */
+    private SocketChannel channel;
+
+    private SelectionKey key;
+
+    /** true while a reconnect is in progress */
+    private boolean connecting = false;
+
+    /** nanoTime a reconnect in progress is given up on */
+    private long connectDeadline;
+
+    /** splits what is read into responses */
+    private RS232FrameDecoder decoder;
+
+    /** nanoTime a partial response is passed on as it is, 0 if none */
+    private long flushAt = 0;
+
+    /** holds the frame of the command being written, reused for each one */
+    private ByteBuffer pending = ByteBuffer.allocateDirect(MAX_FRAME);
+
+    /** command whose frame is being written, null if none */
+    private RS232CmdRequest writing;
+
+    public RS232NioProcessor() {
+    }
+
+    /**
+     * Loads up the commands and starts serving the camera on an event loop,
+     * which connects to the host and sends an identifier cmd. A camera that
+     * cannot be reached yet is retried as the
+     * <code>RS232ConnectionManager</code> decides.
+     * @param remoteIpAddress host that will receive the cmds
+     * @param remotePortNumber network port on the host that will receive cmds
+     * @param commPort not used.
+     */
+    @Override
+    public void initialize(String remoteIpAddress, int remotePortNumber,
+            String commPort) throws Exception {
+        address = new InetSocketAddress(remoteIpAddress, remotePortNumber);
+        loadCatalog(remoteIpAddress, remotePortNumber);
+        setQueue(new RS232BlockingQ(this, metrics));
+        queue.setListenerExecutor(RS232EventLoop.newListenerExecutor());
+
+        loop = RS232EventLoop.next();
+        loop.register(this);
+    }
+
+    /**
+     * Starts reading from a new connection and lets the queue release
+     * commands on it. Called on the loop's thread.
+     */
+    private void connected() throws IOException {
+        channel.socket().setTcpNoDelay(true);
+        decoder = new RS232FrameDecoder(nameToCmdMap.values());
+        flushAt = 0;
+        writing = null;
+        linkUp(System.nanoTime());
+    }
+
+    /**
+     * Wakes the loop so a command offered from another thread is sent
+     * without waiting for the loop's next deadline.
+     */
+    @Override
+    protected void queued() {
+        if (loop != null) {
+            loop.wakeup();
+        }
+    }
+
+    @Override
+    public long service(long now) {
+        if (channel == null) {
+            long wait = connection.getAttemptDelay(now);
+            if (wait > 0) {
+                return wait;
+            }
+            reconnect(now);
+            return channel == null ? connection.getAttemptDelay(now)
+                    : RS232EventLoop.IDLE;
+        }
+        if (connecting) {
+            if (now - connectDeadline >= 0) {
+                disconnected(new IOException("connect timed out"), now);
+                return connection.getAttemptDelay(now);
+            }
+            return connectDeadline - now;
+        }
+        if (flushAt != 0 && now - flushAt >= 0) {
+            flushAt = 0;
+            byte[] frame;
+            while ((frame = decoder.flush()) != null) {
+                queue.handleEvent(frame);
+            }
+        }
+        heartbeat(now);
+        if (!write(now)) {
+            return RS232EventLoop.IDLE;
+        }
+        long wait = Math.min(queue.getReadyDelay(now),
+                connection.getHeartbeatDelay(now));
+        if (flushAt != 0) {
+            wait = Math.min(wait, flushAt - now);
+        }
+        return wait;
+    }
+
+    /**
+     * Writes what the queue releases until it releases nothing more or the
+     * socket cannot take any more.
+     * @return true unless the connection was lost or a frame is still
+     *         waiting to be written
+     */
+    private boolean write(long now) {
+        try {
+            while (true) {
+                if (writing == null) {
+                    writing = queue.poll(now);
+                    if (writing == null) {
+                        return true;
+                    }
+                    RS232Frame frame = getFrame(writing);
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("Sending: --" + frame + "--");
+                    }
+                    if (frame.getLength() > pending.capacity()) {
+                        pending = ByteBuffer.allocateDirect(frame.getLength());
+                    }
+                    pending.clear();
+                    frame.writeTo(pending);
+                    pending.flip();
+                }
+                channel.write(pending);
+                if (pending.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ
+                            | SelectionKey.OP_WRITE);
+                    return false;
+                }
+                sent(writing);
+                writing = null;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            disconnected(e, now);
+            return false;
+        }
+    }
+
+    @Override
+    public void ready(SelectionKey key, long now) {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                connecting = false;
+                key.interestOps(SelectionKey.OP_READ);
+                connected();
+                return;
+            }
+            if (key.isReadable()) {
+                ByteBuffer buffer = decoder.getBuffer();
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Connection closed by "
+                            + address);
+                }
+                byte[] frame;
+                while ((frame = decoder.next()) != null) {
+                    queue.handleEvent(frame);
+                }
+                flushAt = decoder.hasPartial() ? now + frameTimeout : 0;
+            }
+            if (key.isValid() && key.isWritable()) {
+                write(now);
+            }
+        } catch (IOException e) {
+            disconnected(e, now);
+        }
+    }
+
+    /**
+     * Closes a connection that failed; the queue keeps its commands until
+     * the next attempt to reconnect succeeds.
+     */
+    private void disconnected(IOException e, long now) {
+        if (channel == null) {
+            return;
+        }
+        if (connecting) {
+            logger.log(Level.WARNING, "Unable to connect socket: "
+                    + e.getMessage());
+            closeChannel();
+            reconnectFailed(now);
+            return;
+        }
+        logger.log(Level.WARNING, "Lost connection to " + address + ": "
+                + e.getMessage());
+        closeChannel();
+        linkDown(now);
+    }
+
+    /**
+     * Drops the connection on the loop's thread, once the queue is no
+     * longer locked.
+     */
+    @Override
+    protected void heartbeatMissed() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                disconnected(new IOException("heartbeat not answered"),
+                        System.nanoTime());
+            }
+        });
+    }
+
+    /**
+     * Starts connecting, for the first time or again, without blocking the
+     * loop; the connection is given "wcc.connect.timeout" ms to complete.
+     */
+    private void reconnect(long now) {
+        if (wasLinked()) {
+            logger.warning("Retrying socket: " + address);
+        } else {
+            logger.info("Attempting to connect to host " + address);
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = channel.register(loop.getSelector(),
+                    SelectionKey.OP_CONNECT, this);
+            connecting = true;
+            connectDeadline = now + connectTimeout;
+            if (channel.connect(address)) {
+                connecting = false;
+                key.interestOps(SelectionKey.OP_READ);
+                connected();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to connect socket: "
+                    + e.getMessage());
+            closeChannel();
+            reconnectFailed(now);
+        }
+    }
+
+    /**
+     * Closes the channel.
+     */
+    private void closeChannel() {
+        connecting = false;
+        writing = null;
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Exception closing socket: ", e);
+            }
+            channel = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (loop != null) {
+            loop.deregister(this, new Runnable() {
+                @Override
+                public void run() {
+                    closeChannel();
+                    queue.stopService();
+                }
+            });
+        }
+        stopPacer();
+    }
+
+    @Override
+    public String toString() {
+        return "RS232NioProcessor " + address;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Learns, for each command, how long the camera needs after answering it
+ * before it accepts the next command. A gap is widened quickly when the next
+ * command is rejected with a NACK and narrowed slowly after a run of clean
+ * answers, so each link settles near the fastest rate it can take without
+ * errors. Round trip and completion times are averaged per command as well.
+ *
+ * The learned values are kept in a properties file, one per camera link, so
+ * a restart starts from where the last run left off. Enabled by setting
+ * "wcc.pacing.adaptive" to true.
+ */
+public class RS232Pacer {
+
+    private static Logger logger = Logger.getLogger(RS232Pacer.class
+            .getName());
+
+    /** default amount a gap is narrowed by after a clean run */
+    private static final long DEFAULT_STEP = 5;
+
+    /** default smallest gap */
+    private static final long DEFAULT_MIN_GAP = 0;
+
+    /** default largest gap */
+    private static final long DEFAULT_MAX_GAP = 2000;
+
+    /** default number of clean answers before a gap is narrowed */
+    private static final int DEFAULT_CLEAN_RUN = 10;
+
+    /** default time between saves of the learned values */
+    private static final long DEFAULT_SAVE_INTERVAL = 60000;
+
+    /** weight of a new sample in the averaged times */
+    private static final double SMOOTHING = 0.125;
+
+    private long step = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "wcc.pacing.step", DEFAULT_STEP));
+
+    private long minGap = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "wcc.pacing.min", DEFAULT_MIN_GAP));
+
+    private long maxGap = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "wcc.pacing.max", DEFAULT_MAX_GAP));
+
+    private int cleanRun = Integer.getInteger("wcc.pacing.clean",
+            DEFAULT_CLEAN_RUN);
+
+    /** pacing of each command by name; the map is never modified */
+    private Map<String, Pacing> pacings;
+
+    /** where the learned values are kept */
+    private File file;
+
+    /** true when there are learned values that have not been saved */
+    private boolean dirty = false;
+
+    /** saves the learned values periodically, null until started */
+    private ScheduledExecutorService saver;
+
+    /**
+     * held while saving, so a save started by stop() cannot interleave with
+     * a periodic one or be overwritten by an older snapshot
+     */
+    private final Object saving = new Object();
+
+    /**
+     * @param commands
+     *            command catalog of the processor
+     * @param file
+     *            file the learned values are loaded from and saved to
+     */
+    public RS232Pacer(Collection<RS232CmdData> commands, File file) {
+        Map<String, Pacing> map = new HashMap<String, Pacing>();
+        for (RS232CmdData cmdData : commands) {
+            map.put(cmdData.getName(), new Pacing());
+        }
+        pacings = Collections.unmodifiableMap(map);
+        this.file = file;
+    }
+
+    /**
+     * Returns the file for a camera link, in the application server's bin
+     * directory like the presets, unless "wcc.pacing.dir" names another.
+     *
+     * @param host
+     *            host the camera is reached through
+     * @param port
+     *            port the camera is reached through
+     * @return the pacing file of the link
+     */
+    public static File getFile(String host, int port) {
+        String dir = System.getProperty("wcc.pacing.dir",
+                System.getProperty("jboss.home.dir", ".") + File.separator
+                        + "bin");
+        return new File(dir, "pacing-" + host + "-" + port + ".properties");
+    }
+
+    /**
+     * Returns the gap to leave after a command has been answered.
+     *
+     * @param name
+     *            command name
+     * @param defaultGap
+     *            gap from the commands file, used until one is learned
+     * @return gap in nanoseconds
+     */
+    public synchronized long getGap(String name, long defaultGap) {
+        Pacing pacing = pacings.get(name);
+        if (pacing == null || pacing.gap < 0) {
+            return defaultGap;
+        }
+        return pacing.gap;
+    }
+
+    /**
+     * Records the camera's answer to a command.
+     *
+     * @param gapOwner
+     *            command whose gap came before the answered command, null if
+     *            there was none
+     * @param defaultGap
+     *            the gap owner's gap from the commands file
+     * @param name
+     *            answered command
+     * @param roundTrip
+     *            time from sending to the ACK, 0 if none was received
+     * @param completion
+     *            time from sending to the completion code, 0 if none
+     * @param nack
+     *            true if the camera rejected the command
+     */
+    public synchronized void answered(String gapOwner, long defaultGap,
+            String name, long roundTrip, long completion, boolean nack) {
+        Pacing pacing = pacings.get(name);
+        if (pacing != null) {
+            pacing.roundTrip = average(pacing.roundTrip, roundTrip);
+            pacing.completion = average(pacing.completion, completion);
+            dirty = true;
+        }
+
+        Pacing owner = gapOwner != null ? pacings.get(gapOwner) : null;
+        if (owner == null) {
+            return;
+        }
+        long gap = owner.gap < 0 ? defaultGap : owner.gap;
+        if (nack) {
+            // the camera was not ready yet, back off quickly
+            owner.gap = Math.min(maxGap, Math.max(gap * 2, step));
+            owner.cleanRuns = 0;
+            logger.info("Widened gap after " + gapOwner + " to "
+                    + TimeUnit.NANOSECONDS.toMillis(owner.gap) + " ms");
+            dirty = true;
+        } else if (++owner.cleanRuns >= cleanRun) {
+            owner.gap = Math.max(minGap, gap - step);
+            owner.cleanRuns = 0;
+            dirty = owner.gap != gap || dirty;
+        }
+    }
+
+    private long average(long average, long sample) {
+        if (sample <= 0) {
+            return average;
+        } else if (average <= 0) {
+            return sample;
+        }
+        return average + (long) ((sample - average) * SMOOTHING);
+    }
+
+    /**
+     * Loads the values learned by a previous run and starts saving the
+     * values learned from now on every "wcc.pacing.save.interval" ms.
+     */
+    public synchronized void start() {
+        load();
+        long interval = Long.getLong("wcc.pacing.save.interval",
+                DEFAULT_SAVE_INTERVAL);
+        saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PacingSaver");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        saver.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops saving periodically and saves what has been learned.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (saver != null) {
+                saver.shutdown();
+                saver = null;
+            }
+        }
+        save();
+    }
+
+    /**
+     * Loads the values learned by a previous run, if there are any.
+     */
+    public synchronized void load() {
+        if (!file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+            for (Map.Entry<String, Pacing> entry : pacings.entrySet()) {
+                Pacing pacing = entry.getValue();
+                pacing.gap = getMillis(properties, entry.getKey() + ".gap",
+                        pacing.gap);
+                pacing.roundTrip = getMillis(properties, entry.getKey()
+                        + ".roundTrip", pacing.roundTrip);
+                pacing.completion = getMillis(properties, entry.getKey()
+                        + ".completion", pacing.completion);
+            }
+            logger.info("Loaded pacing from " + file);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Unable to load pacing from " + file, e);
+        } finally {
+            close(in);
+        }
+    }
+
+    private long getMillis(Properties properties, String key, long value) {
+        String millis = properties.getProperty(key);
+        if (millis == null) {
+            return value;
+        }
+        return (long) (Double.parseDouble(millis) * 1000000);
+    }
+
+    /**
+     * Saves the learned values if they have changed since they were loaded
+     * or last saved. They are written to a temporary file that then replaces
+     * the file, so a crash while saving leaves the previous values intact.
+     */
+    public void save() {
+        synchronized (saving) {
+            store();
+        }
+    }
+
+    private void store() {
+        Properties properties = new Properties();
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            for (Map.Entry<String, Pacing> entry : pacings.entrySet()) {
+                Pacing pacing = entry.getValue();
+                putMillis(properties, entry.getKey() + ".gap", pacing.gap);
+                putMillis(properties, entry.getKey() + ".roundTrip",
+                        pacing.roundTrip);
+                putMillis(properties, entry.getKey() + ".completion",
+                        pacing.completion);
+            }
+            dirty = false;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            properties.store(out, "Learned command pacing in milliseconds");
+            out.close();
+            out = null;
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            logger.fine("Saved pacing to " + file);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to save pacing to " + file, e);
+            synchronized (this) {
+                dirty = true;
+            }
+        } finally {
+            close(out);
+        }
+    }
+
+    private void putMillis(Properties properties, String key, long nanos) {
+        if (nanos >= 0) {
+            properties.setProperty(key, String.valueOf(nanos / 1000000.0));
+        }
+    }
+
+    private void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * What has been learned about one command, in nanoseconds.
+     */
+    static class Pacing {
+
+        /** gap after the command's answer, -1 until one has been learned */
+        private long gap = -1;
+
+        /** clean answers since the gap was last changed */
+        private int cleanRuns;
+
+        /** averaged time to the ACK, 0 if never measured */
+        private long roundTrip;
+
+        /** averaged time to the completion code, 0 if never measured */
+        private long completion;
+    }
+}
@@ -0,0 +1,532 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+
+/**
+ * What every processor sending the command catalog to a camera through an
+ * <code>RS232BlockingQ</code> has in common: loading the catalog, resolving
+ * and queueing requests, and passing responses and link status changes on
+ * to the listeners. Subclasses connect to the camera and send what the
+ * queue releases. One queue is kept for the life of the processor; when the
+ * link is lost the subclass reconnects as its
+ * <code>RS232ConnectionManager</code> decides and the queued commands are
+ * sent on the new connection.
+ */
+public abstract class RS232Processor implements IProcessor,
+        RS232ResponseListener {
+
+    private static Logger logger = Logger.getLogger(RS232Processor.class
+            .getName());
+
+    protected Map<String, RS232CmdData> nameToCmdMap = new HashMap<String, RS232CmdData>();
+
+    /** encoded frames for the commands, built when they are loaded */
+    protected RS232FrameCache frames = new RS232FrameCache(
+            Collections.<RS232CmdData> emptyList());
+
+    /** set once the camera answers the identifier command */
+    protected volatile boolean ready = false;
+
+    protected ServletContext context;
+
+    /** queue for sending commands to the RS232 device */
+    protected volatile RS232BlockingQ queue;
+
+    /** command latencies and link statistics */
+    protected RS232Metrics metrics = new RS232Metrics();
+
+    /** learns the gap after each command, null unless wcc.pacing.adaptive */
+    protected RS232Pacer pacer;
+
+    /** the serial line to the camera, kept across reconnects */
+    protected RS232Link link = RS232Link.create();
+
+    /** when to reconnect, heartbeats and the circuit breaker */
+    protected RS232ConnectionManager connection = new RS232ConnectionManager();
+
+    /** true once the link has been up, so the next connection is a reconnect */
+    private volatile boolean linked = false;
+
+    /** runs heartbeats and other timed work, null until first needed */
+    private ScheduledExecutorService timer;
+
+    /** listeners interested in every response and link status change */
+    private List<RS232ResponseListener> responseListeners = new CopyOnWriteArrayList<RS232ResponseListener>();
+
+    /**
+     * Loads the commands and sets up everything built from them: metrics,
+     * frames, the serial line model and, with "wcc.pacing.adaptive", the
+     * pacer whose learned values are kept under the given name.
+     * @param host host the camera is reached through
+     * @param port port the camera is reached through
+     * @throws FileNotFoundException if there is no commands file
+     */
+    protected void loadCatalog(String host, int port)
+            throws FileNotFoundException {
+        loadCommands();
+        metrics = new RS232Metrics(nameToCmdMap.values());
+        frames = new RS232FrameCache(nameToCmdMap.values());
+        link = RS232Link.create();
+        metrics.setLink(link);
+        logger.info("Serial line " + link.getBaud() + " baud "
+                + link.getFraming());
+        if (Boolean.getBoolean("wcc.pacing.adaptive")) {
+            pacer = new RS232Pacer(nameToCmdMap.values(), RS232Pacer.getFile(
+                    host, port));
+            pacer.start();
+        }
+    }
+
+    /**
+     * Makes a queue the one commands are sent to, paced and measured by
+     * this processor.
+     * @param queue the queue
+     */
+    protected void setQueue(RS232BlockingQ queue) {
+        queue.setPacer(pacer);
+        queue.setLink(link);
+        metrics.setQueue(queue);
+        this.queue = queue;
+    }
+
+    /**
+     * Loads commands from a csv file in the resources directory and creates
+     * a map command names to command data.
+     * @throws FileNotFoundException
+     */
+    public void loadCommands() throws FileNotFoundException {
+        File resourceDir = new File("resources");
+        if (!resourceDir.exists()) {
+            String commandsFile = "/resources/commands.csv";
+            logger.info("Loading commands from: " + commandsFile);
+            InputStream is = context.getResourceAsStream(commandsFile);
+
+            if (is == null) {
+                throw new FileNotFoundException(commandsFile);
+            }
+            logger.info("Reading cmds from inside jar file");
+            RS232CmdFileScanner scanner = new RS232CmdFileScanner();
+            List<RS232CmdData> commands = scanner.readDataFile(is);
+            for (RS232CmdData data : commands) {
+                nameToCmdMap.put(data.getName(), data);
+            }
+        } else {
+            File[] files = resourceDir.listFiles();
+
+            for (File file : files) {
+                if (file.getName().endsWith("csv")) {
+                    System.out.println("Reading cmds from: " + file.getName());
+                    RS232CmdFileScanner scanner = new RS232CmdFileScanner();
+                    List<RS232CmdData> commands = scanner.readDataFile(file);
+                    for (RS232CmdData data : commands) {
+                        nameToCmdMap.put(data.getName(), data);
+                    }
+                }
+            }
+        }
+
+    }
+
+    @Override
+    public Collection<RS232CmdData> getCommands() {
+        return Collections.unmodifiableCollection(nameToCmdMap.values());
+    }
+
+    /**
+     * Returns the command code for a given command
+     * @param commandName the name of the command
+     * @return
+     */
+    public byte getCommand(String commandName) {
+        return nameToCmdMap.get(commandName).getCode();
+    }
+
+    /**
+     * Adds the command data associated with the cmdStr to
+     * the cms queue.
+     * @param cmdStr name of the command
+     */
+    @Override
+    public void sendDataCommand(String cmdStr) {
+        sendDataCommand(new RS232CmdRequest(cmdStr));
+    }
+
+    /**
+     * Adds a new command data object from the cmdStr and args to
+     * the cms queue.
+     * @param cmdStr name of the command
+     */
+    @Override
+    public void sendDataCommand(String cmdStr, byte[] arguments) {
+        sendDataCommand(new RS232CmdRequest(cmdStr, arguments));
+    }
+
+    /**
+     * Resolves the command data for the request and adds it to the cmd
+     * queue. If the command is unknown the request's listener is told
+     * right away that the command failed.
+     * @param cmdRequest request to send
+     * @throws QueueFullException if the queue has no room for the command
+     * @throws LinkDownException if the link is down and not coming back soon
+     */
+    @Override
+    public void sendDataCommand(RS232CmdRequest cmdRequest) {
+        checkLink(cmdRequest.getName());
+        RS232CmdData cmdData = cmdRequest.getCmdData();
+        if (cmdData == null) {
+            cmdData = nameToCmdMap.get(cmdRequest.getName());
+        }
+        if (cmdData != null) {
+            cmdRequest.setCmdData(cmdData);
+            cmdRequest.setFrame(frames.getFrame(cmdRequest));
+            RS232BlockingQ current = queue;
+            if (!current.offer(cmdRequest)) {
+                throw new QueueFullException("Queue full, refused "
+                        + cmdRequest.getName(), current.getDrainTime());
+            }
+            queued();
+        } else {
+            logger.warning("Could not find command: " + cmdRequest.getName());
+            RS232CmdData response = new RS232CmdData();
+            response.setName(RS232CmdData.RESPONSE_FAIL);
+            cmdRequest.notifyListener(response);
+        }
+    }
+
+    /**
+     * Resolves the command data for every request and adds the known
+     * commands to the cmd queue in one step.
+     * @param cmdRequests requests to send, in order
+     * @throws QueueFullException if the queue has no room for the commands
+     * @throws LinkDownException if the link is down and not coming back soon
+     */
+    @Override
+    public void sendDataCommands(List<RS232CmdRequest> cmdRequests) {
+        checkLink(cmdRequests.size() + " commands");
+        List<RS232CmdRequest> known = new ArrayList<RS232CmdRequest>(
+                cmdRequests.size());
+        for (RS232CmdRequest cmdRequest : cmdRequests) {
+            RS232CmdData cmdData = cmdRequest.getCmdData();
+            if (cmdData == null) {
+                cmdData = nameToCmdMap.get(cmdRequest.getName());
+            }
+            if (cmdData != null) {
+                cmdRequest.setCmdData(cmdData);
+                cmdRequest.setFrame(frames.getFrame(cmdRequest));
+                known.add(cmdRequest);
+            } else {
+                logger.warning("Could not find command: " + cmdRequest.getName());
+                RS232CmdData response = new RS232CmdData();
+                response.setName(RS232CmdData.RESPONSE_FAIL);
+                cmdRequest.notifyListener(response);
+            }
+        }
+        RS232BlockingQ current = queue;
+        if (!current.offerAll(known)) {
+            throw new QueueFullException("Queue full, refused "
+                    + known.size() + " commands", current.getDrainTime());
+        }
+        queued();
+    }
+
+    /**
+     * Refuses commands while the circuit breaker is open.
+     */
+    private void checkLink(String refused) {
+        if (connection.isOpen()) {
+            throw new LinkDownException("Link down, refused " + refused,
+                    TimeUnit.NANOSECONDS.toMillis(connection
+                            .getAttemptDelay(System.nanoTime())));
+        }
+    }
+
+    /**
+     * Called after commands have been added to the queue, for subclasses
+     * whose sending thread does not wait on the queue itself.
+     */
+    protected void queued() {
+    }
+
+    /**
+     * Returns the frame to write for a command released by the queue.
+     * @param cmdData released command
+     * @return the request's frame, encoded now if it has none
+     */
+    protected RS232Frame getFrame(RS232CmdRequest cmdData) {
+        RS232Frame frame = cmdData.getFrame();
+        if (frame == null) {
+            frame = frames.getFrame(cmdData);
+        }
+        return frame;
+    }
+
+    /**
+     * Records that a released command has been written to the camera.
+     * @param cmdData command written
+     */
+    protected void sent(RS232CmdRequest cmdData) {
+        cmdData.setSentTime(System.nanoTime());
+        connection.activity(cmdData.getSentTime());
+        metrics.record(cmdData.getName(), RS232Metrics.WIRE,
+                cmdData.getSentTime() - cmdData.getTakenTime());
+    }
+
+    /**
+     * Records that the connection to the camera is up, whether for the
+     * first time or again, and sends the identifier command ahead of what
+     * was queued meanwhile. The processor becomes ready when the camera
+     * answers it.
+     * @param now current System.nanoTime()
+     */
+    protected void linkUp(long now) {
+        if (linked) {
+            metrics.reconnect();
+        }
+        linked = true;
+        ready = false;
+        connection.connected(now);
+        queue.connected(now);
+        fireStatus(RS232CmdData.STATUS_CONNECTED);
+        RS232CmdRequest identifier = new RS232CmdRequest(
+                RS232CmdData.IDENTIFIER);
+        identifier.setPriority(RS232CmdRequest.PRIORITY_EMERGENCY);
+        sendDataCommand(identifier);
+    }
+
+    /**
+     * Records that the connection to the camera was lost. The queue keeps
+     * its commands and the commands in flight are sent again once the link
+     * is back; the next attempt to reconnect is scheduled.
+     * @param now current System.nanoTime()
+     */
+    protected void linkDown(long now) {
+        queue.disconnected(now);
+        connection.disconnected(now);
+        ready = false;
+        fireStatus(RS232CmdData.STATUS_DISCONNECTED);
+    }
+
+    /**
+     * @return true once the link has been up, so connecting now is
+     *         reconnecting
+     */
+    protected boolean wasLinked() {
+        return linked;
+    }
+
+    /**
+     * Records a failed attempt to reconnect. When it opens the circuit
+     * breaker the queued commands are answered with RESPONSE_REJECTED
+     * rather than left waiting for a link that is not coming back soon.
+     * @param now current System.nanoTime()
+     */
+    protected void reconnectFailed(long now) {
+        if (connection.failed(now)) {
+            int rejected = queue.rejectAll();
+            if (rejected > 0) {
+                logger.warning("Rejected " + rejected
+                        + " queued commands, the link is down");
+            }
+        }
+    }
+
+    /**
+     * Sends an IDENTIFIER heartbeat if the link has been idle long enough.
+     * @param now current System.nanoTime()
+     */
+    protected void heartbeat(long now) {
+        RS232CmdRequest heartbeat = connection.getHeartbeat(now);
+        if (heartbeat != null) {
+            logger.fine("Sending heartbeat");
+            try {
+                sendDataCommand(heartbeat);
+            } catch (QueueFullException e) {
+                connection.cancelHeartbeat();
+            }
+        }
+    }
+
+    /**
+     * Starts sending heartbeats from the timer, unless they are turned off.
+     * For subclasses without a loop of their own to send them from.
+     */
+    protected void startHeartbeats() {
+        final long interval = connection.getHeartbeatInterval();
+        if (interval <= 0) {
+            return;
+        }
+        final ScheduledExecutorService heartbeats = getTimer();
+        heartbeats.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                heartbeat(now);
+                long wait = connection.getHeartbeatDelay(now);
+                if (wait == RS232ConnectionManager.IDLE) {
+                    wait = interval;
+                }
+                if (!heartbeats.isShutdown()) {
+                    heartbeats.schedule(this, wait, TimeUnit.NANOSECONDS);
+                }
+            }
+        }, interval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the processor's timer, a single daemon thread started the
+     * first time it is needed.
+     * @return the timer
+     */
+    protected synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CameraTimer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Stops the timer and everything scheduled on it.
+     */
+    protected synchronized void stopTimer() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Called when the camera did not answer a heartbeat, so the link is dead
+     * even if the connection has not noticed. Subclasses drop the
+     * connection so it is lost and reconnected as any other, by closing it
+     * or handing the work to the thread that owns it rather than calling
+     * <code>linkDown</code> directly: only the thread reading the socket,
+     * port or channel clears it and connects again, so a listener's thread
+     * never races it to replace the connection.
+     */
+    protected abstract void heartbeatMissed();
+
+    /**
+     * Stops the pacer, saving what it has learned.
+     */
+    protected void stopPacer() {
+        if (pacer != null) {
+            pacer.stop();
+        }
+    }
+
+    public void setDelay(int delay) {
+        queue.setDelay(delay);
+    }
+
+    @Override
+    public void handleResponse(RS232CmdRequest request, RS232CmdData response) {
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Received response: " + response);
+        }
+        for (RS232ResponseListener listener : responseListeners) {
+            listener.handleResponse(request, response);
+        }
+
+        if (request != null) {
+            if (!connection.isAlive(request, response)) {
+                logger.warning("Heartbeat not answered, link is dead");
+                heartbeatMissed();
+                return;
+            }
+            if (!RS232CmdData.RESPONSE_TIMEOUT.equals(response.getName())) {
+                connection.activity(System.nanoTime());
+            }
+        }
+
+        if (!ready && request != null
+                && RS232CmdData.IDENTIFIER.equals(request.getName())
+                && RS232CmdData.RESPONSE_SUCESS.equals(response.getName())) {
+            logger.info("Found a camera!");
+            ready = true;
+            fireStatus(RS232CmdData.STATUS_READY);
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public LinkState getLinkState() {
+        if (connection.isOpen()) {
+            return LinkState.UNAVAILABLE;
+        }
+        if (connection.isConnected()) {
+            return LinkState.CONNECTED;
+        }
+        return linked ? LinkState.DISCONNECTED : LinkState.CONNECTING;
+    }
+
+    @Override
+    public RS232Metrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void addResponseListener(RS232ResponseListener listener) {
+        responseListeners.add(listener);
+    }
+
+    /**
+     * Notifies the response listeners of a change in the link to the camera.
+     * @param status one of the RS232CmdData status names
+     */
+    protected void fireStatus(String status) {
+        RS232CmdData response = new RS232CmdData();
+        response.setName(status);
+        handleResponse(null, response);
+    }
+
+    @Override
+    public void setContext(ServletContext context) {
+        this.context = context;
+    }
+
+}
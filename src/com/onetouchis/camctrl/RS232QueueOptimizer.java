@@ -0,0 +1,295 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl;
+
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes queued commands that no longer need to be sent once a newer command
+ * is offered. Only commands that have not been released from the queue are
+ * touched, and only movement commands after the last non movement command in
+ * the queue, so the camera ends up where it would have after sending
+ * everything:
+ * <ul>
+ * <li>a step cancels a queued step in the opposite direction on its axis</li>
+ * <li>a start replaces a queued start on its axis</li>
+ * <li>a stop replaces queued starts and stops of its axes; when it removed a
+ * start and none of its axes will be moving, the stop is dropped as well</li>
+ * <li>a PRESET_MOVE identical to the last queued command is merged into it</li>
+ * </ul>
+ * Requests that are merged are answered with the response to the request
+ * they were merged into; requests that cancel out are handed back to the
+ * queue, which answers them with RESPONSE_CANCELLED once it is unlocked.
+ */
+public class RS232QueueOptimizer {
+
+    private Logger logger = Logger.getLogger(RS232QueueOptimizer.class
+            .getName());
+
+    private static final int PAN = 0;
+    private static final int TILT = 1;
+    private static final int ZOOM = 2;
+    private static final int FOCUS = 3;
+
+    private static final int STEP = 0;
+    private static final int START = 1;
+    private static final int STOP = 2;
+
+    /** movement commands by name */
+    private static final Map<String, Movement> MOVEMENTS = new HashMap<String, Movement>();
+
+    static {
+        step(RS232CmdData.PAN_LEFT, PAN, -1);
+        step(RS232CmdData.PAN_RIGHT, PAN, 1);
+        step(RS232CmdData.TILT_UP, TILT, 1);
+        step(RS232CmdData.TILT_DOWN, TILT, -1);
+        step(RS232CmdData.ZOOM_WIDE, ZOOM, -1);
+        step(RS232CmdData.ZOOM_TELE, ZOOM, 1);
+        step(RS232CmdData.FOCUS_FAR, FOCUS, 1);
+        step(RS232CmdData.FOCUS_NEAR, FOCUS, -1);
+        start(RS232CmdData.PAN_LEFT_START, PAN);
+        start(RS232CmdData.PAN_RIGHT_START, PAN);
+        start(RS232CmdData.TILT_UP_START, TILT);
+        start(RS232CmdData.TILT_DOWN_START, TILT);
+        start(RS232CmdData.ZOOM_WIDE_START, ZOOM);
+        start(RS232CmdData.ZOOM_TELE_START, ZOOM);
+        start(RS232CmdData.FOCUS_FAR_START, FOCUS);
+        start(RS232CmdData.FOCUS_NEAR_START, FOCUS);
+        stop(RS232CmdData.PAN_TILT_STOP, PAN, TILT);
+        stop(RS232CmdData.ZOOM_STOP, ZOOM);
+        stop(RS232CmdData.FOCUS_STOP, FOCUS);
+    }
+
+    /** axes moving because of a start that has been sent */
+    private boolean[] moving = new boolean[4];
+
+    private static void step(String name, int axis, int direction) {
+        MOVEMENTS.put(name, new Movement(STEP, direction, axis));
+    }
+
+    private static void start(String name, int axis) {
+        MOVEMENTS.put(name, new Movement(START, 0, axis));
+    }
+
+    private static void stop(String name, int... axes) {
+        MOVEMENTS.put(name, new Movement(STOP, 0, axes));
+    }
+
+    /**
+     * Works out which queued commands the offered command makes redundant
+     * and removes them from the queue. Must be called with the queue locked.
+     *
+     * @param incoming
+     *            command being offered
+     * @param queue
+     *            commands not yet released, oldest first
+     * @param cancelled
+     *            requests that will not be sent are added to this list,
+     *            including the offered command if it is not needed
+     * @return true if the offered command still needs to be enqueued
+     */
+    public boolean optimize(RS232CmdRequest incoming,
+            Deque<RS232CmdRequest> queue, List<RS232CmdRequest> cancelled) {
+        String name = incoming.getName();
+        if (RS232CmdData.PRESET_MOVE.equals(name)) {
+            RS232CmdRequest last = queue.peekLast();
+            if (last != null && name.equals(last.getName())
+                    && Arrays.equals(last.getArguments(),
+                            incoming.getArguments())) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Merged repeated " + incoming);
+                }
+                last.merge(incoming);
+                return false;
+            }
+            return true;
+        }
+        Movement movement = MOVEMENTS.get(name);
+        if (movement == null) {
+            return true;
+        }
+
+        boolean removedStart = false;
+        Iterator<RS232CmdRequest> pending = queue.descendingIterator();
+        while (pending.hasNext()) {
+            RS232CmdRequest cmdRequest = pending.next();
+            Movement queued = MOVEMENTS.get(cmdRequest.getName());
+            if (queued == null) {
+                // anything else might depend on how the camera is moving
+                break;
+            }
+            if (!queued.overlaps(movement)) {
+                continue;
+            }
+            if (movement.kind == STEP) {
+                if (queued.kind == STEP
+                        && queued.direction == -movement.direction) {
+                    logger.fine("Cancelled " + name + " with queued "
+                            + cmdRequest.getName());
+                    pending.remove();
+                    cancelled.add(cmdRequest);
+                    cancelled.add(incoming);
+                    return false;
+                }
+                break;
+            } else if (movement.kind == START) {
+                if (queued.kind != START) {
+                    break;
+                }
+                logger.fine("Replaced queued " + cmdRequest.getName()
+                        + " with " + name);
+                pending.remove();
+                cancelled.add(cmdRequest);
+            } else {
+                if (queued.kind == START) {
+                    logger.fine("Removed queued " + cmdRequest.getName()
+                            + " before " + name);
+                    pending.remove();
+                    cancelled.add(cmdRequest);
+                    removedStart = true;
+                } else if (queued.kind == STOP) {
+                    pending.remove();
+                    incoming.merge(cmdRequest);
+                } else {
+                    break;
+                }
+            }
+        }
+
+        if (removedStart && !isMoving(movement, queue)) {
+            logger.fine("Dropped " + name + ", nothing left for it to stop");
+            cancelled.add(incoming);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param name
+     *            command name
+     * @return true if the command stops one or more axes
+     */
+    public static boolean isStop(String name) {
+        Movement movement = MOVEMENTS.get(name);
+        return movement != null && movement.kind == STOP;
+    }
+
+    /**
+     * Returns true if a queued movement command would move, or stop, an axis
+     * that a newer stop is stopping. Such a command must not be sent after
+     * a stop that has jumped ahead of it.
+     *
+     * @param stop
+     *            the newer stop
+     * @param queued
+     *            a command queued before the stop
+     * @return true if the queued command is made obsolete by the stop
+     */
+    public static boolean isOverriddenBy(RS232CmdRequest stop,
+            RS232CmdRequest queued) {
+        Movement movement = MOVEMENTS.get(stop.getName());
+        Movement other = MOVEMENTS.get(queued.getName());
+        return movement != null && movement.kind == STOP && other != null
+                && other.overlaps(movement);
+    }
+
+    /**
+     * Keeps track of which axes are moving. Called with the queue locked as
+     * each command is released.
+     *
+     * @param cmdRequest
+     *            command released from the queue
+     */
+    public void sent(RS232CmdRequest cmdRequest) {
+        Movement movement = MOVEMENTS.get(cmdRequest.getName());
+        if (movement == null || movement.kind == STEP) {
+            return;
+        }
+        for (int axis : movement.axes) {
+            moving[axis] = movement.kind == START;
+        }
+    }
+
+    /**
+     * Returns true if any of the axes of a stop will be moving once the
+     * queued commands have been sent.
+     */
+    private boolean isMoving(Movement stop, Deque<RS232CmdRequest> queue) {
+        for (int axis : stop.axes) {
+            boolean axisMoving = moving[axis];
+            Iterator<RS232CmdRequest> pending = queue.descendingIterator();
+            while (pending.hasNext()) {
+                Movement queued = MOVEMENTS.get(pending.next().getName());
+                if (queued != null && queued.kind != STEP
+                        && queued.moves(axis)) {
+                    axisMoving = queued.kind == START;
+                    break;
+                }
+            }
+            if (axisMoving) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * What a movement command does.
+     */
+    private static class Movement {
+
+        private int kind;
+
+        /** -1 or 1 for steps */
+        private int direction;
+
+        /** axes the command moves or stops */
+        private int[] axes;
+
+        Movement(int kind, int direction, int... axes) {
+            this.kind = kind;
+            this.direction = direction;
+            this.axes = axes;
+        }
+
+        boolean moves(int axis) {
+            for (int a : axes) {
+                if (a == axis) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean overlaps(Movement other) {
+            for (int axis : other.axes) {
+                if (moves(axis)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -18,10 +18,12 @@
 
 package com.onetouchis.camctrl;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,7 +31,12 @@ import com.onetouchis.camctrl.util.Utils;
 
 /**
  * This class listens for and notifies it's listener when data has been received
- * from the socket.
+ * from the socket. The bytes are split into responses by a
+ * <code>RS232FrameDecoder</code>, so the listener is given exactly one
+ * response at a time however the bytes arrive. Bytes that might be the start
+ * of a longer response are held for "wcc.reader.frame.timeout" ms before
+ * being passed on as they are. When the other end closes the socket or it
+ * fails, the reader stops and tells the listener the socket is closed.
  * 
  * @author bradnorris
  * 
@@ -38,20 +45,30 @@ public class RS232Reader extends Thread {
 
     private Logger logger = Logger.getLogger(RS232Reader.class.getName());
 
+    /** default time to wait for the rest of a response, in ms */
+    private static final int DEFAULT_FRAME_TIMEOUT = 50;
+
+    /** socket the responses are read from */
+    private Socket serialSocket;
+
     /** stream for receiving data from the RS232 device */
-    private BufferedInputStream inputStream;
+    private InputStream inputStream;
 
     private Thread readThread;
 
-    private boolean running = true;
+    private volatile boolean running = true;
 
     private RS232ReaderListener listener;
 
-    /** queue for receiving input from the RS232 device */
-    protected LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+    /** splits the bytes read into responses */
+    private RS232FrameDecoder decoder;
+
+    private int frameTimeout = Integer.getInteger("wcc.reader.frame.timeout",
+            DEFAULT_FRAME_TIMEOUT);
 
     /**
-     * Listens for data from the socket and notifies the listener
+     * Listens for data from the socket and notifies the listener of each
+     * byte received.
      * 
      * @param serialSocket
      *            serial response data will come from this socket
@@ -59,10 +76,27 @@ public class RS232Reader extends Thread {
      *            will be notified when data is received from the socket
      */
     public RS232Reader(Socket serialSocket, RS232ReaderListener listener) {
+        this(serialSocket, listener, new RS232FrameDecoder());
+    }
+
+    /**
+     * Listens for data from the socket and notifies the listener
+     * 
+     * @param serialSocket
+     *            serial response data will come from this socket
+     * @param listener
+     *            will be notified when data is received from the socket
+     * @param decoder
+     *            splits the data into responses
+     */
+    public RS232Reader(Socket serialSocket, RS232ReaderListener listener,
+            RS232FrameDecoder decoder) {
 
+        this.serialSocket = serialSocket;
         this.listener = listener;
+        this.decoder = decoder;
         try {
-            inputStream = new BufferedInputStream(serialSocket.getInputStream());
+            inputStream = serialSocket.getInputStream();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -83,42 +117,48 @@ public class RS232Reader extends Thread {
 
     /**
      * Thread that reads from the input stream of the socket. Normally this
-     * thread is blocked waiting for input. Data is sent to the listener.
+     * thread is blocked waiting for input. Each response is sent to the
+     * listener.
      */
     @Override
     public void run() {
+        ByteBuffer buffer = decoder.getBuffer();
         while (running) {
             try {
-                byte[] readBuffer = new byte[20];
-
                 try {
-                    int len = 0;
-
-                    len = inputStream.read(readBuffer);
+                    int len = inputStream.read(buffer.array(),
+                            buffer.arrayOffset() + buffer.position(),
+                            buffer.remaining());
 
+                    if (len < 0) {
+                        throw new EOFException("Socket closed by "
+                                + serialSocket.getRemoteSocketAddress());
+                    }
                     if (len > 0) {
-                        byte conditionedData[] = new byte[len];
-
-                        // We have had problems with the data being padded, so
-                        // we
-                        // use a separate byte array just to make sure the data
-                        // is not tainted.
-                        for (int i = 0; i < len; i++) {
-                            conditionedData[i] = readBuffer[i];
-                        }
-
-                        if (logger.isLoggable(Level.FINE)) {
-                            logger.fine("received input: -- "
-                                    + Utils.byteArrayToHexString(conditionedData)
-                                    + " ---");
+                        buffer.position(buffer.position() + len);
+                        byte[] frame;
+                        while ((frame = decoder.next()) != null) {
+                            notifyListener(frame);
                         }
-                        listener.handleEvent(conditionedData);
-
+                        // wait for the rest of a split response only so long
+                        serialSocket.setSoTimeout(decoder.hasPartial()
+                                ? frameTimeout : 0);
+                    }
+                } catch (SocketTimeoutException e) {
+                    byte[] frame;
+                    while ((frame = decoder.flush()) != null) {
+                        notifyListener(frame);
                     }
+                    serialSocket.setSoTimeout(0);
                 } catch (IOException e) {
                     if (!running) {
                         logger.info("Stopping inbound queue");
+                    } else {
+                        logger.warning("Lost socket: " + e.getMessage());
+                        running = false;
+                        listener.handleClosed();
                     }
+                    break;
                 }
             } catch (Exception ex) {
                 logger.log(Level.SEVERE, "Exception: ", ex);
@@ -126,4 +166,12 @@ public class RS232Reader extends Thread {
             }
         }
     }
+
+    private void notifyListener(byte[] frame) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("received input: -- "
+                    + Utils.byteArrayToHexString(frame) + " ---");
+        }
+        listener.handleEvent(frame);
+    }
 }
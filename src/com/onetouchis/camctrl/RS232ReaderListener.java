@@ -35,4 +35,10 @@ public interface RS232ReaderListener {
      *            data from socket
      */
     public void handleEvent(byte[] message);
+
+    /**
+     * Callback method when the socket has been closed by the other end or
+     * has failed. Not called when the reader is stopped.
+     */
+    public void handleClosed();
 }
@@ -28,7 +28,10 @@ public interface RS232ResponseListener {
 
     /**
      * Callback method when a command response has been parsed.
-     * @param response
+     * @param request the request being answered, null if the response
+     *            was not solicited
+     * @param response the response; it may be shared with other
+     *            requests and must not be modified
      */
-	public void handleResponse(RS232CmdData response);
+	public void handleResponse(RS232CmdRequest request, RS232CmdData response);
 }
@@ -0,0 +1,129 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue for many producer threads and one consumer, preallocated
+ * as an array of slots so offering and polling never allocate. Producers
+ * claim a slot by advancing the tail with a compare and set, store their
+ * element and then publish it by advancing the slot's sequence; the consumer
+ * only reads a slot once it has been published. No locks are taken.
+ * 
+ * Only one thread may poll at a time. Polling from different threads is
+ * allowed as long as they are serialized by a lock of their own.
+ * 
+ * @param <E>
+ *            type of the elements
+ */
+public class RS232RingBuffer<E> {
+
+    private final int mask;
+
+    private final AtomicReferenceArray<E> slots;
+
+    /**
+     * sequence of each slot: equal to the position a producer may claim it
+     * at, one past that position once the element is published
+     */
+    private final AtomicLongArray sequences;
+
+    /** next position to be claimed by a producer */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** next position to be polled; only used by the consumer */
+    private long head = 0;
+
+    /**
+     * @param capacity
+     *            number of slots, rounded up to a power of two
+     */
+    public RS232RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        slots = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element unless the buffer is full. Safe to call from any
+     * number of threads.
+     * 
+     * @param element
+     *            element to add, not null
+     * @return false if the buffer is full
+     */
+    public boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, element);
+                    // the volatile write publishes the element to the consumer
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (available < 0) {
+                // the consumer has not freed this slot yet
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest published element. Only one thread may poll at a
+     * time.
+     * 
+     * @return the element or null if none has been published
+     */
+    public E poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        E element = slots.get(index);
+        slots.lazySet(index, null);
+        // frees the slot for the producer one lap ahead
+        sequences.lazySet(index, head + mask + 1);
+        head++;
+        return element;
+    }
+
+    /**
+     * @return number of elements claimed but not yet polled; only exact
+     *         when called by the consumer with no producer running
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,434 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends commands straight to a serial port on the application server, such
+ * as /dev/ttyS0 or /dev/ttyUSB0, instead of through ser2net. The port is the
+ * comm port the processor is initialized with ("wcc.rs232.comm.port" or
+ * "wcc.camera.&lt;id&gt;.comm.port"); host and port are not used. Commands
+ * are queued, paced and answered exactly as they are for
+ * <code>RS232NetProcessor</code>.
+ * 
+ * Unless "wcc.serial.stty" is false the port is set up with stty for the
+ * baud rate and framing of the <code>RS232Link</code> ("wcc.rs232.baud",
+ * "wcc.rs232.framing"), raw and without flow control. A device that stty
+ * cannot set up, such as a pseudo-terminal standing in for the camera, is
+ * used as it is. With "wcc.serial.stty" false the port must already be set
+ * clocal, or opening it waits for carrier detect. A port that fails or goes
+ * away (a USB adapter unplugged) is reopened as the
+ * <code>RS232ConnectionManager</code> decides.
+ * 
+ * Selected with "wcc.rs232.processor" or "wcc.camera.&lt;id&gt;.processor"
+ * set to com.onetouchis.camctrl.RS232SerialProcessor.
+ */
+public class RS232SerialProcessor extends RS232Processor implements Runnable {
+
+    private static Logger logger = Logger.getLogger(RS232SerialProcessor.class
+            .getName());
+
+    /** default time to wait for the rest of a response, in ms */
+    private static final long DEFAULT_FRAME_TIMEOUT = 50;
+
+    /** longest frame that can be written */
+    private static final int MAX_FRAME = 256;
+
+    /** path of the serial device */
+    private String device;
+
+    /**
+     * the port opened for reading, null while reopening; a channel's blocked
+     * read holds up its writes, so the port is opened twice
+     */
+    private FileChannel port;
+
+    /** the port opened for writing */
+    private FileChannel output;
+
+    /**
+     * port being dropped; it stays in port until the queue knows the link is
+     * down, so the sending thread cannot reopen it before then
+     */
+    private FileChannel dropping;
+
+    private long frameTimeout = Long.getLong("wcc.reader.frame.timeout",
+            DEFAULT_FRAME_TIMEOUT);
+
+    /** splits what is read into responses; guarded by itself */
+    private RS232FrameDecoder decoder;
+
+    /** passes a partial response on as it is, null if none is waiting */
+    private ScheduledFuture<?> flush;
+
+    /** holds the frame of the command being written, reused for each one */
+    private ByteBuffer pending = ByteBuffer.allocateDirect(MAX_FRAME);
+
+    private Thread sendThread;
+
+    private volatile boolean running;
+
+    public RS232SerialProcessor() {
+    }
+
+    /**
+     * Loads up the commands and starts the queue and the thread sending
+     * commands, which opens the serial port and sends an identifier cmd. A
+     * port that cannot be opened yet is retried as the
+     * <code>RS232ConnectionManager</code> decides.
+     * @param remoteIpAddress not used.
+     * @param remotePortNumber not used.
+     * @param commPort path of the serial device
+     */
+    @Override
+    public void initialize(String remoteIpAddress, int remotePortNumber,
+            String commPort) throws Exception {
+        this.device = commPort;
+        loadCatalog(new File(device).getName(), 0);
+        decoder = new RS232FrameDecoder(nameToCmdMap.values());
+        setQueue(new RS232BlockingQ(this, metrics));
+
+        running = true;
+        sendThread = new Thread(this, "SerialSender " + device);
+        sendThread.start();
+        startHeartbeats();
+    }
+
+    /**
+     * Sets up and opens the serial port and starts reading the responses
+     * from it. The port is set up first: stty opens it without waiting for
+     * carrier detect and sets clocal, so opening it here cannot block on a
+     * camera that is switched off or unplugged.
+     * @throws IOException if the port cannot be opened
+     */
+    private void openPort() throws IOException {
+        logger.info("Opening serial port " + device);
+        if (Boolean.parseBoolean(System.getProperty("wcc.serial.stty",
+                "true"))) {
+            configure();
+        }
+        FileChannel out = FileChannel.open(Paths.get(device),
+                StandardOpenOption.WRITE);
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(device),
+                    StandardOpenOption.READ);
+        } catch (IOException e) {
+            closePort(out);
+            throw e;
+        }
+        synchronized (decoder) {
+            decoder.getBuffer().clear();
+        }
+        synchronized (this) {
+            port = channel;
+            output = out;
+        }
+        Thread readThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(channel);
+            }
+        }, "SerialReader " + device);
+        readThread.setDaemon(true);
+        readThread.start();
+    }
+
+    /**
+     * Sets the port's baud rate and framing with stty, leaving it as it is
+     * if that fails.
+     */
+    private void configure() {
+        String framing = link.getFraming();
+        char parity = framing.charAt(1);
+        List<String> command = new ArrayList<String>();
+        command.add("stty");
+        command.add("-F");
+        command.add(device);
+        command.add(String.valueOf(link.getBaud()));
+        command.add("cs" + framing.charAt(0));
+        command.add(parity == 'N' ? "-parenb" : "parenb");
+        if (parity != 'N') {
+            command.add(parity == 'O' || parity == 'M' ? "parodd" : "-parodd");
+            command.add(parity == 'M' || parity == 'S' ? "cmspar" : "-cmspar");
+        }
+        command.add(framing.endsWith("2") ? "cstopb" : "-cstopb");
+        command.add("raw");
+        command.add("-echo");
+        command.add("-crtscts");
+        command.add("-ixon");
+        command.add("-ixoff");
+        command.add("clocal");
+        try {
+            Process stty = new ProcessBuilder(command).redirectErrorStream(
+                    true).start();
+            String output = readAll(stty.getInputStream());
+            if (stty.waitFor() != 0) {
+                logger.warning("Unable to set up " + device + " with stty: "
+                        + output.trim());
+            } else {
+                logger.info("Set up " + device + " for " + link.getBaud()
+                        + " baud " + framing);
+            }
+        } catch (IOException e) {
+            logger.warning("Unable to run stty for " + device + ": "
+                    + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String readAll(InputStream in) throws IOException {
+        StringBuilder text = new StringBuilder();
+        byte[] buffer = new byte[256];
+        int len;
+        while ((len = in.read(buffer)) >= 0) {
+            text.append(new String(buffer, 0, len));
+        }
+        in.close();
+        return text.toString();
+    }
+
+    /**
+     * Reads the responses from a port until it fails or is closed. A read
+     * blocks until bytes arrive, so a response waiting for the rest of its
+     * bytes is passed on as it is by the timer after
+     * "wcc.reader.frame.timeout" ms.
+     */
+    private void read(FileChannel channel) {
+        ByteBuffer in = ByteBuffer.allocate(MAX_FRAME);
+        try {
+            while (running) {
+                in.clear();
+                if (channel.read(in) < 0) {
+                    throw new EOFException("End of " + device);
+                }
+                in.flip();
+                synchronized (decoder) {
+                    ByteBuffer buffer = decoder.getBuffer();
+                    while (in.hasRemaining()) {
+                        int len = Math.min(in.remaining(), buffer.remaining());
+                        int limit = in.limit();
+                        in.limit(in.position() + len);
+                        buffer.put(in);
+                        in.limit(limit);
+                        byte[] frame;
+                        while ((frame = decoder.next()) != null) {
+                            queue.handleEvent(frame);
+                        }
+                    }
+                    scheduleFlush();
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                logger.warning("Lost serial port " + device + ": "
+                        + e.getMessage());
+                lost(channel);
+            }
+        }
+    }
+
+    /**
+     * Schedules a partial response to be passed on as it is, or cancels the
+     * flush when nothing is waiting. Called with the decoder locked.
+     */
+    private void scheduleFlush() {
+        if (flush != null) {
+            flush.cancel(false);
+            flush = null;
+        }
+        if (decoder.hasPartial()) {
+            flush = getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (decoder) {
+                        byte[] frame;
+                        while ((frame = decoder.flush()) != null) {
+                            queue.handleEvent(frame);
+                        }
+                    }
+                }
+            }, frameTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Closes a port that has failed and tells the queue the link is down,
+     * unless the port has already been closed or is being dropped. The port
+     * is only cleared once the link is down, so it cannot be reopened and
+     * then taken down by this port's failure.
+     * @param channel the port that failed, as opened for reading
+     */
+    private void lost(FileChannel channel) {
+        FileChannel out;
+        synchronized (this) {
+            if (channel != port || channel == dropping) {
+                return;
+            }
+            dropping = channel;
+            out = output;
+        }
+        closePort(channel);
+        closePort(out);
+        linkDown(System.nanoTime());
+        synchronized (this) {
+            port = null;
+            output = null;
+            dropping = null;
+            notifyAll();
+        }
+    }
+
+    private void closePort(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Exception closing serial port: ", e);
+            }
+        }
+    }
+
+    /**
+     * Closes the port; the reader notices and the port is reopened.
+     */
+    @Override
+    protected void heartbeatMissed() {
+        FileChannel channel;
+        synchronized (this) {
+            channel = port;
+        }
+        closePort(channel);
+    }
+
+    public void run() {
+        while (running) {
+            FileChannel channel;
+            FileChannel out;
+            synchronized (this) {
+                channel = port;
+                out = output;
+            }
+            try {
+                if (channel == null) {
+                    reopen();
+                    continue;
+                }
+                // null once the link is lost
+                RS232CmdRequest cmdData = queue.take();
+                if (cmdData == null) {
+                    awaitDropped(channel);
+                } else {
+                    RS232Frame frame = getFrame(cmdData);
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("Sending: --" + frame + "--");
+                    }
+                    if (frame.getLength() > pending.capacity()) {
+                        pending = ByteBuffer.allocateDirect(frame.getLength());
+                    }
+                    pending.clear();
+                    frame.writeTo(pending);
+                    pending.flip();
+                    while (pending.hasRemaining()) {
+                        out.write(pending);
+                    }
+                    sent(cmdData);
+                }
+            } catch (InterruptedException ie) {
+                // ignore
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Exception sending cmd: ", e);
+                lost(channel);
+            }
+        }
+    }
+
+    /**
+     * Waits until a port the queue has been disconnected from is cleared.
+     */
+    private synchronized void awaitDropped(FileChannel channel)
+            throws InterruptedException {
+        while (running && port == channel) {
+            wait();
+        }
+    }
+
+    /**
+     * Waits until the next attempt is due and tries to open the port, for
+     * the first time or again.
+     */
+    private void reopen() throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(connection.getAttemptDelay(System
+                .nanoTime()));
+        if (!running) {
+            return;
+        }
+        if (wasLinked()) {
+            logger.warning("Reopening serial port " + device);
+        }
+        try {
+            openPort();
+            linkUp(System.nanoTime());
+        } catch (IOException e) {
+            logger.warning("Unable to open serial port: " + e.getMessage());
+            reconnectFailed(System.nanoTime());
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        stopTimer();
+        FileChannel channel;
+        FileChannel out;
+        synchronized (this) {
+            channel = port;
+            out = output;
+            port = null;
+            output = null;
+            notifyAll();
+        }
+        closePort(channel);
+        closePort(out);
+        queue.stopService();
+        if (sendThread != null) {
+            sendThread.interrupt();
+        }
+        stopPacer();
+    }
+
+    @Override
+    public String toString() {
+        return "RS232SerialProcessor " + device;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * How the thread sending commands waits for work offered through a
+ * <code>RS232RingBuffer</code>. Producers call <code>signal</code> after
+ * publishing; the consumer calls <code>await</code> with the time until its
+ * next deadline. A signal given while the consumer is not waiting is kept,
+ * so the next wait returns at once. Strategies trade latency for CPU:
+ * <ul>
+ * <li>BLOCKING waits on a condition; lowest CPU use</li>
+ * <li>PARKING parks the consumer thread and is woken with unpark, so a
+ * producer never takes a lock</li>
+ * <li>YIELDING spins briefly, then yields the processor between checks</li>
+ * <li>BUSY_SPIN checks continuously; for a dedicated core only</li>
+ * </ul>
+ */
+public abstract class RS232WaitStrategy {
+
+    private static Logger logger = Logger.getLogger(RS232WaitStrategy.class
+            .getName());
+
+    /** spins before YIELDING starts to yield */
+    private static final int SPIN_TRIES = 100;
+
+    /** set by a signal, cleared by the wait it ends */
+    protected volatile boolean signalled = false;
+
+    /**
+     * Returns the strategy with the given name, BLOCKING if the name is not
+     * known.
+     * 
+     * @param name
+     *            BLOCKING, PARKING, YIELDING or BUSY_SPIN
+     * @return a new strategy
+     */
+    public static RS232WaitStrategy create(String name) {
+        String strategy = name.trim().toUpperCase();
+        if ("PARKING".equals(strategy)) {
+            return new Parking();
+        } else if ("YIELDING".equals(strategy)) {
+            return new Spinning(true);
+        } else if ("BUSY_SPIN".equals(strategy)) {
+            return new Spinning(false);
+        } else if (!"BLOCKING".equals(strategy)) {
+            logger.warning("Unknown wait strategy " + name + ", using BLOCKING");
+        }
+        return new Blocking();
+    }
+
+    /**
+     * Wakes the consumer, or makes its next wait return at once.
+     */
+    public abstract void signal();
+
+    /**
+     * Waits for a signal or for the time to pass, whichever comes first.
+     * Only the consumer thread may wait.
+     * 
+     * @param nanos
+     *            longest time to wait; Long.MAX_VALUE to wait for a signal
+     * @throws InterruptedException
+     */
+    public abstract void await(long nanos) throws InterruptedException;
+
+    /**
+     * Waits on a condition; producers only take the lock when the consumer
+     * may be waiting.
+     */
+    static class Blocking extends RS232WaitStrategy {
+
+        private ReentrantLock lock = new ReentrantLock();
+
+        private Condition wakeUp = lock.newCondition();
+
+        private volatile boolean waiting = false;
+
+        @Override
+        public void signal() {
+            signalled = true;
+            if (waiting) {
+                lock.lock();
+                try {
+                    wakeUp.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public void await(long nanos) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                waiting = true;
+                if (!signalled) {
+                    if (nanos == Long.MAX_VALUE) {
+                        wakeUp.await();
+                    } else {
+                        wakeUp.awaitNanos(nanos);
+                    }
+                }
+            } finally {
+                waiting = false;
+                signalled = false;
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Parks the consumer thread until it is unparked by a signal.
+     */
+    static class Parking extends RS232WaitStrategy {
+
+        private volatile Thread consumer;
+
+        @Override
+        public void signal() {
+            signalled = true;
+            Thread waiter = consumer;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        @Override
+        public void await(long nanos) throws InterruptedException {
+            consumer = Thread.currentThread();
+            try {
+                long deadline = System.nanoTime() + nanos;
+                while (!signalled) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    if (nanos == Long.MAX_VALUE) {
+                        LockSupport.park(this);
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                }
+            } finally {
+                consumer = null;
+                signalled = false;
+            }
+        }
+    }
+
+    /**
+     * Checks for a signal in a loop, optionally yielding between checks.
+     */
+    static class Spinning extends RS232WaitStrategy {
+
+        private boolean yield;
+
+        Spinning(boolean yield) {
+            this.yield = yield;
+        }
+
+        @Override
+        public void signal() {
+            signalled = true;
+        }
+
+        @Override
+        public void await(long nanos) throws InterruptedException {
+            long deadline = System.nanoTime() + nanos;
+            int tries = 0;
+            while (!signalled) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (nanos != Long.MAX_VALUE
+                        && deadline - System.nanoTime() <= 0) {
+                    break;
+                }
+                if (yield && ++tries > SPIN_TRIES) {
+                    Thread.yield();
+                }
+            }
+            signalled = false;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs preset tours on any number of cameras from one small scheduled thread
+ * pool. A tour is a named list of stops, each a preset and how long to stay
+ * there. The camera is only sent its next preset move once the previous move
+ * has been answered and the stop's dwell time has passed.
+ *
+ * A move is answered when the camera accepts it, not when it gets there:
+ * PRESET_MOVE has no completion code in the command files, so the answer is
+ * its ACK. The dwell time is therefore counted from the ACK plus
+ * "wcc.tour.travel" ms (2000), an allowance for the camera to get to the
+ * preset. A command file that gives PRESET_MOVE a completion code has its
+ * moves answered on arrival, and then no allowance is added.
+ *
+ * Tours are listed by name in the "wcc.tours" system property and each is
+ * defined by "wcc.tour.&lt;name&gt;" as a comma list of preset[:dwell ms],
+ * e.g. "-Dwcc.tour.doors=1:3000,4,7:10000". Stops without a dwell time use
+ * "wcc.preset.interval". The "default" tour visits every preset unless it is
+ * defined like any other tour.
+ */
+public class TourEngine {
+
+    private static Logger logger = Logger.getLogger(TourEngine.class
+            .getName());
+
+    /** tour run by SCAN_PRESETS::ON and by TOUR_START without a name */
+    public static final String DEFAULT_TOUR = "default";
+
+    /** default time to stay at each preset */
+    private static final long DEFAULT_DWELL = 5000;
+
+    /** default number of threads running the tours */
+    private static final int DEFAULT_THREADS = 1;
+
+    /** default time to wait for the camera to answer a preset move */
+    private static final long DEFAULT_MOVE_TIMEOUT = 30000;
+
+    /** default time allowed for the camera to get to a preset */
+    private static final long DEFAULT_TRAVEL = 2000;
+
+    /** stops of each tour, by tour name */
+    private Map<String, List<Stop>> tours = new HashMap<String, List<Stop>>();
+
+    /** running tours by camera id */
+    private Map<String, TourRun> running = new ConcurrentHashMap<String, TourRun>();
+
+    private long moveTimeout = Long.getLong("wcc.tour.move.timeout",
+            DEFAULT_MOVE_TIMEOUT);
+
+    private long travel = Long.getLong("wcc.tour.travel", DEFAULT_TRAVEL);
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Reads the tour definitions and starts the scheduler.
+     */
+    public TourEngine() {
+        long dwell = Long.getLong("wcc.preset.interval", DEFAULT_DWELL);
+        List<Stop> allPresets = new ArrayList<Stop>();
+        for (int i = 0; i <= CommandDispatcher.MAX_PRESETS; i++) {
+            allPresets.add(new Stop(i, dwell));
+        }
+        tours.put(DEFAULT_TOUR, allPresets);
+
+        String names = System.getProperty("wcc.tours", "") + ","
+                + DEFAULT_TOUR;
+        for (String name : names.split(",")) {
+            name = name.trim();
+            String spec = System.getProperty("wcc.tour." + name);
+            if (spec == null) {
+                if (name.length() > 0 && !tours.containsKey(name)) {
+                    logger.warning("Tour " + name + " has no wcc.tour."
+                            + name + " property");
+                }
+                continue;
+            }
+            try {
+                tours.put(name, parseStops(spec, dwell));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Unable to read tour " + name + ": "
+                        + e.getMessage());
+            }
+        }
+
+        scheduler = Executors.newScheduledThreadPool(Integer.getInteger(
+                "wcc.tour.threads", DEFAULT_THREADS), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PresetTour");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private List<Stop> parseStops(String spec, long defaultDwell) {
+        List<Stop> stops = new ArrayList<Stop>();
+        for (String stop : spec.split(",")) {
+            stop = stop.trim();
+            if (stop.length() == 0) {
+                continue;
+            }
+            int separator = stop.indexOf(':');
+            int preset = Integer.parseInt(separator < 0 ? stop : stop
+                    .substring(0, separator));
+            long dwell = separator < 0 ? defaultDwell : Long.parseLong(stop
+                    .substring(separator + 1));
+            if (preset < 0 || preset > CommandDispatcher.MAX_PRESETS) {
+                throw new IllegalArgumentException("no preset " + preset);
+            }
+            stops.add(new Stop(preset, dwell));
+        }
+        if (stops.isEmpty()) {
+            throw new IllegalArgumentException("no stops");
+        }
+        return Collections.unmodifiableList(stops);
+    }
+
+    /**
+     * Starts a tour on a camera, replacing any tour it is already running.
+     *
+     * @param cameraId
+     *            camera to run the tour on
+     * @param processor
+     *            the camera's processor
+     * @param tourName
+     *            name of the tour
+     * @return false if there is no such tour
+     */
+    public boolean start(String cameraId, IProcessor processor,
+            String tourName) {
+        List<Stop> stops = tours.get(tourName);
+        if (stops == null) {
+            return false;
+        }
+        logger.info("Starting tour " + tourName + " on " + cameraId);
+        TourRun tour = new TourRun(tourName, processor, stops);
+        TourRun previous = running.put(cameraId, tour);
+        if (previous != null) {
+            previous.stop();
+        }
+        scheduler.execute(tour);
+        return true;
+    }
+
+    /**
+     * Stops the tour running on a camera, if any.
+     *
+     * @param cameraId
+     *            camera id
+     */
+    public void stop(String cameraId) {
+        TourRun tour = running.remove(cameraId);
+        if (tour != null) {
+            logger.info("Stopping tour " + tour.name + " on " + cameraId);
+            tour.stop();
+        }
+    }
+
+    /**
+     * Stops every tour and the scheduler.
+     */
+    public void close() {
+        for (String cameraId : running.keySet()) {
+            stop(cameraId);
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * A preset to visit and how long to stay there.
+     */
+    static class Stop {
+
+        private int preset;
+
+        private long dwell;
+
+        Stop(int preset, long dwell) {
+            this.preset = preset;
+            this.dwell = dwell;
+        }
+    }
+
+    /**
+     * A tour running on one camera. Each run sends the move to the current
+     * stop; the camera's answer schedules the next run after the stop's dwell
+     * time. If the camera never answers, the move times out and the tour
+     * carries on.
+     */
+    class TourRun implements Runnable, RS232ResponseListener {
+
+        private String name;
+
+        private IProcessor processor;
+
+        private List<Stop> stops;
+
+        /** index of the stop being moved to */
+        private int current = -1;
+
+        /** move waiting for an answer, null while dwelling */
+        private RS232CmdRequest pending;
+
+        private ScheduledFuture<?> timeout;
+
+        private boolean stopped = false;
+
+        TourRun(String name, IProcessor processor, List<Stop> stops) {
+            this.name = name;
+            this.processor = processor;
+            this.stops = stops;
+        }
+
+        @Override
+        public void run() {
+            RS232CmdRequest move;
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                current = (current + 1) % stops.size();
+                move = new RS232CmdRequest(RS232CmdData.PRESET_MOVE,
+                        new byte[] { (byte) stops.get(current).preset });
+                move.setListener(this);
+                move.setPriority(RS232CmdRequest.PRIORITY_BACKGROUND);
+                pending = move;
+                timeout = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        logger.warning("No answer to preset move on tour "
+                                + name);
+                        arrived(null);
+                    }
+                }, moveTimeout, TimeUnit.MILLISECONDS);
+            }
+            logger.fine("Tour " + name + " moving to preset "
+                    + stops.get(current).preset);
+            try {
+                processor.sendDataCommand(move);
+            } catch (QueueFullException e) {
+                // try the next stop once the camera has had time to catch up
+                logger.warning("Tour " + name + " skipped a stop: "
+                        + e.getMessage());
+                arrived(move);
+            }
+        }
+
+        /**
+         * Starts the dwell time once the camera has answered the move; see
+         * <code>arrived</code> for when that is.
+         */
+        @Override
+        public void handleResponse(RS232CmdRequest request,
+                RS232CmdData response) {
+            if (!RS232CmdData.RESPONSE_SUCESS.equals(response.getName())) {
+                logger.warning("Tour " + name + " preset move answered with "
+                        + response.getName());
+            }
+            arrived(request);
+        }
+
+        /**
+         * Schedules the next move after the stop's dwell time. A move
+         * answered only by its ACK has been accepted, not completed, so the
+         * travel allowance is added to it.
+         * 
+         * @param request
+         *            the answered move, null if it timed out
+         */
+        private synchronized void arrived(RS232CmdRequest request) {
+            if (stopped || pending == null
+                    || (request != null && request != pending)) {
+                return;
+            }
+            pending = null;
+            timeout.cancel(false);
+            long delay = stops.get(current).dwell;
+            if (request != null && !hasCompletionCode(request)) {
+                delay += travel;
+            }
+            timeout = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private boolean hasCompletionCode(RS232CmdRequest request) {
+            RS232CmdData cmdData = request.getCmdData();
+            return cmdData != null && cmdData.getCompletionCode() != 0;
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+}
@@ -17,9 +17,17 @@
  */
 package com.onetouchis.camctrl.test;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
 import javax.servlet.ServletContext;
 
 import com.onetouchis.camctrl.IProcessor;
+import com.onetouchis.camctrl.RS232CmdData;
+import com.onetouchis.camctrl.RS232CmdRequest;
+import com.onetouchis.camctrl.RS232Metrics;
+import com.onetouchis.camctrl.RS232ResponseListener;
 import com.onetouchis.camctrl.util.Utils;
 
 /**
@@ -43,6 +51,46 @@ public class TestProcessor implements IProcessor {
 		        "; with args: " + Utils.byteArrayToHexString(arguments));
 	}
 
+	@Override
+	public void sendDataCommand(RS232CmdRequest cmdRequest) {
+		System.out.println("Testing send data command request: " + cmdRequest.getName());
+		RS232CmdData response = new RS232CmdData();
+		response.setName(RS232CmdData.RESPONSE_SUCESS);
+		cmdRequest.notifyListener(response);
+	}
+
+	@Override
+	public void sendDataCommands(List<RS232CmdRequest> cmdRequests) {
+		for (RS232CmdRequest cmdRequest : cmdRequests) {
+			sendDataCommand(cmdRequest);
+		}
+	}
+
+	@Override
+	public Collection<RS232CmdData> getCommands() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void addResponseListener(RS232ResponseListener listener) {
+		System.out.println("Testing adding response listener: " + listener);
+	}
+
+	@Override
+	public boolean isReady() {
+		return true;
+	}
+
+	@Override
+	public LinkState getLinkState() {
+		return LinkState.CONNECTED;
+	}
+
+	@Override
+	public RS232Metrics getMetrics() {
+		return null;
+	}
+
 	@Override
 	public void close() {
 		System.out.println("Closed");
@@ -4,13 +4,22 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Scanner;
-
-import sun.tools.tree.ThisExpression;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.google.gson.Gson;
 import com.onetouchis.camctrl.PresetData;
-import com.sun.tools.javac.code.Attribute.Array;
 
 /**
  * Utility class to assist in the reading and saving preset data and other
@@ -21,11 +30,27 @@ import com.sun.tools.javac.code.Attribute.Array;
 public class Utils {
 	
 	public static Gson gson = new Gson();
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 	
 	private static PresetData[] presets;
 	
 	private static String fileName;
 
+	private static Logger logger = Logger.getLogger(Utils.class.getName());
+
+	/** contents of the presets file, null when it must be read again */
+	private static volatile String presetsJson;
+
+	/** invalidates the cached presets when the file is changed by someone else */
+	private static Thread presetsWatcher;
+
+	/** what the presets watcher waits on, null while it is not running */
+	private static WatchService presetsWatchService;
+
+	/** false if the presets file can't be watched, so it must always be read */
+	private static boolean presetsCacheEnabled = true;
+
 	/**
 	 * Reads in a Json formatted file
 	 * @param filename fully qualified file name
@@ -45,26 +70,178 @@ public class Utils {
 	
 	/**
 	 * Loads a Json formatted presets file into the presets class attribute and
-	 * returns the raw json string.
+	 * returns the raw json string. The file is only read the first time and
+	 * after it has changed; otherwise the same cached string is returned.
 	 * @param filename fully qualified file name
 	 * @return Json formatted string
 	 * @throws Exception
 	 */
 	public static String loadFile(String filename) throws Exception
 	{
+		String json = presetsJson;
+		if (json != null && filename.equals(fileName))
+		{
+			return json;
+		}
+		return readPresetsFile(filename);
+	}
+
+	/**
+	 * Reads and parses the presets file, then caches the result until the
+	 * file changes.
+	 * @param filename fully qualified file name
+	 * @return Json formatted string
+	 * @throws Exception
+	 */
+	private static synchronized String readPresetsFile(String filename) throws Exception
+	{
+		if (presetsJson != null && filename.equals(fileName))
+		{
+			return presetsJson;
+		}
+		logger.info("Loading presets from: " + filename);
 		fileName = filename;
 		File f = new File(filename);
+		String fileData = readLines(f);
+		PresetData[] pd = new PresetData[10];
+		presets = gson.fromJson(fileData, pd.getClass());
+		watchPresetsFile(f);
+		if (presetsCacheEnabled)
+		{
+			presetsJson = fileData;
+		}
+		return fileData;
+	}
+
+	/**
+	 * Reads a file as a single string, without its line breaks.
+	 * @param f the file
+	 * @return contents of the file
+	 * @throws IOException
+	 */
+	private static String readLines(File f) throws IOException
+	{
 		Scanner s = new Scanner(f);
 		StringBuilder sb = new StringBuilder();
 		while (s.hasNextLine())
 		{
 			sb.append(s.nextLine());
 		}
-		
-		String fileData = sb.toString();
-		PresetData[] pd = new PresetData[10];
-		presets = gson.fromJson(fileData, pd.getClass());
-		return fileData;
+		s.close();
+		return sb.toString();
+	}
+
+	/**
+	 * Starts a thread that drops the cached presets when the presets file is
+	 * changed, created or deleted by anything other than this class.
+	 * @param file the presets file
+	 */
+	private static void watchPresetsFile(final File file)
+	{
+		if (presetsWatcher != null || !presetsCacheEnabled)
+		{
+			return;
+		}
+		try
+		{
+			Path dir = file.getAbsoluteFile().getParentFile().toPath();
+			final WatchService watchService = FileSystems.getDefault().newWatchService();
+			dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			presetsWatcher = new Thread("PresetsWatcher")
+			{
+				@Override
+				public void run()
+				{
+					while (true)
+					{
+						try
+						{
+							WatchKey key = watchService.take();
+							for (WatchEvent<?> event : key.pollEvents())
+							{
+								if (file.getName().equals(String.valueOf(event.context())))
+								{
+									invalidatePresets(file);
+								}
+							}
+							key.reset();
+						}
+						catch (InterruptedException e)
+						{
+							return;
+						}
+						catch (ClosedWatchServiceException e)
+						{
+							return;
+						}
+					}
+				}
+			};
+			presetsWatcher.setDaemon(true);
+			presetsWatcher.start();
+			presetsWatchService = watchService;
+		}
+		catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Unable to watch presets file, presets will not be cached", e);
+			presetsCacheEnabled = false;
+		}
+	}
+
+	/**
+	 * Stops watching the presets file and drops the cached presets. Called
+	 * when the application is undeployed, so the watcher thread does not
+	 * keep its classes loaded.
+	 */
+	public static synchronized void shutdown()
+	{
+		if (presetsWatcher != null)
+		{
+			presetsWatcher.interrupt();
+			presetsWatcher = null;
+		}
+		if (presetsWatchService != null)
+		{
+			try
+			{
+				presetsWatchService.close();
+			}
+			catch (IOException e)
+			{
+				logger.log(Level.WARNING, "Unable to close presets watch service", e);
+			}
+			presetsWatchService = null;
+		}
+		presetsJson = null;
+	}
+
+	/**
+	 * Drops the cached presets unless the file still holds them, as it does
+	 * after our own write. The contents are compared rather than the
+	 * modified time, which may not change for a quick edit.
+	 * @param file the presets file
+	 */
+	private static synchronized void invalidatePresets(File file)
+	{
+		String json = presetsJson;
+		if (json == null)
+		{
+			return;
+		}
+		try
+		{
+			if (json.equals(readLines(file)))
+			{
+				return;
+			}
+		}
+		catch (IOException e)
+		{
+			// deleted or unreadable, read it again when next asked
+		}
+		logger.info("Presets file changed: " + file);
+		presetsJson = null;
 	}
 	
 	/**
@@ -74,7 +251,7 @@ public class Utils {
 	 * @return updated json string
 	 * @throws IOException
 	 */
-	public static String updatePresetFile(int number, String text) throws IOException {
+	public static synchronized String updatePresetFile(int number, String text) throws IOException {
 		for (int i = 0; i < 10; i++) {
 			if (presets[i].getNumber() == number) {
 				presets[i].setText(text);
@@ -88,11 +265,15 @@ public class Utils {
 	 * @return
 	 * @throws IOException
 	 */
-	public static String savePresetsToFile() throws IOException {
+	public static synchronized String savePresetsToFile() throws IOException {
 		String jsonStr = gson.toJson(presets);
 		FileWriter fw = new FileWriter(fileName);
 		fw.write(jsonStr);
 		fw.close();
+		if (presetsCacheEnabled)
+		{
+			presetsJson = jsonStr;
+		}
 		return jsonStr;
 	}
 
@@ -104,14 +285,30 @@ public class Utils {
      * @return string containing hex values
      */
     public static String byteArrayToHexString(byte[] b) {
-        StringBuffer sb = new StringBuffer(b.length * 2);
+        char[] hex = new char[b.length * 2];
         for (int i = 0; i < b.length; i++) {
-            int v = b[i] & 0xff;
-            if (v < 16) {
-                sb.append('0');
-            }
-            sb.append(Integer.toHexString(v));
+            hex[2 * i] = HEX_DIGITS[(b[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[b[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Returns the SHA-1 digest of a string, e.g. for an ETag that changes
+     * whenever the content does.
+     * 
+     * @param text
+     *            the string, encoded as UTF-8
+     * @return the digest in hex
+     */
+    public static String digest(String text) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return byteArrayToHexString(sha1.digest(text.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
-        return sb.toString().toUpperCase();
     }
 }
@@ -0,0 +1,166 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl.test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.onetouchis.camctrl.RS232BlockingQ;
+import com.onetouchis.camctrl.RS232CmdData;
+import com.onetouchis.camctrl.RS232CmdFileScanner;
+import com.onetouchis.camctrl.RS232CmdRequest;
+import com.onetouchis.camctrl.RS232EventLoop;
+import com.onetouchis.camctrl.RS232FrameCache;
+import com.onetouchis.camctrl.RS232FrameDecoder;
+import com.onetouchis.camctrl.RS232Metrics;
+import com.onetouchis.camctrl.RS232Pacer;
+import com.onetouchis.camctrl.RS232ResponseListener;
+
+/**
+ * Measures the bytes allocated for each command sent and answered once the
+ * link is busy, using the thread allocation counter of HotSpot's
+ * ThreadMXBean. One thread plays every part: it offers a request to the
+ * queue, takes it when the queue releases it, writes its frame, feeds the
+ * camera's answer through the frame decoder and lets the queue match it,
+ * like the event loop of RS232NioProcessor does. Time is moved on by hand so
+ * the pacing gaps never hold the queue. Requests are created before timing
+ * starts and used again, as they belong to the callers. The last run hands
+ * the answers to a listener executor, as RS232NioProcessor does, and counts
+ * what the thread handing them over allocates; the listener's own thread is
+ * not counted. Run from the project directory:
+ * java -cp dist/classes:dist/test-classes:lib/gson-2.2.4.jar com.onetouchis.camctrl.test.AllocationBenchmark
+ *
+ */
+public class AllocationBenchmark {
+
+	private static final int WARMUP = 200000;
+
+	private static final int COMMANDS = 1000000;
+
+	/** commands sent in turn; VIDEO_ON also waits for a completion code */
+	private static final String[] NAMES = { "PAN_LEFT", "TILT_UP", "ZOOM_TELE", "VIDEO_ON", "PRESET_MOVE" };
+
+	private static final byte ACK = (byte) 0xB1;
+
+	private static final byte COMPLETE = (byte) 0xB4;
+
+	private static final String[] RUNS = { "fixed pace", "adaptive pace", "listener exec" };
+
+	private static AtomicLong answered = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		String csv = args.length > 0 ? args[0] : "resources/commands.csv";
+		List<RS232CmdData> commands = new RS232CmdFileScanner().readDataFile(new File(csv));
+		Logger.getLogger("com.onetouchis.camctrl").setLevel(Level.INFO);
+
+		for (int run = 0; run < RUNS.length; run++) {
+			RS232Metrics metrics = new RS232Metrics(commands);
+			RS232BlockingQ queue = new RS232BlockingQ(new RS232ResponseListener() {
+				@Override
+				public void handleResponse(RS232CmdRequest request, RS232CmdData response) {
+					answered.incrementAndGet();
+				}
+			}, metrics);
+			if (run == 1) {
+				queue.setPacer(new RS232Pacer(commands, File.createTempFile("pacing", ".properties")));
+			} else if (run == 2) {
+				queue.setListenerExecutor(RS232EventLoop.newListenerExecutor());
+			}
+			RS232FrameCache frames = new RS232FrameCache(commands);
+			RS232FrameDecoder decoder = new RS232FrameDecoder(commands);
+
+			RS232CmdRequest[] requests = new RS232CmdRequest[NAMES.length];
+			for (int i = 0; i < requests.length; i++) {
+				requests[i] = new RS232CmdRequest(NAMES[i], "PRESET_MOVE".equals(NAMES[i]) ? new byte[] { 3 } : null);
+				for (RS232CmdData cmdData : commands) {
+					if (cmdData.getName().equals(NAMES[i])) {
+						requests[i].setCmdData(cmdData);
+					}
+				}
+				requests[i].setFrame(frames.getFrame(requests[i]));
+			}
+
+			ByteBuffer wire = ByteBuffer.allocateDirect(256);
+			long now = System.nanoTime();
+			now = run(queue, decoder, requests, wire, now, WARMUP);
+			settle();
+
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+					.getThreadMXBean();
+			long thread = Thread.currentThread().getId();
+			long before = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			answered.set(0);
+			run(queue, decoder, requests, wire, now, COMMANDS);
+			long elapsed = System.nanoTime() - start;
+			long allocated = threads.getThreadAllocatedBytes(thread) - before;
+			settle();
+
+			System.out.printf("%-14s %d commands, %d answers, %.2f bytes/command, %.0f ns/command%n", RUNS[run],
+					COMMANDS, answered.get(), allocated / (double) COMMANDS, elapsed / (double) COMMANDS);
+			queue.stopService();
+		}
+		RS232EventLoop.shutdownAll();
+	}
+
+	/**
+	 * Waits for the listener executor to pass on the answers it still has.
+	 */
+	private static void settle() throws InterruptedException {
+		long count;
+		do {
+			count = answered.get();
+			Thread.sleep(50);
+		} while (answered.get() != count);
+	}
+
+	private static long run(RS232BlockingQ queue, RS232FrameDecoder decoder, RS232CmdRequest[] requests,
+			ByteBuffer wire, long now, int count) {
+		ByteBuffer input = decoder.getBuffer();
+		for (int i = 0; i < count; i++) {
+			RS232CmdRequest request = requests[i % requests.length];
+			request.setAttempts(0);
+			if (!queue.offer(request)) {
+				throw new IllegalStateException("queue refused " + request.getName());
+			}
+			// well past any gap or timeout the queue is waiting on
+			now += 10000000000L;
+			RS232CmdRequest released = queue.poll(now);
+			if (released != request) {
+				throw new IllegalStateException("queue released " + released + " instead of " + request);
+			}
+			wire.clear();
+			released.getFrame().writeTo(wire);
+
+			input.put(ACK);
+			if (released.getCmdData().getCompletionCode() != 0) {
+				input.put(COMPLETE);
+			}
+			byte[] frame;
+			while ((frame = decoder.next()) != null) {
+				queue.handleEvent(frame);
+			}
+		}
+		return now;
+	}
+}
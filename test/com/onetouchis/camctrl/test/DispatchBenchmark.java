@@ -0,0 +1,135 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.onetouchis.camctrl.test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.onetouchis.camctrl.CommandDispatcher;
+import com.onetouchis.camctrl.CommandDispatcher.Command;
+import com.onetouchis.camctrl.CommandDispatcher.Entry;
+import com.onetouchis.camctrl.RS232CmdData;
+import com.onetouchis.camctrl.RS232CmdFileScanner;
+import com.onetouchis.camctrl.RS232CmdRequest;
+
+/**
+ * Compares the cost of turning a request's json into a camera command request
+ * the old way (json tree, split, regex matches and a catalog lookup) with the
+ * precompiled <code>CommandDispatcher</code>. Run from the project directory:
+ * java -cp dist/classes:dist/test-classes:lib/* com.onetouchis.camctrl.test.DispatchBenchmark
+ *
+ */
+public class DispatchBenchmark {
+
+	private static final String[] REQUESTS = {
+			"{\"command\":\"PAN_LEFT_START\"}",
+			"{\"command\":\"PAN_TILT_STOP\"}",
+			"{\"command\":\"3\"}",
+			"{\"command\":\"ZOOM_TELE_START\",\"camera\":\"default\"}",
+			"{\"command\":\"SCAN_PRESETS::ON\"}" };
+
+	private static final int WARMUP = 200000;
+
+	private static final int ITERATIONS = 1000000;
+
+	private static Map<String, RS232CmdData> nameToCmdMap = new HashMap<String, RS232CmdData>();
+
+	private static JsonParser parser = new JsonParser();
+
+	/** keeps the JIT from discarding the work */
+	private static int sink;
+
+	public static void main(String[] args) throws Exception {
+		String csv = args.length > 0 ? args[0] : "resources/commands.csv";
+		List<RS232CmdData> commands = new RS232CmdFileScanner().readDataFile(new File(csv));
+		for (RS232CmdData data : commands) {
+			nameToCmdMap.put(data.getName(), data);
+		}
+		CommandDispatcher dispatcher = new CommandDispatcher(commands);
+
+		for (int round = 0; round < 3; round++) {
+			run("tree + regex", dispatcher, false, WARMUP);
+			run("dispatch table", dispatcher, true, WARMUP);
+		}
+		run("tree + regex", dispatcher, false, ITERATIONS);
+		run("dispatch table", dispatcher, true, ITERATIONS);
+		System.out.println(sink == 42 ? "" : "done");
+	}
+
+	private static void run(String name, CommandDispatcher dispatcher, boolean table,
+			int iterations) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			String json = REQUESTS[i % REQUESTS.length];
+			sink += table ? dispatch(json, dispatcher) : legacy(json);
+		}
+		long elapsed = System.nanoTime() - start;
+		if (iterations == ITERATIONS) {
+			System.out.println(name + ": " + (elapsed / iterations) + " ns/request");
+		}
+	}
+
+	/** the servlet's request handling before the dispatch table */
+	private static int legacy(String json) {
+		JsonElement element = parser.parse(json);
+		JsonObject obj = (JsonObject) element;
+		String cmd = obj.get("command").getAsString();
+		String args = "";
+		if (cmd.contains("::")) {
+			String tempCmd[] = cmd.split("::");
+			cmd = tempCmd[0];
+			args = tempCmd[1];
+		}
+		RS232CmdRequest cmdRequest = null;
+		if ("PRESETS".equals(cmd)) {
+			return 0;
+		} else if (cmd.matches("[0-9]+")) {
+			byte[] cmdArray = cmd.getBytes();
+			cmdArray[0] = (byte) (cmdArray[0] - (byte) 48);
+			cmdRequest = new RS232CmdRequest("PRESET_MOVE", cmdArray);
+		} else if (cmd.matches("[0-9]+")) {
+			return 1;
+		} else if ("PRESET_STORE".equals(cmd)) {
+			return 2;
+		} else if ("SCAN_PRESETS".equals(cmd)) {
+			return args.length();
+		} else {
+			cmdRequest = new RS232CmdRequest(cmd);
+		}
+		cmdRequest.setCmdData(nameToCmdMap.get(cmdRequest.getName()));
+		return cmdRequest.getCmdData().getCode();
+	}
+
+	/** the servlet's request handling with the dispatch table */
+	private static int dispatch(String json, CommandDispatcher dispatcher) throws Exception {
+		Command command = CommandDispatcher.readCommands(json).get(0);
+		Entry entry = dispatcher.lookup(command.getName());
+		switch (entry.getAction()) {
+		case PRESET:
+		case SEND:
+			return entry.createRequest().getCmdData().getCode();
+		default:
+			return command.getArgs().length();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.onetouchis.camctrl.CommandDispatcher;
+import com.onetouchis.camctrl.CommandDispatcher.Action;
+import com.onetouchis.camctrl.CommandDispatcher.Command;
+import com.onetouchis.camctrl.CommandDispatcher.Entry;
+import com.onetouchis.camctrl.RS232CmdData;
+import com.onetouchis.camctrl.RS232CmdFileScanner;
+import com.onetouchis.camctrl.RS232CmdRequest;
+
+/**
+ * Checks how the dispatch table maps the command strings sent by clients to
+ * actions: catalog commands, preset numbers, the servlet's own commands and
+ * their arguments. Prints each check and exits with 1 if any failed. Run from the project directory:
+ * java -cp dist/classes:dist/test-classes:lib/gson-2.2.4.jar com.onetouchis.camctrl.test.DispatchCheck
+ *
+ */
+public class DispatchCheck {
+
+	private static Map<String, RS232CmdData> commands = new HashMap<String, RS232CmdData>();
+
+	private static CommandDispatcher dispatcher;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		String csv = args.length > 0 ? args[0] : "resources/commands.csv";
+		List<RS232CmdData> catalog = new RS232CmdFileScanner().readDataFile(new File(csv));
+		for (RS232CmdData cmdData : catalog) {
+			commands.put(cmdData.getName(), cmdData);
+		}
+		dispatcher = new CommandDispatcher(catalog);
+
+		check("catalog command is sent with its command data", catalogCommand());
+		check("unknown command is still sent", unknownCommand());
+		check("servlet commands have their own actions", servletCommands());
+		check("leading zeros name the same preset", presetNumbers());
+		check("presets above MAX_PRESETS are invalid", presetsOutOfRange());
+		check("arguments follow the separator", arguments());
+		check("batch of commands is read in order", batch());
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static void check(String name, String failure) {
+		if (failure == null) {
+			System.out.println("ok      " + name);
+		} else {
+			System.out.println("FAILED  " + name + ": " + failure);
+			failures++;
+		}
+	}
+
+	private static String expect(Object expected, Object actual) {
+		return expected.equals(actual) ? null : "expected " + expected + " but was " + actual;
+	}
+
+	private static String catalogCommand() {
+		Entry entry = dispatcher.lookup(RS232CmdData.PAN_LEFT_START);
+		String failure = expect(Action.SEND, entry.getAction());
+		if (failure == null) {
+			RS232CmdRequest request = entry.createRequest();
+			failure = expect(RS232CmdData.PAN_LEFT_START, request.getName());
+			if (failure == null && request.getCmdData() != commands.get(RS232CmdData.PAN_LEFT_START)) {
+				failure = "request has " + request.getCmdData() + " instead of the catalog's command data";
+			}
+		}
+		return failure;
+	}
+
+	private static String unknownCommand() {
+		Entry entry = dispatcher.lookup("NO_SUCH_COMMAND");
+		String failure = expect(Action.SEND, entry.getAction());
+		if (failure == null) {
+			RS232CmdRequest request = entry.createRequest();
+			failure = expect("NO_SUCH_COMMAND", request.getName());
+			if (failure == null && request.getCmdData() != null) {
+				failure = "request has command data " + request.getCmdData();
+			}
+		}
+		return failure;
+	}
+
+	private static String servletCommands() {
+		String[] names = { "PRESETS", RS232CmdData.PRESET_STORE, "SCAN_PRESETS", "TOUR_START", "TOUR_STOP" };
+		Action[] actions = { Action.PRESETS, Action.PRESET_STORE, Action.SCAN_PRESETS, Action.TOUR_START,
+				Action.TOUR_STOP };
+		for (int i = 0; i < names.length; i++) {
+			String failure = expect(actions[i], dispatcher.lookup(names[i]).getAction());
+			if (failure != null) {
+				return names[i] + ": " + failure;
+			}
+		}
+		return null;
+	}
+
+	private static String presetNumbers() {
+		String[] names = { "0", "00", "5", "05", "0009" };
+		int[] presets = { 0, 0, 5, 5, 9 };
+		for (int i = 0; i < names.length; i++) {
+			Entry entry = dispatcher.lookup(names[i]);
+			String failure = expect(Action.PRESET, entry.getAction());
+			if (failure == null) {
+				failure = expect(presets[i], entry.getPresetNumber());
+			}
+			if (failure == null) {
+				RS232CmdRequest request = entry.createRequest();
+				failure = expect(RS232CmdData.PRESET_MOVE, request.getName());
+				if (failure == null && !Arrays.equals(new byte[] { (byte) presets[i] }, request.getArguments())) {
+					failure = "moves to " + Arrays.toString(request.getArguments());
+				}
+			}
+			if (failure == null) {
+				failure = expect(RS232CmdData.PRESET_STORE, entry.createStoreRequest().getName());
+			}
+			if (failure != null) {
+				return names[i] + ": " + failure;
+			}
+		}
+		return null;
+	}
+
+	private static String presetsOutOfRange() {
+		String[] names = { String.valueOf(CommandDispatcher.MAX_PRESETS + 1), "010", "99999999999999999999" };
+		for (String name : names) {
+			String failure = expect(Action.INVALID, dispatcher.lookup(name).getAction());
+			if (failure != null) {
+				return name + ": " + failure;
+			}
+		}
+		return null;
+	}
+
+	private static String arguments() throws Exception {
+		String[] json = { "{\"command\":\"SCAN_PRESETS::ON\"}", "{\"command\":\"TOUR_START::\"}",
+				"{\"command\":\"PAN_LEFT_START\"}" };
+		String[] names = { "SCAN_PRESETS", "TOUR_START", RS232CmdData.PAN_LEFT_START };
+		String[] args = { "ON", "", "" };
+		boolean[] hasArgs = { true, true, false };
+		for (int i = 0; i < json.length; i++) {
+			Command command = CommandDispatcher.readCommands(json[i]).get(0);
+			String failure = expect(names[i], command.getName());
+			if (failure == null) {
+				failure = expect(args[i], command.getArgs());
+			}
+			if (failure == null) {
+				failure = expect(hasArgs[i], command.hasArgs());
+			}
+			if (failure != null) {
+				return json[i] + ": " + failure;
+			}
+		}
+		return null;
+	}
+
+	private static String batch() throws Exception {
+		String json = "[{\"command\":\"3\",\"camera\":\"lobby\"},{\"command\":\"PAN_TILT_STOP\"}]";
+		if (!CommandDispatcher.isBatch(" " + json)) {
+			return "array not taken as a batch";
+		}
+		List<Command> batch = CommandDispatcher.readCommands(json);
+		String failure = expect(2, batch.size());
+		if (failure == null) {
+			failure = expect("3 lobby, PAN_TILT_STOP null", batch.get(0).getName() + " " + batch.get(0).getCamera()
+					+ ", " + batch.get(1).getName() + " " + batch.get(1).getCamera());
+		}
+		return failure;
+	}
+}
@@ -0,0 +1,184 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import com.onetouchis.camctrl.RS232CmdData;
+import com.onetouchis.camctrl.RS232CmdFileScanner;
+import com.onetouchis.camctrl.RS232FrameDecoder;
+
+/**
+ * Checks how the frame decoder splits the bytes read from a socket into
+ * responses, however the reads divide them, for the camera's single byte
+ * answers and the TV's multi byte ones, and how the commands file's hex
+ * fields are read into bytes. Prints each check and exits with 1 if any
+ * failed. Run from the project directory:
+ * java -cp dist/classes:dist/test-classes com.onetouchis.camctrl.test.FrameCheck
+ *
+ */
+public class FrameCheck {
+
+	private static final byte ACK = (byte) 0xB1;
+
+	private static final byte STOPPED = (byte) 0xBB;
+
+	/** the TV's answer to its commands, 40530d in FujitsuTv.csv */
+	private static final byte[] TV_ACK = { 0x40, 0x53, 0x0d };
+
+	private static List<RS232CmdData> camera;
+
+	private static List<RS232CmdData> tv;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		camera = new RS232CmdFileScanner().readDataFile(new File("resources/commands.csv"));
+		tv = new RS232CmdFileScanner().readDataFile(new File("resources/FujitsuTv.csv"));
+
+		check("back to back answers in one read", backToBack());
+		check("multi byte frames in one read", multiByteBackToBack());
+		check("frame split across reads", splitFrame());
+		check("partial frame is flushed", partialFlushed());
+		check("unlisted response ends at a terminator", unlistedResponse());
+		check("known frames are the catalog's arrays", knownFramesShared());
+		check("hex fields are read two digits to a byte", hexBytes());
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static void check(String name, String failure) {
+		if (failure == null) {
+			System.out.println("ok      " + name);
+		} else {
+			System.out.println("FAILED  " + name + ": " + failure);
+			failures++;
+		}
+	}
+
+	private static String expect(byte[] expected, byte[] actual) {
+		return Arrays.equals(expected, actual) ? null : "expected " + Arrays.toString(expected) + " but was "
+				+ Arrays.toString(actual);
+	}
+
+	private static String backToBack() {
+		RS232FrameDecoder decoder = new RS232FrameDecoder(camera);
+		decoder.getBuffer().put(new byte[] { ACK, STOPPED });
+		String failure = expect(new byte[] { ACK }, decoder.next());
+		if (failure == null) {
+			failure = expect(new byte[] { STOPPED }, decoder.next());
+		}
+		if (failure == null) {
+			failure = expect(null, decoder.next());
+		}
+		return failure;
+	}
+
+	private static String multiByteBackToBack() {
+		RS232FrameDecoder decoder = new RS232FrameDecoder(tv);
+		decoder.getBuffer().put(TV_ACK).put(TV_ACK);
+		String failure = expect(TV_ACK, decoder.next());
+		if (failure == null) {
+			failure = expect(TV_ACK, decoder.next());
+		}
+		if (failure == null && decoder.hasPartial()) {
+			failure = "bytes left over";
+		}
+		return failure;
+	}
+
+	private static String splitFrame() {
+		RS232FrameDecoder decoder = new RS232FrameDecoder(tv);
+		decoder.getBuffer().put(TV_ACK, 0, 1);
+		String failure = expect(null, decoder.next());
+		if (failure == null) {
+			decoder.getBuffer().put(TV_ACK, 1, 1);
+			failure = expect(null, decoder.next());
+		}
+		if (failure == null && !decoder.hasPartial()) {
+			failure = "partial frame dropped";
+		}
+		if (failure == null) {
+			decoder.getBuffer().put(TV_ACK, 2, 1);
+			failure = expect(TV_ACK, decoder.next());
+		}
+		return failure;
+	}
+
+	private static String partialFlushed() {
+		RS232FrameDecoder decoder = new RS232FrameDecoder(tv);
+		decoder.getBuffer().put(TV_ACK, 0, 2);
+		String failure = expect(null, decoder.next());
+		if (failure == null) {
+			// nothing more arrived to complete it
+			failure = expect(Arrays.copyOf(TV_ACK, 2), decoder.flush());
+		}
+		if (failure == null && decoder.hasPartial()) {
+			failure = "bytes left after the flush";
+		}
+		if (failure == null) {
+			failure = expect(null, decoder.flush());
+		}
+		return failure;
+	}
+
+	private static String unlistedResponse() {
+		RS232FrameDecoder decoder = new RS232FrameDecoder(tv);
+		byte[] error = { 0x40, 0x45, 0x0d };
+		decoder.getBuffer().put(error).put(TV_ACK);
+		String failure = expect(error, decoder.next());
+		if (failure == null) {
+			failure = expect(TV_ACK, decoder.next());
+		}
+		return failure;
+	}
+
+	private static String knownFramesShared() {
+		RS232FrameDecoder decoder = new RS232FrameDecoder(camera);
+		decoder.getBuffer().put(ACK).put(ACK);
+		byte[] first = decoder.next();
+		byte[] second = decoder.next();
+		String failure = expect(new byte[] { ACK }, second);
+		if (failure == null && first != second) {
+			failure = "a new array for each answer";
+		}
+		return failure;
+	}
+
+	private static String hexBytes() throws Exception {
+		String csv = "TWO_BYTES,25,,AA55,B4\nODD_DIGITS,25,,5,\nTV_ACK,25,,40530d,\n";
+		List<RS232CmdData> commands = new RS232CmdFileScanner()
+				.readDataFile(new ByteArrayInputStream(csv.getBytes("US-ASCII")));
+		byte[][] responses = { { (byte) 0xAA, 0x55 }, { 0x05 }, TV_ACK };
+		if (commands.size() != responses.length) {
+			return "read " + commands.size() + " of " + responses.length + " commands";
+		}
+		for (int i = 0; i < responses.length; i++) {
+			String failure = expect(responses[i], commands.get(i).getResponse());
+			if (failure != null) {
+				return commands.get(i).getName() + ": " + failure;
+			}
+		}
+		if (commands.get(0).getCompletionCode() != (byte) 0xB4) {
+			return "completion code read as " + commands.get(0).getCompletionCode();
+		}
+		return null;
+	}
+}
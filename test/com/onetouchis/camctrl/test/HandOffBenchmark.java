@@ -0,0 +1,174 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.onetouchis.camctrl.RS232RingBuffer;
+import com.onetouchis.camctrl.RS232WaitStrategy;
+
+/**
+ * Compares handing commands from several request threads to the single
+ * sending thread through a <code>LinkedBlockingQueue</code>, as the queue used
+ * to, with the <code>RS232RingBuffer</code> and each wait strategy. Each
+ * scenario is run flat out and paced like a joystick, where the time to wake
+ * the sending thread dominates. Messages are created before timing starts, so
+ * only the hand-off itself allocates. Run from the project directory:
+ * java -cp dist/classes:dist/test-classes com.onetouchis.camctrl.test.HandOffBenchmark [producers]
+ *
+ */
+public class HandOffBenchmark {
+
+	private static final int MESSAGES = 400000;
+
+	private static final int CAPACITY = 1024;
+
+	/** pause between a producer's messages when paced, 50 us */
+	private static final long PACE_NANOS = 50000;
+
+	private static final String[] STRATEGIES = { "BLOCKING", "PARKING", "YIELDING", "BUSY_SPIN" };
+
+	/** a command stand in, stamped when it is offered */
+	static class Message {
+		long offered;
+	}
+
+	/** the hand-off under test */
+	interface HandOff {
+		void offer(Message message) throws InterruptedException;
+
+		Message take() throws InterruptedException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			for (boolean paced : new boolean[] { false, true }) {
+				run("LinkedBlockingQueue", linked(), producers, paced, report);
+				for (String strategy : STRATEGIES) {
+					run("ring " + strategy, ring(strategy), producers, paced, report);
+				}
+			}
+		}
+	}
+
+	private static HandOff linked() {
+		final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+		return new HandOff() {
+			@Override
+			public void offer(Message message) throws InterruptedException {
+				queue.put(message);
+			}
+
+			@Override
+			public Message take() throws InterruptedException {
+				return queue.take();
+			}
+		};
+	}
+
+	private static HandOff ring(String strategy) {
+		final RS232RingBuffer<Message> ring = new RS232RingBuffer<Message>(CAPACITY);
+		final RS232WaitStrategy wait = RS232WaitStrategy.create(strategy);
+		return new HandOff() {
+			@Override
+			public void offer(Message message) {
+				while (!ring.offer(message)) {
+					Thread.yield();
+				}
+				wait.signal();
+			}
+
+			@Override
+			public Message take() throws InterruptedException {
+				Message message;
+				while ((message = ring.poll()) == null) {
+					wait.await(Long.MAX_VALUE);
+				}
+				return message;
+			}
+		};
+	}
+
+	private static void run(String name, final HandOff handOff, int producers,
+			final boolean paced, boolean report) throws Exception {
+		final int perProducer = MESSAGES / producers;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final Message[] messages = new Message[perProducer];
+			for (int i = 0; i < perProducer; i++) {
+				messages[i] = new Message();
+			}
+			threads[p] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (Message message : messages) {
+							message.offered = System.nanoTime();
+							handOff.offer(message);
+							if (paced) {
+								LockSupport.parkNanos(PACE_NANOS);
+							}
+						}
+					} catch (InterruptedException e) {
+						// benchmark abandoned
+					}
+				}
+			};
+			threads[p].start();
+		}
+
+		// log2 buckets of the hand-off latency in nanoseconds
+		long[] buckets = new long[64];
+		int total = perProducer * producers;
+		long begin = System.nanoTime();
+		start.countDown();
+		for (int i = 0; i < total; i++) {
+			Message message = handOff.take();
+			long latency = System.nanoTime() - message.offered;
+			buckets[63 - Long.numberOfLeadingZeros(Math.max(1, latency))]++;
+		}
+		long elapsed = System.nanoTime() - begin;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (report) {
+			System.out.println(String.format("%-26s %-7s %10d msg/s  p50 < %7d ns  p99 < %9d ns",
+					name, paced ? "paced" : "flat", total * TimeUnit.SECONDS.toNanos(1) / elapsed,
+					percentile(buckets, total, 0.50), percentile(buckets, total, 0.99)));
+		}
+	}
+
+	/** upper bound of the bucket holding the given fraction of the samples */
+	private static long percentile(long[] buckets, int total, double fraction) {
+		long count = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			count += buckets[i];
+			if (count >= total * fraction) {
+				return 1L << (i + 1);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+}
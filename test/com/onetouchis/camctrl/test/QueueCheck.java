@@ -0,0 +1,384 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.onetouchis.camctrl.RS232BlockingQ;
+import com.onetouchis.camctrl.RS232CmdData;
+import com.onetouchis.camctrl.RS232CmdFileScanner;
+import com.onetouchis.camctrl.RS232CmdRequest;
+import com.onetouchis.camctrl.RS232Metrics;
+import com.onetouchis.camctrl.RS232ResponseListener;
+
+/**
+ * Checks how the queue orders, retries, optimizes and gives up on commands,
+ * driving it by hand the way RS232NioProcessor does: commands are released
+ * with poll, the camera's answers are passed to handleEvent and time is
+ * moved on by hand, so every check is deterministic. Prints each check and exits with 1
+ * if any failed. Run from the project directory:
+ * java -cp dist/classes:dist/test-classes com.onetouchis.camctrl.test.QueueCheck
+ *
+ */
+public class QueueCheck {
+
+	private static final byte ACK = (byte) 0xB1;
+
+	private static final byte NACK = (byte) 0xB4;
+
+	private static final byte STOPPED = (byte) 0xBB;
+
+	/** well past any gap, backoff or timeout the queue waits on */
+	private static final long LATER = TimeUnit.SECONDS.toNanos(30);
+
+	private static Map<String, RS232CmdData> commands = new HashMap<String, RS232CmdData>();
+
+	private static int failures = 0;
+
+	/** the responses the queue's listener was told about, in order */
+	private static List<String> responses = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception {
+		String csv = args.length > 0 ? args[0] : "resources/commands.csv";
+		for (RS232CmdData cmdData : new RS232CmdFileScanner().readDataFile(new File(csv))) {
+			commands.put(cmdData.getName(), cmdData);
+		}
+		Logger.getLogger("com.onetouchis.camctrl").setLevel(Level.SEVERE);
+
+		check("stop cancels a NACKed start", stopAfterNack());
+		check("stop cancels a start that timed out", stopAfterTimeout());
+		check("stop stays ahead of a start across a reconnect", stopAcrossReconnect());
+		check("lost ACK fails the window without resending", lostAckInWindow());
+		check("listeners run with the queue unlocked", listenersUnlocked());
+		check("getReadyDelay gives nothing up", readyDelayOnlyTells());
+		check("listener executor answers in order with one task", listenerExecutorInOrder());
+		check("stop removes queued moves on its axes", stopRemovesMoves());
+		check("stop with nothing left to stop is dropped", stopWithoutMoves());
+		check("repeated start replaces the queued one", startReplacesStart());
+		check("repeated PRESET_MOVE is merged", presetMoveMerged());
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static void check(String name, String failure) {
+		if (failure == null) {
+			System.out.println("ok      " + name);
+		} else {
+			System.out.println("FAILED  " + name + ": " + failure);
+			failures++;
+		}
+	}
+
+	private static RS232BlockingQ newQueue() {
+		responses.clear();
+		return new RS232BlockingQ(new RS232ResponseListener() {
+			@Override
+			public void handleResponse(RS232CmdRequest request, RS232CmdData response) {
+				responses.add(request.getName() + " " + response.getName());
+			}
+		}, new RS232Metrics());
+	}
+
+	private static RS232CmdRequest request(String name) {
+		RS232CmdRequest request = new RS232CmdRequest(name);
+		request.setCmdData(commands.get(name));
+		return request;
+	}
+
+	/**
+	 * Answers and releases commands until the queue has nothing more to send.
+	 * 
+	 * @return the names of the commands sent, in order
+	 */
+	private static List<String> drain(RS232BlockingQ queue, long now) {
+		List<String> sent = new ArrayList<String>();
+		RS232CmdRequest released;
+		while ((released = queue.poll(now)) != null && sent.size() < 10) {
+			sent.add(released.getName());
+			queue.handleEvent(new byte[] { ACK });
+			byte completion = released.getCmdData().getCompletionCode();
+			if (completion != 0) {
+				queue.handleEvent(new byte[] { completion });
+			}
+			now += LATER;
+		}
+		return sent;
+	}
+
+	private static String expect(Object expected, Object actual) {
+		return expected.equals(actual) ? null : "expected " + expected + " but was " + actual;
+	}
+
+	private static String stopAfterNack() {
+		RS232BlockingQ queue = newQueue();
+		long now = System.nanoTime();
+		queue.offer(request(RS232CmdData.PAN_LEFT_START));
+		queue.poll(now);
+		queue.offer(request(RS232CmdData.PAN_TILT_STOP));
+		queue.handleEvent(new byte[] { NACK });
+		String failure = expect("[" + RS232CmdData.PAN_TILT_STOP + "]", drain(queue, now + LATER).toString());
+		if (failure == null) {
+			failure = expect(RS232CmdData.PAN_LEFT_START + " " + RS232CmdData.RESPONSE_CANCELLED, responses.get(0));
+		}
+		return failure;
+	}
+
+	private static String stopAfterTimeout() {
+		RS232BlockingQ queue = newQueue();
+		long now = System.nanoTime();
+		queue.offer(request(RS232CmdData.PAN_LEFT_START));
+		queue.poll(now);
+		queue.offer(request(RS232CmdData.PAN_TILT_STOP));
+		return expect("[" + RS232CmdData.PAN_TILT_STOP + "]", drain(queue, now + LATER).toString());
+	}
+
+	private static String stopAcrossReconnect() {
+		RS232BlockingQ queue = newQueue();
+		long now = System.nanoTime();
+		queue.offer(request(RS232CmdData.PAN_LEFT_START));
+		queue.offer(request(RS232CmdData.VIDEO_ON));
+		queue.poll(now);
+		queue.offer(request(RS232CmdData.PAN_TILT_STOP));
+		queue.disconnected(now);
+		queue.connected(now + LATER);
+		return expect("[" + RS232CmdData.PAN_TILT_STOP + ", " + RS232CmdData.VIDEO_ON + "]",
+				drain(queue, now + LATER).toString());
+	}
+
+	private static String lostAckInWindow() {
+		System.setProperty("wcc.queue.window", "3");
+		RS232BlockingQ queue;
+		try {
+			queue = newQueue();
+		} finally {
+			System.clearProperty("wcc.queue.window");
+		}
+		long now = System.nanoTime();
+		for (int i = 0; i < 2; i++) {
+			queue.offer(request(RS232CmdData.PAN_LEFT));
+		}
+		int sent = 0;
+		for (int i = 0; i < 2; i++) {
+			// the link is idle, so only the window and the line's speed hold
+			// the second step back
+			now += TimeUnit.MILLISECONDS.toNanos(5);
+			if (queue.poll(now) != null) {
+				sent++;
+			}
+		}
+		if (sent != 2) {
+			return "pipelined " + sent + " steps instead of 2";
+		}
+		// the first ACK is lost, the second is credited to the first step
+		queue.handleEvent(new byte[] { ACK });
+		List<String> resent = drain(queue, now + LATER);
+		if (!resent.isEmpty()) {
+			return "sent " + resent + " again";
+		}
+		return expect("[PAN_LEFT RESPONSE_SUCESS, PAN_LEFT RESPONSE_TIMEOUT]", responses.toString());
+	}
+
+	private static String listenersUnlocked() throws Exception {
+		final RS232BlockingQ[] queue = new RS232BlockingQ[1];
+		final ExecutorService other = Executors.newSingleThreadExecutor();
+		final List<String> failure = new ArrayList<String>();
+		queue[0] = new RS232BlockingQ(new RS232ResponseListener() {
+			@Override
+			public void handleResponse(RS232CmdRequest request, RS232CmdData response) {
+				// another thread needs the lock to offer while a listener
+				// writes its response
+				Future<Integer> size = other.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return queue[0].size();
+					}
+				});
+				try {
+					size.get(1, TimeUnit.SECONDS);
+				} catch (Exception e) {
+					failure.add(request.getName() + " " + response.getName() + " answered with the queue locked");
+				}
+			}
+		}, new RS232Metrics());
+		long now = System.nanoTime();
+		queue[0].offer(request(RS232CmdData.PAN_LEFT_START));
+		queue[0].offer(request(RS232CmdData.PAN_TILT_STOP));
+		queue[0].offer(request(RS232CmdData.VIDEO_ON));
+		queue[0].poll(now);
+		queue[0].poll(now + LATER);
+		other.shutdown();
+		return failure.isEmpty() ? null : failure.get(0);
+	}
+
+	private static String readyDelayOnlyTells() {
+		RS232BlockingQ queue = newQueue();
+		long now = System.nanoTime();
+		queue.offer(request(RS232CmdData.VIDEO_ON));
+		queue.poll(now);
+		long delay = queue.getReadyDelay(now + LATER);
+		if (delay != 0) {
+			return "overdue answer reported as a wait of " + delay + " ns";
+		}
+		if (!responses.isEmpty()) {
+			return "told listeners " + responses;
+		}
+		if (queue.getDrainTime() == 0) {
+			return "gave up on the command in flight";
+		}
+		return null;
+	}
+
+	private static String listenerExecutorInOrder() {
+		List<String> direct = stopThenVideo(newQueue());
+		RS232BlockingQ queue = newQueue();
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		queue.setListenerExecutor(new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				tasks.add(task);
+			}
+		});
+		stopThenVideo(queue);
+		if (!responses.isEmpty()) {
+			return "told listeners " + responses + " on the queue's thread";
+		}
+		if (tasks.size() != 1) {
+			return "handed the executor " + tasks.size() + " tasks";
+		}
+		tasks.get(0).run();
+		return expect(direct, responses);
+	}
+
+	/**
+	 * Cancels a start with a stop after a NACK, then sends VIDEO_ON, so the
+	 * listeners are told about a command given up on and about ACKs and
+	 * completions.
+	 * 
+	 * @return the responses the listeners were told about
+	 */
+	private static List<String> stopThenVideo(RS232BlockingQ queue) {
+		long now = System.nanoTime();
+		queue.offer(request(RS232CmdData.PAN_LEFT_START));
+		queue.poll(now);
+		queue.offer(request(RS232CmdData.PAN_TILT_STOP));
+		queue.offer(request(RS232CmdData.VIDEO_ON));
+		queue.handleEvent(new byte[] { NACK });
+		drain(queue, now + LATER);
+		return new ArrayList<String>(responses);
+	}
+
+	private static String stopRemovesMoves() {
+		RS232BlockingQ queue = newQueue();
+		long now = System.nanoTime();
+		RS232CmdRequest start = request(RS232CmdData.PAN_LEFT_START);
+		RecordingListener listener = new RecordingListener();
+		start.setListener(listener);
+		queue.offer(start);
+		queue.offer(request(RS232CmdData.ZOOM_TELE_START));
+		queue.offer(request(RS232CmdData.PAN_TILT_STOP));
+		String failure = expect("[" + RS232CmdData.PAN_TILT_STOP + ", " + RS232CmdData.ZOOM_TELE_START + "]",
+				drain(queue, now).toString());
+		if (failure == null) {
+			failure = expect(RS232CmdData.PAN_LEFT_START + " " + RS232CmdData.RESPONSE_CANCELLED, responses.get(0));
+		}
+		if (failure == null) {
+			failure = expect("[" + RS232CmdData.RESPONSE_CANCELLED + "]", listener.outcomes.toString());
+		}
+		return failure;
+	}
+
+	private static String stopWithoutMoves() {
+		// in a single lane the optimizer, not the emergency lane, removes the
+		// start
+		System.setProperty("wcc.queue.lanes", "false");
+		RS232BlockingQ queue;
+		try {
+			queue = newQueue();
+		} finally {
+			System.clearProperty("wcc.queue.lanes");
+		}
+		long now = System.nanoTime();
+		queue.offer(request(RS232CmdData.PAN_LEFT_START));
+		queue.offer(request(RS232CmdData.ZOOM_TELE_START));
+		queue.offer(request(RS232CmdData.PAN_TILT_STOP));
+		String failure = expect("[" + RS232CmdData.ZOOM_TELE_START + "]", drain(queue, now).toString());
+		if (failure == null) {
+			failure = expect("[" + RS232CmdData.PAN_LEFT_START + " " + RS232CmdData.RESPONSE_CANCELLED + ", "
+					+ RS232CmdData.PAN_TILT_STOP + " " + RS232CmdData.RESPONSE_CANCELLED + "]",
+					responses.subList(0, 2).toString());
+		}
+		return failure;
+	}
+
+	private static String startReplacesStart() {
+		RS232BlockingQ queue = newQueue();
+		long now = System.nanoTime();
+		queue.offer(request(RS232CmdData.PAN_LEFT_START));
+		queue.offer(request(RS232CmdData.PAN_RIGHT_START));
+		String failure = expect("[" + RS232CmdData.PAN_RIGHT_START + "]", drain(queue, now).toString());
+		if (failure == null) {
+			failure = expect(RS232CmdData.PAN_LEFT_START + " " + RS232CmdData.RESPONSE_CANCELLED, responses.get(0));
+		}
+		return failure;
+	}
+
+	private static String presetMoveMerged() {
+		RS232BlockingQ queue = newQueue();
+		long now = System.nanoTime();
+		RecordingListener listener = new RecordingListener();
+		byte[][] presets = { { 3 }, { 3 }, { 4 } };
+		for (byte[] preset : presets) {
+			RS232CmdRequest request = new RS232CmdRequest(RS232CmdData.PRESET_MOVE, preset);
+			request.setCmdData(commands.get(RS232CmdData.PRESET_MOVE));
+			request.setListener(listener);
+			queue.offer(request);
+		}
+		String failure = expect("[" + RS232CmdData.PRESET_MOVE + ", " + RS232CmdData.PRESET_MOVE + "]",
+				drain(queue, now).toString());
+		if (failure == null) {
+			// the merged request is told along with the one it joined
+			String success = RS232CmdData.RESPONSE_SUCESS;
+			failure = expect("[" + success + ", " + success + ", " + success + "]", listener.outcomes.toString());
+		}
+		return failure;
+	}
+
+	/**
+	 * Records the outcomes a request's own listener is told about.
+	 */
+	private static class RecordingListener implements RS232ResponseListener {
+
+		private List<String> outcomes = new ArrayList<String>();
+
+		@Override
+		public void handleResponse(RS232CmdRequest request, RS232CmdData response) {
+			outcomes.add(response.getName());
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+    RS232Camera - Controls PTZ features of a camera via Socket and RS232
+    Copyright (C) 2014  One Touch Integrated Systems, LLC
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+ */
+package com.onetouchis.camctrl.test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.onetouchis.camctrl.IProcessor;
+import com.onetouchis.camctrl.RS232CmdData;
+import com.onetouchis.camctrl.RS232CmdRequest;
+import com.onetouchis.camctrl.RS232ResponseListener;
+import com.onetouchis.camctrl.RS232SerialProcessor;
+
+/**
+ * Checks RS232SerialProcessor against a camera standing in on a
+ * pseudo-terminal (test/scripts/ptycam.py, which needs python3): that it
+ * opens the port and identifies the camera, answers commands, and reopens
+ * the port after it goes away. Prints each check and exits with 1 if any
+ * failed. Run from the project directory:
+ * java -cp dist/classes:dist/test-classes:lib/* com.onetouchis.camctrl.test.SerialCheck
+ *
+ */
+public class SerialCheck {
+
+	/** how long each pseudo-terminal stays up, in seconds */
+	private static final int PERIOD = 4;
+
+	private static final long READY_TIMEOUT = TimeUnit.SECONDS.toMillis(3);
+
+	private static int failures = 0;
+
+	private static AtomicInteger answered = new AtomicInteger();
+
+	private static AtomicInteger succeeded = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		Logger.getLogger("com.onetouchis.camctrl").setLevel(Level.SEVERE);
+		File link = File.createTempFile("ptycam", ".tty");
+		link.delete();
+		Process camera = new ProcessBuilder("python3", "test/scripts/ptycam.py", link.getPath(),
+				String.valueOf(PERIOD), "1").inheritIO().start();
+		long started = System.currentTimeMillis();
+		while (!link.exists() && System.currentTimeMillis() - started < READY_TIMEOUT) {
+			Thread.sleep(10);
+		}
+
+		IProcessor processor = new RS232SerialProcessor();
+		try {
+			processor.initialize(null, 0, link.getPath());
+			check("opens the port and identifies the camera", awaitReady(processor));
+			check("answers commands", send(processor, 3));
+			// the camera unplugs its port halfway through the second period
+			Thread.sleep(TimeUnit.SECONDS.toMillis(PERIOD) - (System.currentTimeMillis() - started)
+					+ TimeUnit.SECONDS.toMillis(PERIOD) / 2);
+			String failure = awaitReady(processor);
+			if (failure == null && processor.getMetrics().getReconnects() == 0) {
+				failure = "ready without reopening the port";
+			}
+			check("reopens the port after it goes away", failure == null ? send(processor, 3) : failure);
+		} finally {
+			processor.close();
+			camera.destroy();
+		}
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static void check(String name, String failure) {
+		if (failure == null) {
+			System.out.println("ok      " + name);
+		} else {
+			System.out.println("FAILED  " + name + ": " + failure);
+			failures++;
+		}
+	}
+
+	private static String awaitReady(IProcessor processor) throws InterruptedException {
+		long started = System.currentTimeMillis();
+		while (!processor.isReady()) {
+			if (System.currentTimeMillis() - started > READY_TIMEOUT) {
+				return "not ready after " + READY_TIMEOUT + " ms";
+			}
+			Thread.sleep(10);
+		}
+		return null;
+	}
+
+	/**
+	 * Sends VIDEO_ON a number of times and waits for the answers.
+	 */
+	private static String send(IProcessor processor, int count) throws InterruptedException {
+		answered.set(0);
+		succeeded.set(0);
+		RS232ResponseListener listener = new RS232ResponseListener() {
+			@Override
+			public void handleResponse(RS232CmdRequest request, RS232CmdData response) {
+				if (RS232CmdData.RESPONSE_SUCESS.equals(response.getName())) {
+					succeeded.incrementAndGet();
+				}
+				answered.incrementAndGet();
+			}
+		};
+		for (int i = 0; i < count; i++) {
+			RS232CmdRequest request = new RS232CmdRequest(RS232CmdData.VIDEO_ON);
+			request.setListener(listener);
+			processor.sendDataCommand(request);
+		}
+		long started = System.currentTimeMillis();
+		while (answered.get() < count && System.currentTimeMillis() - started < READY_TIMEOUT) {
+			Thread.sleep(10);
+		}
+		if (succeeded.get() != count) {
+			return succeeded + " of " + count + " commands succeeded";
+		}
+		return null;
+	}
+}
@@ -0,0 +1,62 @@
+#!/usr/bin/env python3
+#
+#   RS232Camera - Controls PTZ features of a camera via Socket and RS232
+#   Copyright (C) 2014  One Touch Integrated Systems, LLC
+#
+#   This program is free software: you can redistribute it and/or modify
+#   it under the terms of the GNU General Public License as published by
+#   the Free Software Foundation, either version 3 of the License, or
+#   (at your option) any later version.
+#
+#   This program is distributed in the hope that it will be useful,
+#   but WITHOUT ANY WARRANTY; without even the implied warranty of
+#   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+#   GNU General Public License for more details.
+#
+#   You should have received a copy of the GNU General Public License
+#   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+#
+# Stands in for a camera on a serial port, for SerialCheck. Opens a
+# pseudo-terminal, links LINK to it and answers IDENTIFIER with A5 and
+# VIDEO_ON with B1 then B4. Every PERIOD seconds the terminal is closed, as
+# if the adapter were unplugged, and LINK is pointed at a new one, DROPS
+# times in all.
+#
+# usage: ptycam.py LINK PERIOD DROPS
+
+import os
+import pty
+import select
+import sys
+import time
+
+link, period, drops = sys.argv[1], float(sys.argv[2]), int(sys.argv[3])
+
+for attempt in range(drops + 1):
+    master, slave = pty.openpty()
+    name = os.ttyname(slave)
+    if os.path.lexists(link):
+        os.remove(link)
+    os.symlink(name, link)
+    # the processor opens the terminal itself
+    os.close(slave)
+    deadline = time.time() + period
+    while time.time() < deadline:
+        ready, _, _ = select.select([master], [], [], 0.1)
+        if not ready:
+            continue
+        try:
+            data = os.read(master, 64)
+        except OSError:
+            # nothing has the terminal open yet
+            time.sleep(0.05)
+            continue
+        for b in data:
+            if b == 0x91:
+                os.write(master, b'\xa5')
+            elif b == 0x04:
+                os.write(master, b'\xb1')
+                time.sleep(0.005)
+                os.write(master, b'\xb4')
+    os.close(master)
+os.remove(link)